@@ -0,0 +1,156 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.FirstScreenSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time from launching the catalog to its first visible row, with and without the
+ * first screen snapshot. Each launch is repeated and the median is logged under the
+ * StartupBenchmark tag. The test fails if the median launch takes over
+ * {@link #MAX_FIRST_ROW_MILLIS}, or if the snapshot makes the median launch slower.
+ * <p>
+ * The test shares the app's process, so the database is already open after the first launch.
+ * For a true cold start, kill the app and read the "Fully drawn" time of
+ * <pre>adb shell am start -W -S com.example.android.bookstoreapp/.MainActivity</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmarkTest {
+
+    private static final String LOG_TAG = "StartupBenchmark";
+    private static final int BOOKS = 500;
+    private static final int LAUNCHES = 10;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /** Budget of the median launch to the first row. */
+    private static final long MAX_FIRST_ROW_MILLIS = 1000;
+
+    /**
+     * Largest ratio of the median launch with the snapshot to the one without. The database is
+     * already open in the test's process, so the snapshot is only required not to cost time.
+     */
+    private static final double MAX_TIME_RATIO = 1.0;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mResolver.delete(BookEntry.CONTENT_URI, null, null);
+
+        ContentValues[] books = new ContentValues[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            books[i] = new ContentValues();
+            books[i].put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+            books[i].put(BookEntry.COLUMN_PRICE, 10 + i % 50);
+            books[i].put(BookEntry.COLUMN_QUANTITY, i % 20);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i % 10);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-" + i % 10);
+        }
+        assertEquals(BOOKS, mResolver.bulkInsert(BookEntry.CONTENT_URI, books));
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(BookEntry.CONTENT_URI, null, null);
+        FirstScreenSnapshot.clear(mContext);
+    }
+
+    @Test
+    public void firstVisibleRow() {
+        // Each launch without the snapshot saves the one the next launch reads.
+        long[] withSnapshot = new long[LAUNCHES];
+        long[] withoutSnapshot = new long[LAUNCHES];
+        for (int i = 0; i < LAUNCHES; i++) {
+            FirstScreenSnapshot.clear(mContext);
+            withoutSnapshot[i] = launchToFirstRow();
+            // The snapshot is written in the background once the live page loads.
+            long start = SystemClock.elapsedRealtime();
+            while (FirstScreenSnapshot.read(mContext) == null) {
+                assertTrue("No snapshot saved within " + TIMEOUT_MILLIS + " ms",
+                        SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+                SystemClock.sleep(10);
+            }
+            withSnapshot[i] = launchToFirstRow();
+        }
+        long without = report("without snapshot", withoutSnapshot);
+        long with = report("with snapshot", withSnapshot);
+
+        assertTrue("Median first row without the snapshot took " + without + " ms",
+                without <= MAX_FIRST_ROW_MILLIS);
+        assertTrue("Median first row with the snapshot took " + with + " ms",
+                with <= MAX_FIRST_ROW_MILLIS);
+        assertTrue("The snapshot slowed the first row from " + without + " ms to " + with + " ms",
+                with <= without * MAX_TIME_RATIO);
+    }
+
+    /**
+     * Launch the catalog, wait for its first row to be laid out, finish it and return the time.
+     */
+    private long launchToFirstRow() {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(mContext, MainActivity.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+
+        long start = SystemClock.elapsedRealtime();
+        final Activity activity = mInstrumentation.startActivitySync(intent);
+        final RecyclerView list = activity.findViewById(R.id.list);
+        final int[] children = new int[1];
+        while (children[0] == 0) {
+            assertTrue("No row shown within " + TIMEOUT_MILLIS + " ms",
+                    SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    children[0] = list.getChildCount();
+                }
+            });
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+        return millis;
+    }
+
+    /**
+     * Log the median, minimum and maximum of the launches and return the median.
+     */
+    private static long report(String launch, long[] millis) {
+        long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        Log.i(LOG_TAG, "first row " + launch + ": median " + sorted[sorted.length / 2] + " ms, min "
+                + sorted[0] + " ms, max " + sorted[sorted.length - 1] + " ms over " + sorted.length
+                + " launches");
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the write throughput of {@link BookStatements} against the ContentValues path of
+ * SQLiteDatabase it replaces, one transaction per write as the provider runs them. Results are
+ * logged under the BookStatementsThroughput tag, and the compiled statements must take at most
+ * {@link #MAX_TIME_RATIO} of the time of the ContentValues path.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookStatementsThroughputTest {
+
+    private static final String LOG_TAG = "BookStatementsThroughput";
+    private static final String DATABASE_NAME = "statements_throughput.db";
+    private static final int ROWS = 2000;
+
+    /**
+     * Most time the compiled statements may take, as a fraction of the ContentValues path. Both
+     * pay for the same commits, so the gain is in building and compiling the SQL only.
+     */
+    private static final double MAX_TIME_RATIO = 0.95;
+
+    private Context mContext;
+    private SQLiteDatabase mDatabase;
+    private long mSupplierId;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDatabase = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        BookStoreMigrations.createVersion1(mDatabase);
+        BookStoreMigrations.migrate(mDatabase, 1, BookStoreMigrations.LATEST_VERSION);
+
+        ContentValues supplier = new ContentValues();
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, "1234567890");
+        mSupplierId = mDatabase.insert(SupplierEntry.TABLE_NAME, null, supplier);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void compiledStatements_writeFasterThanContentValues() {
+        // Warm up both paths, so neither pays for the first compile and page cache misses.
+        contentValuesWrites(ROWS / 10);
+        compiledStatementWrites(ROWS / 10);
+
+        long contentValuesMillis = contentValuesWrites(ROWS);
+        long statementMillis = compiledStatementWrites(ROWS);
+        double ratio = (double) statementMillis / contentValuesMillis;
+        Log.i(LOG_TAG, String.format("SQLiteStatement took %.2fx the time of ContentValues", ratio));
+        assertTrue("Compiled statements took " + statementMillis + " ms, ContentValues "
+                + contentValuesMillis + " ms", ratio <= MAX_TIME_RATIO);
+    }
+
+    /**
+     * Insert, update, then delete the given number of rows through SQLiteDatabase's ContentValues
+     * methods. Return the total time in ms.
+     */
+    private long contentValuesWrites(int rows) {
+        long[] ids = new long[rows];
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < rows; i++) {
+            mDatabase.beginTransaction();
+            try {
+                ids[i] = mDatabase.insert(BookEntry.TABLE_NAME, null, row(i));
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+        long total = report("insert", "ContentValues", rows, start);
+        assertEquals(rows, DatabaseUtils.queryNumEntries(mDatabase, BookEntry.TABLE_NAME));
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < rows; i++) {
+            mDatabase.beginTransaction();
+            try {
+                mDatabase.update(BookEntry.TABLE_NAME, row(i + 1), BookEntry._ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+        total += report("update", "ContentValues", rows, start);
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < rows; i++) {
+            mDatabase.beginTransaction();
+            try {
+                mDatabase.delete(BookEntry.TABLE_NAME, BookEntry._ID + "=?",
+                        new String[]{String.valueOf(ids[i])});
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+        total += report("delete", "ContentValues", rows, start);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, BookEntry.TABLE_NAME));
+        return total;
+    }
+
+    /**
+     * Insert, update, then delete the given number of rows through {@link BookStatements}. Return
+     * the total time in ms.
+     */
+    private long compiledStatementWrites(int rows) {
+        BookStatements statements = new BookStatements(mDatabase);
+        long[] ids = new long[rows];
+        long total;
+        try {
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < rows; i++) {
+                mDatabase.beginTransaction();
+                try {
+                    ids[i] = statements.insert("Book " + i, 10 + i, i, mSupplierId);
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+            total = report("insert", "SQLiteStatement", rows, start);
+            assertEquals(rows, DatabaseUtils.queryNumEntries(mDatabase, BookEntry.TABLE_NAME));
+
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < rows; i++) {
+                mDatabase.beginTransaction();
+                try {
+                    assertEquals(1, statements.update(ids[i], "Book " + (i + 1), 11 + i, i + 1, mSupplierId));
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+            total += report("update", "SQLiteStatement", rows, start);
+
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < rows; i++) {
+                mDatabase.beginTransaction();
+                try {
+                    assertEquals(1, statements.delete(ids[i]));
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+            total += report("delete", "SQLiteStatement", rows, start);
+        } finally {
+            statements.close();
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, BookEntry.TABLE_NAME));
+        return total;
+    }
+
+    private ContentValues row(int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_PRICE, 10 + i);
+        values.put(BookEntry.COLUMN_QUANTITY, i);
+        values.put(BookEntry.COLUMN_SUPPLIER_ID, mSupplierId);
+        return values;
+    }
+
+    private static long report(String operation, String path, int rows, long startMillis) {
+        long millis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+        Log.i(LOG_TAG, operation + " via " + path + ": " + rows + " writes in " + millis + " ms, "
+                + (rows * 1000L / millis) + " writes/s");
+        return millis;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.android.bookstoreapp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.CommandQueue;
+
+/**
+ * Keeps the process alive while the {@link CommandQueue} writes what was queued before the app
+ * went to the background, so sales and edits still queued are not lost if the system would
+ * otherwise kill it. Waits on its own worker thread, never on the main thread.
+ */
+public class CommandQueueService extends JobIntentService {
+
+    private static final String LOG_TAG = CommandQueueService.class.getSimpleName();
+
+    private static final int JOB_ID = 1009;
+
+    /** Longest the service waits for the queued writes, in ms; well within a job's time limit. */
+    private static final long FLUSH_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Write the open batch of sales as soon as the queue gets to it and, if any command is still
+     * queued or running, keep the process alive until it is written. Returns at once, so call it
+     * from onPause.
+     */
+    public static void flushInBackground(Context context) {
+        if (CommandQueue.closeSales()) {
+            enqueueWork(context, CommandQueueService.class, JOB_ID,
+                    new Intent(context, CommandQueueService.class));
+        }
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        if (!new CommandQueue(getContentResolver()).flush(FLUSH_TIMEOUT_MILLIS)) {
+            Log.w(LOG_TAG, "Queued writes did not finish in " + FLUSH_TIMEOUT_MILLIS + " ms");
+        }
+    }
+}
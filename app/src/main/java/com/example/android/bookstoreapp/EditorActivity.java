@@ -1,6 +1,7 @@
 package com.example.android.bookstoreapp;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
@@ -23,13 +24,21 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.CommandQueue;
+
+import java.lang.ref.WeakReference;
 
 public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final int EXISTING_BOOK_LOADER = 0;
 
+    private static final int REQUEST_COVER = 1;
+
     private Uri mCurrentUri;
 
+    /** Runs the editor's writes off the main thread. */
+    private CommandQueue mCommands;
+
     private EditText mNameEditText;
     private EditText mPriceEditText;
     private EditText mQuantityEditText;
@@ -38,6 +47,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private boolean mEntryHasChanged = false;
 
+    /** The {@link BookEntry#COLUMN_VERSION} of the book as loaded, or -1 before it is loaded. */
+    private long mLoadedVersion = -1;
+
+    /** True while an update is running; the editor stays open until it is saved. */
+    private boolean mSaving;
+
     private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View view, MotionEvent motionEvent) {
@@ -52,6 +67,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         Intent intent = getIntent();
         mCurrentUri = intent.getData();
+        mCommands = new CommandQueue(getContentResolver());
 
         if (mCurrentUri == null) {
             setTitle(R.string.editor_activity_title_new_entry);
@@ -75,7 +91,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     }
 
-    private void saveEntry() {
+    /**
+     * Save the entry. A new entry is inserted in the background and the editor can close at once.
+     * An existing entry stays open until the update is saved, so a conflict can be resolved.
+     *
+     * @return whether the editor can close now
+     */
+    private boolean saveEntry() {
         String bookName = mNameEditText.getText().toString().trim();
         String bookPrice = mPriceEditText.getText().toString().trim();
         String bookQuantity = mQuantityEditText.getText().toString().trim();
@@ -86,7 +108,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 TextUtils.isEmpty(bookName) && TextUtils.isEmpty(bookPrice) &&
                 TextUtils.isEmpty(bookQuantity) && TextUtils.isEmpty(supplierName) &&
                 TextUtils.isEmpty(supplierPhone)) {
-            return;
+            return true;
         }
 
         ContentValues values = new ContentValues();
@@ -96,21 +118,156 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(BookEntry.COLUMN_SUPPLIER_NAME, supplierName);
         values.put(BookEntry.COLUMN_SUPPLIER_PHONE, supplierPhone);
 
+        Context context = getApplicationContext();
         if (mCurrentUri == null) {
-            Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
+            // The editor closes at once; the result is shown once the write has run.
+            mCommands.insert(BookEntry.CONTENT_URI, values,
+                    new ToastCallback(context, R.string.save_success, R.string.save_error));
+            return true;
+        }
 
-            if (newUri == null) {
-                Toast.makeText(this, R.string.save_error, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.save_success, Toast.LENGTH_SHORT).show();
+        // Only overwrite the book if nothing, such as a sale, changed it while it was edited.
+        if (!mSaving) {
+            mSaving = true;
+            mCommands.updateIfVersion(mCurrentUri, values, mLoadedVersion, new UpdateCallback(this));
+        }
+        return false;
+    }
+
+    /**
+     * Closes the editor once its update is saved, or shows the conflict to resolve. The editor is
+     * held weakly; once it is gone, the outcome is only shown as a toast.
+     */
+    private static class UpdateCallback implements CommandQueue.Callback {
+        private final WeakReference<EditorActivity> mActivity;
+        private final ToastCallback mToast;
+
+        UpdateCallback(EditorActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            mToast = new ToastCallback(activity.getApplicationContext(), R.string.update_success,
+                    R.string.update_error);
+        }
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            EditorActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                mToast.onCommandComplete(result);
+                return;
             }
-        } else {
-            int rowsAffected = getContentResolver().update(mCurrentUri, values, null, null);
+            activity.mSaving = false;
+            if (result.status == CommandQueue.Result.STATUS_CONFLICT && result.current != null) {
+                activity.showConflictDialog(result.current);
+                return;
+            }
+            mToast.onCommandComplete(result);
+            if ((result.isOk() && result.count != 0)
+                    || result.status == CommandQueue.Result.STATUS_CONFLICT) {
+                // Saved, or the book was deleted meanwhile and there is nothing left to edit.
+                activity.finish();
+            }
+        }
+    }
 
-            if (rowsAffected == 0) {
-                Toast.makeText(this, "Error with updating entry", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, "Entry updated", Toast.LENGTH_SHORT).show();
+    /**
+     * Show the book as it is now, changed since it was loaded, and let the user keep their edits
+     * over it, take it instead, or go on editing.
+     */
+    private void showConflictDialog(final ContentValues current) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.conflict_dialog_title);
+        builder.setMessage(getString(R.string.conflict_dialog_msg,
+                current.getAsString(BookEntry.COLUMN_PRODUCT_NAME),
+                current.getAsString(BookEntry.COLUMN_PRICE),
+                current.getAsString(BookEntry.COLUMN_QUANTITY),
+                current.getAsString(BookEntry.COLUMN_SUPPLIER_NAME),
+                current.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE)));
+        builder.setPositiveButton(R.string.conflict_overwrite, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int i) {
+                // Save the edits over the book as it is now.
+                mLoadedVersion = current.getAsLong(BookEntry.COLUMN_VERSION);
+                saveEntry();
+            }
+        });
+        builder.setNeutralButton(R.string.conflict_use_current, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int i) {
+                showBook(current.getAsString(BookEntry.COLUMN_PRODUCT_NAME),
+                        current.getAsInteger(BookEntry.COLUMN_PRICE),
+                        current.getAsInteger(BookEntry.COLUMN_QUANTITY),
+                        current.getAsString(BookEntry.COLUMN_SUPPLIER_NAME),
+                        current.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE),
+                        current.getAsLong(BookEntry.COLUMN_VERSION));
+                mEntryHasChanged = false;
+            }
+        });
+        builder.setNegativeButton(R.string.keep_editing, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int i) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Shows the outcome of a write as a toast, with the application context: the editor may be
+     * gone by the time the write has run, and the queue must not hold it.
+     */
+    private static class ToastCallback implements CommandQueue.Callback {
+        private final Context mContext;
+        private final int mSuccessMessage;
+        private final int mErrorMessage;
+
+        /**
+         * @param successMessage shown when a row was written, or 0 to show nothing
+         * @param errorMessage   shown when the write failed or matched no row
+         */
+        ToastCallback(Context context, int successMessage, int errorMessage) {
+            mContext = context;
+            mSuccessMessage = successMessage;
+            mErrorMessage = errorMessage;
+        }
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            if (result.status == CommandQueue.Result.STATUS_CONFLICT) {
+                Toast.makeText(mContext, R.string.save_conflict, Toast.LENGTH_LONG).show();
+            } else if (result.status == CommandQueue.Result.STATUS_INVALID) {
+                Toast.makeText(mContext, R.string.blank_entry, Toast.LENGTH_SHORT).show();
+            } else if (!result.isOk() || result.count == 0) {
+                Toast.makeText(mContext, mErrorMessage, Toast.LENGTH_SHORT).show();
+            } else if (mSuccessMessage != 0) {
+                Toast.makeText(mContext, mSuccessMessage, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    /**
+     * Moves the editor to the version its own cover change left the book at, so saving the edits
+     * does not conflict with the cover. Holds the editor weakly, like {@link UpdateCallback}.
+     */
+    private static class CoverCallback implements CommandQueue.Callback {
+        private final WeakReference<EditorActivity> mActivity;
+        private final ToastCallback mToast;
+        private final long mVersion;
+
+        CoverCallback(EditorActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            mToast = new ToastCallback(activity.getApplicationContext(), 0, R.string.cover_failed);
+            mVersion = activity.mLoadedVersion;
+        }
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            mToast.onCommandComplete(result);
+            EditorActivity activity = mActivity.get();
+            // Unless a save or a reload moved the editor to another version meanwhile.
+            if (activity != null && result.version != -1 && activity.mLoadedVersion == mVersion) {
+                activity.mLoadedVersion = result.version;
             }
         }
     }
@@ -128,10 +285,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        // If this is a new entry, hide the "Delete" menu item.
+        // If this is a new entry, hide the "Delete" and "Choose cover" menu items.
         if (mCurrentUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            menu.findItem(R.id.action_choose_cover).setVisible(false);
         }
         return true;
     }
@@ -149,8 +307,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                     mSupplierPhoneEditText.getText().toString().equals(""))
                     {
                     Toast.makeText(this, R.string.blank_entry, Toast.LENGTH_SHORT).show();
-                } else {
-                    saveEntry();
+                } else if (saveEntry()) {
                     finish();
                 }
                 return true;
@@ -158,6 +315,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             case R.id.action_delete:
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Choose cover" menu option
+            case R.id.action_choose_cover:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("image/*");
+                startActivityForResult(intent, REQUEST_COVER);
+                return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
                 if (!mEntryHasChanged) {
@@ -178,6 +342,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Copy the chosen image as the book's cover. The provider copies it in the background, and
+     * the catalog shows it once the book's change is notified.
+     */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_COVER) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                mCommands.setCover(mCurrentUri, data.getData(), mLoadedVersion, new CoverCallback(this));
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
     private void showUnsavedChangesDialog(DialogInterface.OnClickListener discardButtonClickListener) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage(R.string.unsaved_changes_dialog_msg);
@@ -240,12 +419,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private void deletePet() {
         if (mCurrentUri != null) {
-            int rowsDeleted = getContentResolver().delete(mCurrentUri, null, null);
-            if (rowsDeleted == 0) {
-                Toast.makeText(this, getString(R.string.editor_delete_entry_failed), Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getString(R.string.editor_delete_entry_successful), Toast.LENGTH_SHORT).show();
-            }
+            mCommands.delete(mCurrentUri, null, null, new ToastCallback(getApplicationContext(),
+                    R.string.editor_delete_entry_successful, R.string.editor_delete_entry_failed));
         }
         finish();
     }
@@ -292,7 +467,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 BookEntry.COLUMN_PRICE,
                 BookEntry.COLUMN_QUANTITY,
                 BookEntry.COLUMN_SUPPLIER_NAME,
-                BookEntry.COLUMN_SUPPLIER_PHONE};
+                BookEntry.COLUMN_SUPPLIER_PHONE,
+                BookEntry.COLUMN_VERSION};
 
         return new CursorLoader(this, mCurrentUri, projection, null, null, null);
     }
@@ -301,6 +477,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
+        // A reload while the user is editing keeps their edits, and the version they started
+        // from, so the save reports the conflict instead of reverting the other change.
+        if (mEntryHasChanged && mLoadedVersion != -1) {
+            return;
+        }
 
         if (cursor.moveToFirst()) {
             int nameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_NAME);
@@ -315,14 +496,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             String supplierName = cursor.getString(supplierNameColumnIndex);
             String supplierPhone = cursor.getString(supplierPhoneColumnIndex);
 
-            mNameEditText.setText(name);
-            mPriceEditText.setText(Integer.toString(price));
-            mQuantityEditText.setText(Integer.toString(quantity));
-            mSupplierNameEditText.setText(supplierName);
-            mSupplierPhoneEditText.setText(supplierPhone);
+            showBook(name, price, quantity, supplierName, supplierPhone,
+                    cursor.getLong(cursor.getColumnIndex(BookEntry.COLUMN_VERSION)));
         }
     }
 
+    private void showBook(String name, int price, int quantity, String supplierName,
+                          String supplierPhone, long version) {
+        mNameEditText.setText(name);
+        mPriceEditText.setText(Integer.toString(price));
+        mQuantityEditText.setText(Integer.toString(quantity));
+        mSupplierNameEditText.setText(supplierName);
+        mSupplierPhoneEditText.setText(supplierPhone);
+        mLoadedVersion = version;
+    }
+
     public void onLoaderReset(Loader<Cursor> loader) {
         mNameEditText.setText("");
         mPriceEditText.setText("");
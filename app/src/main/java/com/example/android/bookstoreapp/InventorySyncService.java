@@ -0,0 +1,158 @@
+package com.example.android.bookstoreapp;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.InventorySync;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Runs {@link InventorySync} in the background, every {@link #INTERVAL_MILLIS} or so while the
+ * device has a network, once an endpoint is set with {@link #setEndpoint}. A failed sync is
+ * simply tried again at the next interval: the outbox keeps every change not acknowledged.
+ * <p>
+ * The endpoint is set from the catalog's menu. The alarm is set when it is, and again at launch
+ * if the system dropped it, as it does on a reboot.
+ */
+public class InventorySyncService extends JobIntentService {
+
+    /**
+     * Starts a sync when the repeating alarm set by {@link #schedule} goes off.
+     */
+    public static class AlarmReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            syncNow(context);
+        }
+    }
+
+    private static final String LOG_TAG = InventorySyncService.class.getSimpleName();
+
+    private static final int JOB_ID = 1025;
+
+    /** Inexact, so the system batches the alarm with others to save battery. */
+    private static final long INTERVAL_MILLIS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    private static final String PREFERENCES_NAME = "inventory_sync";
+    private static final String KEY_ENDPOINT = "endpoint";
+    private static final String KEY_DEVICE_ID = "device_id";
+
+    /**
+     * Return the base URL of the REST endpoint to sync with, or null if there is none.
+     */
+    public static String getEndpoint(Context context) {
+        return preferences(context).getString(KEY_ENDPOINT, null);
+    }
+
+    /**
+     * Set the base URL of the REST endpoint to sync with and sync now, or stop syncing if it is
+     * null.
+     */
+    public static void setEndpoint(Context context, String endpoint) {
+        preferences(context).edit().putString(KEY_ENDPOINT, endpoint).apply();
+        if (endpoint == null) {
+            cancel(context);
+        } else {
+            schedule(context, endpoint);
+            syncNow(context);
+        }
+    }
+
+    /**
+     * Set the repeating alarm of the sync, unless there is no endpoint or the alarm is set
+     * already. Reads the preferences, so call it off the main thread.
+     */
+    public static void schedule(Context context) {
+        schedule(context, getEndpoint(context));
+    }
+
+    private static void schedule(Context context, String endpoint) {
+        if (endpoint == null || alarm(context, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + INTERVAL_MILLIS, INTERVAL_MILLIS, alarm(context, 0));
+    }
+
+    /**
+     * Cancel the repeating alarm of the sync, if it is set.
+     */
+    private static void cancel(Context context) {
+        PendingIntent alarm = alarm(context, PendingIntent.FLAG_NO_CREATE);
+        if (alarm != null) {
+            AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarms.cancel(alarm);
+            // So FLAG_NO_CREATE finds no alarm from now on.
+            alarm.cancel();
+        }
+    }
+
+    /**
+     * Return the intent of the repeating alarm. With {@link PendingIntent#FLAG_NO_CREATE}, return
+     * null if it is not set.
+     */
+    private static PendingIntent alarm(Context context, int flags) {
+        return PendingIntent.getBroadcast(context, 0, new Intent(context, AlarmReceiver.class), flags);
+    }
+
+    /**
+     * Start a sync in the background.
+     */
+    public static void syncNow(Context context) {
+        enqueueWork(context, InventorySyncService.class, JOB_ID,
+                new Intent(context, InventorySyncService.class));
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        SharedPreferences preferences = preferences(this);
+        String endpoint = preferences.getString(KEY_ENDPOINT, null);
+        if (endpoint == null || !isConnected()) {
+            return;
+        }
+
+        try {
+            InventorySync.Stats stats = new InventorySync(getContentResolver(), endpoint,
+                    deviceId(preferences)).sync();
+            Log.i(LOG_TAG, "Synced: " + stats);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to sync with " + endpoint, e);
+        }
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivity =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    /**
+     * Return the ID of this installation, creating it on first use.
+     */
+    private static String deviceId(SharedPreferences preferences) {
+        String deviceId = preferences.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            preferences.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        return deviceId;
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -1,39 +1,152 @@
 package com.example.android.bookstoreapp;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.webkit.URLUtil;
+import android.widget.EditText;
+import android.widget.Toast;
 
+import com.example.android.bookstoreapp.data.Book;
+import com.example.android.bookstoreapp.data.BookListLoader;
+import com.example.android.bookstoreapp.data.BookStoreAdapter;
 import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
-import com.example.android.bookstoreapp.data.BookStoreCursorAdapter;
-import com.example.android.bookstoreapp.data.BookStoreDbHelper;
+import com.example.android.bookstoreapp.data.BookStoreContract.MovementEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SearchEntry;
+import com.example.android.bookstoreapp.data.CatalogImporter;
+import com.example.android.bookstoreapp.data.CatalogSnapshot;
+import com.example.android.bookstoreapp.data.CommandQueue;
+import com.example.android.bookstoreapp.data.FirstScreenSnapshot;
+import com.example.android.bookstoreapp.data.LiveCatalogSnapshot;
 
-public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-    BookStoreCursorAdapter mCursorAdapter;
+public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Book>>,
+        BookStoreAdapter.OnBookClickListener {
 
+    BookStoreAdapter mAdapter;
+
+    /** Loader ID of the first page; page n uses BOOK_LOADER + n. */
     private static final int BOOK_LOADER = 0;
 
+    /** Number of rows per page of the catalog. */
+    private static final int PAGE_SIZE = 50;
+
+    /** Start loading the next page when fewer than this many loaded rows are left below the screen. */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /** Loader ID of the search results. Negative so it never collides with a page loader. */
+    private static final int SEARCH_LOADER = -1;
+
+    /** Delay between the last keystroke in the search box and running the search, in ms. */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+
+    private static final String ARG_AFTER_ID = "after_id";
+    private static final String ARG_THROUGH_ID = "through_id";
+    private static final String ARG_QUERY = "query";
+
+    /** Rows of the loaded pages, in catalog order. */
+    private final ArrayList<List<Book>> mPages = new ArrayList<>();
+
+    /** True once a page came back shorter than PAGE_SIZE, so there is nothing more to load. */
+    private boolean mLastPageLoaded;
+
+    /** True while the loader for the next page is running. */
+    private boolean mLoadingPage;
+
+    /**
+     * True if rows changed while the next page was loading. Its query may have run before the
+     * change, whose notification found no loaded row to patch, so the page is loaded again.
+     */
+    private boolean mLoadingPageStale;
+
+    /** The after_id of the page being loaded, or -1 for the first page. */
+    private long mLoadingAfterId = -1;
+
+    /** Receives the provider's change notifications and patches the changed rows. */
+    private ContentObserver mBooksObserver;
+
+    /** The search shown instead of the catalog, or null when not searching. */
+    private String mSearchQuery;
+
+    /** Rows of the current search, or null until they are loaded. */
+    private List<Book> mSearchResults;
+
+    private final Handler mSearchHandler = new Handler();
+
+    /** Number of queued sales per book ID that are not committed yet. */
+    private final Map<Long, Integer> mPendingSales = new HashMap<>();
+
+    /** Runs the search for mSearchQuery, posted after the user stops typing. */
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_QUERY, mSearchQuery);
+            getSupportLoaderManager().restartLoader(SEARCH_LOADER, args, MainActivity.this);
+        }
+    };
+
     private static final String LOG_TAG = "MainActivity.java";
 
-    private BookStoreDbHelper mDbHelper;
+    private static final int REQUEST_IMPORT_CATALOG = 1;
+
+    /** Runs the catalog's inserts, deletes and sales off the main thread. */
+    private CommandQueue mCommands;
+
+    /** Reported when sales fail, shown again rather than queued once per failed sale. */
+    private Toast mSalesFailedToast;
+
+    private View mEmptyView;
+
+    /** The first page as last saved in the snapshot, or null if there is none. */
+    private List<Book> mSnapshot;
+
+    /** True while the first page shows the snapshot, until the live page replaces it. */
+    private boolean mShowingSnapshot;
+
+    /** True once the first live page was shown and reported as fully drawn. */
+    private boolean mReportedFullyDrawn;
+
+    /**
+     * The catalog in memory for the stock totals, or null until they are first asked for. Kept
+     * current from then on, so asking again takes milliseconds.
+     */
+    private LiveCatalogSnapshot mCatalogSnapshot;
+
+    /** True from asking for the stock totals until they are shown. */
+    private boolean mStockTotalsRequested;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,33 +162,214 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             }
         });
 
-        ListView bookListView = findViewById(R.id.list);
+        RecyclerView bookListView = findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        bookListView.setLayoutManager(layoutManager);
 
-        View emptyView = findViewById(R.id.empty_view);
-        bookListView.setEmptyView(emptyView);
+        mEmptyView = findViewById(R.id.empty_view);
 
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mAdapter = new BookStoreAdapter(this);
+        bookListView.setAdapter(mAdapter);
+
+        bookListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = layoutManager.getItemCount();
+                if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= totalItemCount - 1 - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
 
-                Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
-                intent.setData(currentBookUri);
-                startActivity(intent);
+        mBooksObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onBooksChanged(uri);
+            }
+        };
+        getContentResolver().registerContentObserver(BookEntry.CONTENT_URI, true, mBooksObserver);
+
+        reloadPages();
+
+        // Show the first page as it was last time until the live page loads, instead of the
+        // empty view. Both the snapshot and the database are read off the main thread.
+        new ReadSnapshotTask(this).execute();
+
+        mCommands = new CommandQueue(getContentResolver());
+
+        if (savedInstanceState == null) {
+            compactLedgerInBackground(getContentResolver());
+            scheduleSyncInBackground(getApplicationContext());
+        }
+    }
+
+    /**
+     * Show the snapshot's rows in place of the first page, unless the live page or another
+     * snapshot got there first.
+     */
+    private void showSnapshot(List<Book> snapshot) {
+        if (mSnapshot == null) {
+            mSnapshot = snapshot;
+        }
+        if (snapshot == null || snapshot.isEmpty() || !mPages.isEmpty()) {
+            return;
+        }
+        mPages.add(new ArrayList<>(snapshot));
+        mShowingSnapshot = true;
+        showPages();
+    }
+
+    /**
+     * Show the stock totals from the catalog snapshot, starting to keep one on first use. The
+     * totals show once the first snapshot is built.
+     */
+    private void requestStockTotals() {
+        if (mCatalogSnapshot == null) {
+            mCatalogSnapshot = new LiveCatalogSnapshot(getContentResolver(), new SnapshotListener(this));
+            mCatalogSnapshot.start();
+        }
+        mStockTotalsRequested = true;
+        CatalogSnapshot snapshot = mCatalogSnapshot.get();
+        if (snapshot != null) {
+            showStockTotals(snapshot);
+        }
+    }
+
+    private void showStockTotals(CatalogSnapshot snapshot) {
+        mStockTotalsRequested = false;
+        CatalogSnapshot.Totals totals = snapshot.totals(null, true);
+        int outOfStock = snapshot.filter(CatalogSnapshot.quantityBelow(1), true).length;
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.stock_totals_title)
+                .setMessage(getString(R.string.stock_totals_msg, totals.bookCount, totals.units,
+                        outOfStock, totals.stockValue))
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Shows the stock totals asked for before the first snapshot was built. Static, so the
+     * snapshot's thread does not hold the activity.
+     */
+    private static class SnapshotListener implements LiveCatalogSnapshot.Listener {
+        private final WeakReference<MainActivity> mActivity;
+        private final Handler mMainHandler = new Handler();
+
+        SnapshotListener(MainActivity activity) {
+            mActivity = new WeakReference<>(activity);
+        }
+
+        @Override
+        public void onSnapshotChanged(final CatalogSnapshot snapshot) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    MainActivity activity = mActivity.get();
+                    if (activity != null && !activity.isFinishing() && activity.mStockTotalsRequested) {
+                        activity.showStockTotals(snapshot);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the sync alarm again if an endpoint is set and the system dropped the alarm, as it does
+     * on a reboot. Off the main thread, since it reads the preferences.
+     */
+    private static void scheduleSyncInBackground(final Context context) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                InventorySyncService.schedule(context);
             }
         });
+    }
 
-        mCursorAdapter = new BookStoreCursorAdapter(this, null);
-        bookListView.setAdapter(mCursorAdapter);
+    /**
+     * Ask for the URL of the server to sync the inventory with. A blank URL stops syncing.
+     */
+    private void showSyncEndpointDialog() {
+        View content = getLayoutInflater().inflate(R.layout.dialog_sync_endpoint, null);
+        final EditText endpointText = content.findViewById(R.id.sync_endpoint);
+        endpointText.setText(InventorySyncService.getEndpoint(this));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.sync_endpoint_title)
+                .setView(content)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setSyncEndpoint(endpointText.getText().toString().trim());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
-        getSupportLoaderManager().initLoader(BOOK_LOADER, null, this);
+    private void setSyncEndpoint(String endpoint) {
+        if (endpoint.isEmpty()) {
+            InventorySyncService.setEndpoint(this, null);
+            Toast.makeText(this, R.string.sync_endpoint_cleared, Toast.LENGTH_SHORT).show();
+        } else if (URLUtil.isHttpsUrl(endpoint) || URLUtil.isHttpUrl(endpoint)) {
+            InventorySyncService.setEndpoint(this, endpoint);
+            Toast.makeText(this, getString(R.string.sync_endpoint_set, endpoint),
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, R.string.sync_endpoint_invalid, Toast.LENGTH_SHORT).show();
+        }
+    }
 
-        mDbHelper = new BookStoreDbHelper(this);
+    /**
+     * Fold the stock movements older than the retention period into daily totals, so the ledger
+     * does not grow without bound. It only takes the database lock once, briefly, per launch.
+     */
+    private static void compactLedgerInBackground(final ContentResolver resolver) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bundle result = resolver.call(MovementEntry.CONTENT_URI, MovementEntry.METHOD_COMPACT,
+                            null, null);
+                    Log.v(LOG_TAG, result.getInt(MovementEntry.EXTRA_MOVEMENTS_FOLDED)
+                            + " stock movements folded into daily totals");
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Failed to compact the stock ledger", e);
+                }
+            }
+        });
     }
 
-    private void insertData() {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // The process may be killed once in the background, and a sale is only safe once it is
+        // in the database: write the queued sales now, without waiting for them here.
+        CommandQueueService.flushInBackground(this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveSnapshot();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mCatalogSnapshot != null) {
+            mCatalogSnapshot.stop();
+        }
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        getContentResolver().unregisterContentObserver(mBooksObserver);
+        super.onDestroy();
+    }
 
+    private void insertData() {
         ContentValues values = new ContentValues();
         values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book1");
         values.put(BookEntry.COLUMN_PRICE, 10);
@@ -83,57 +377,700 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier1");
         values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "1234567890");
 
-        Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
+        mCommands.insert(BookEntry.CONTENT_URI, values, new InsertDataCallback());
+    }
 
+    /**
+     * Logs a failed insert of the dummy data. Static, so the queue does not hold the activity.
+     */
+    private static class InsertDataCallback implements CommandQueue.Callback {
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            if (!result.isOk()) {
+                Log.e(LOG_TAG, "Failed to insert dummy data: " + result.message);
+            }
+        }
     }
 
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, SEARCH_DEBOUNCE_MILLIS);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Show the books matching the given text, after the given delay unless the text changes
+     * again first. Empty text goes back to the catalog.
+     */
+    private void search(String query, long delayMillis) {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+
+        if (query == null || query.trim().isEmpty()) {
+            if (mSearchQuery != null) {
+                mSearchQuery = null;
+                mSearchResults = null;
+                getSupportLoaderManager().destroyLoader(SEARCH_LOADER);
+                showPages();
+            }
+            return;
+        }
+
+        mSearchQuery = query;
+        mSearchHandler.postDelayed(mSearchRunnable, delayMillis);
+    }
+
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertData();
                 return true;
+            // Respond to a click on the "Stock totals" menu option
+            case R.id.action_stock_totals:
+                requestStockTotals();
+                return true;
+            // Respond to a click on the "Sync server" menu option
+            case R.id.action_sync_endpoint:
+                showSyncEndpointDialog();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllEntries();
                 return true;
+            // Respond to a click on the "Import catalog" menu option
+            case R.id.action_import_catalog:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                intent.putExtra(Intent.EXTRA_MIME_TYPES,
+                        new String[]{"text/csv", "text/comma-separated-values", "application/json"});
+                startActivityForResult(intent, REQUEST_IMPORT_CATALOG);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_CATALOG) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                Toast.makeText(this, R.string.import_started, Toast.LENGTH_SHORT).show();
+                // Not on the serial executor, which would hold back the catalog updates.
+                new ImportCatalogTask(this, data.getData())
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    public void onBookClick(Book book) {
+        Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+
+        Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, book.id);
+        intent.setData(currentBookUri);
+        startActivity(intent);
+    }
+
+    /**
+     * Queue the sale and show its quantity at once; the queue writes it in the background, in
+     * order with the other writes, such as a delete of the same book.
+     */
+    @Override
+    public void onSaleClick(Book book) {
+        if (book.quantity <= 0) {
+            return;
+        }
+
+        mCommands.sell(book.id, new SaleCallback(this, book.id));
+        Integer pending = mPendingSales.get(book.id);
+        mPendingSales.put(book.id, pending == null ? 1 : pending + 1);
+
+        int quantity = book.quantity - 1;
+        replaceBook(book.withQuantity(quantity));
+        mAdapter.updateQuantity(book.id, quantity);
+    }
+
+    /**
+     * Delivers the outcome of a sale to the activity, if it is still there. Static, and holding
+     * the activity weakly, so the queue does not keep a finished activity alive.
+     */
+    private static class SaleCallback implements CommandQueue.Callback {
+        private final WeakReference<MainActivity> mActivity;
+        private final long mId;
+
+        SaleCallback(MainActivity activity, long id) {
+            mActivity = new WeakReference<>(activity);
+            mId = id;
+        }
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            MainActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                return;
+            }
+            if (result.isOk()) {
+                activity.onSaleCommitted(mId, result.quantity);
+            } else {
+                activity.onSaleFailed(mId);
+            }
+        }
+    }
+
+    /**
+     * Show the committed quantity of the book once it has no more sales queued. A sale that did
+     * not go through, because another sale or edit emptied the stock first, is corrected here too.
+     */
+    private void onSaleCommitted(long id, int quantity) {
+        if (!removePendingSale(id)) {
+            return;
+        }
+        for (Book book : mAdapter.getBooks()) {
+            if (book.id == id) {
+                replaceBook(book.withQuantity(quantity));
+                break;
+            }
+        }
+        mAdapter.updateQuantity(id, quantity);
+    }
+
+    /**
+     * Give back the copy of a sale that could not be written, and tell the user it was not made.
+     */
+    private void onSaleFailed(long id) {
+        removePendingSale(id);
+        for (Book book : mAdapter.getBooks()) {
+            if (book.id == id) {
+                replaceBook(book.withQuantity(book.quantity + 1));
+                mAdapter.updateQuantity(id, book.quantity + 1);
+                break;
+            }
+        }
+        if (mSalesFailedToast == null) {
+            mSalesFailedToast = Toast.makeText(this, R.string.sales_failed, Toast.LENGTH_LONG);
+        }
+        mSalesFailedToast.show();
+    }
+
+    /**
+     * Count one queued sale of the given book as done. Return whether it was the last one.
+     */
+    private boolean removePendingSale(long id) {
+        Integer pending = mPendingSales.get(id);
+        if (pending == null || pending <= 1) {
+            mPendingSales.remove(id);
+            return true;
+        }
+        mPendingSales.put(id, pending - 1);
+        return false;
+    }
+
     private void deleteAllEntries() {
-        int rowsDeleted = getContentResolver().delete(BookEntry.CONTENT_URI, null, null);
-        Log.v(LOG_TAG, rowsDeleted + " rows deleted from bookstore database");
+        mCommands.delete(BookEntry.CONTENT_URI, null, null,
+                new DeleteAllCallback(getApplicationContext()));
+    }
+
+    /**
+     * Reports a failed delete of every entry with the application context, so the queue does not
+     * hold the activity.
+     */
+    private static class DeleteAllCallback implements CommandQueue.Callback {
+        private final Context mContext;
+
+        DeleteAllCallback(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            if (result.isOk()) {
+                Log.v(LOG_TAG, result.count + " rows deleted from bookstore database");
+            } else {
+                Log.e(LOG_TAG, "Failed to delete all entries: " + result.message);
+                Toast.makeText(mContext, R.string.delete_all_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    /**
+     * Handle a change notification from the provider. Deleted rows are dropped from the loaded
+     * pages; inserted and updated rows are queried by ID and patched in. Only a change that does
+     * not name its rows reloads the catalog.
+     */
+    private void onBooksChanged(Uri uri) {
+        if (mLoadingPage) {
+            mLoadingPageStale = true;
+        }
+
+        String operation = BookEntry.getChangeOperation(uri);
+        long[] ids = BookEntry.getChangeIds(uri);
+        if (operation == null || ids == null) {
+            reloadPages();
+            return;
+        }
+
+        if (BookEntry.OPERATION_DELETE.equals(operation)) {
+            removeBooks(ids);
+            if (mSearchResults != null) {
+                removeBooks(mSearchResults, ids);
+            }
+            showPages();
+        } else {
+            new FetchBooksTask(this, operation, ids).execute();
+        }
+    }
+
+    /**
+     * Drop the loaded pages and load the catalog again from the first page.
+     */
+    private void reloadPages() {
+        LoaderManager loaderManager = getSupportLoaderManager();
+        for (int page = 1; page < mPages.size(); page++) {
+            loaderManager.destroyLoader(BOOK_LOADER + page);
+        }
+        mPages.clear();
+        mLastPageLoaded = false;
+        mLoadingPage = true;
+        mLoadingPageStale = false;
+        mLoadingAfterId = -1;
+        loaderManager.restartLoader(BOOK_LOADER, null, this);
+    }
+
+    /**
+     * Replace the loaded copy of the given book, if it is loaded.
+     */
+    private void replaceBook(Book book) {
+        for (List<Book> page : mPages) {
+            if (page != null) {
+                replaceBook(page, book);
+            }
+        }
+        if (mSearchResults != null) {
+            replaceBook(mSearchResults, book);
+        }
+    }
+
+    private static void replaceBook(List<Book> books, Book book) {
+        for (int i = 0; i < books.size(); i++) {
+            if (books.get(i).id == book.id) {
+                books.set(i, book);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the books with the given IDs from the loaded pages.
+     */
+    private void removeBooks(long[] ids) {
+        for (List<Book> page : mPages) {
+            if (page != null) {
+                removeBooks(page, ids);
+            }
+        }
+    }
+
+    private static void removeBooks(List<Book> books, long[] ids) {
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        Iterator<Book> iterator = books.iterator();
+        while (iterator.hasNext()) {
+            if (Arrays.binarySearch(sortedIds, iterator.next().id) >= 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Patch the rows of a change notification into the loaded pages. {@code books} are the
+     * current rows of the changed IDs; an ID with no row was deleted since.
+     */
+    private void patchBooks(String operation, long[] ids, List<Book> books) {
+        Map<Long, Book> changed = new HashMap<>();
+        for (Book book : books) {
+            // Keep showing the sales that are still queued on top of the committed quantity.
+            Integer pending = mPendingSales.get(book.id);
+            if (pending != null) {
+                book = book.withQuantity(Math.max(0, book.quantity - pending));
+            }
+            changed.put(book.id, book);
+        }
+
+        // Updated rows, and rows that no longer exist, are patched where they are loaded.
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        for (List<Book> page : mPages) {
+            if (page != null) {
+                patchBooks(page, sortedIds, changed);
+            }
+        }
+        if (mSearchResults != null) {
+            patchBooks(mSearchResults, sortedIds, changed);
+        }
+        for (List<Book> page : mPages) {
+            if (page != null) {
+                for (Book book : page) {
+                    changed.remove(book.id);
+                }
+            }
+        }
+
+        // Pages are ordered by ID, so a new row belongs to the page whose range covers its ID.
+        // A row past the end of the loaded pages is left for the next page load to pick up.
+        if (BookEntry.OPERATION_INSERT.equals(operation)) {
+            for (Book book : changed.values()) {
+                insertBook(book);
+            }
+        }
+
+        showPages();
+    }
+
+    /**
+     * Replace or remove the loaded books whose IDs are in {@code sortedIds} by their new rows.
+     */
+    private static void patchBooks(List<Book> books, long[] sortedIds, Map<Long, Book> changed) {
+        for (int i = books.size() - 1; i >= 0; i--) {
+            long id = books.get(i).id;
+            if (Arrays.binarySearch(sortedIds, id) < 0) {
+                continue;
+            }
+            Book book = changed.get(id);
+            if (book == null) {
+                books.remove(i);
+            } else {
+                books.set(i, book);
+            }
+        }
+    }
+
+    /**
+     * Insert a new book into the loaded page covering its ID, if any page does.
+     */
+    private void insertBook(Book book) {
+        int lastPage = mPages.size() - 1;
+        if (lastPage < 0) {
+            return;
+        }
+
+        List<Book> lastBooks = mPages.get(lastPage);
+        if (!mLastPageLoaded && (lastBooks == null || lastBooks.isEmpty()
+                || book.id > lastBooks.get(lastBooks.size() - 1).id)) {
+            // Past the loaded end of the catalog; the next page load picks it up.
+            return;
+        }
+
+        for (int page = lastPage; page >= 0; page--) {
+            List<Book> books = mPages.get(page);
+            if (books == null) {
+                continue;
+            }
+
+            long lowerBound = Long.MIN_VALUE;
+            for (int earlier = page - 1; earlier >= 0 && lowerBound == Long.MIN_VALUE; earlier--) {
+                List<Book> earlierBooks = mPages.get(earlier);
+                if (earlierBooks != null && !earlierBooks.isEmpty()) {
+                    lowerBound = earlierBooks.get(earlierBooks.size() - 1).id;
+                }
+            }
+
+            if (book.id > lowerBound) {
+                int position = books.size();
+                while (position > 0 && books.get(position - 1).id > book.id) {
+                    position--;
+                }
+                books.add(position, book);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the loader of the page after the last loaded one, keyed by the ID of its last row.
+     */
+    private void loadNextPage() {
+        if (mSearchQuery != null || mLoadingPage || mLastPageLoaded || mPages.isEmpty()) {
+            return;
+        }
+
+        List<Book> lastPage = mPages.get(mPages.size() - 1);
+        if (lastPage == null || lastPage.isEmpty()) {
+            return;
+        }
+
+        Bundle args = new Bundle();
+        mLoadingAfterId = lastPage.get(lastPage.size() - 1).id;
+        args.putLong(ARG_AFTER_ID, mLoadingAfterId);
+        mLoadingPage = true;
+        mLoadingPageStale = false;
+        getSupportLoaderManager().restartLoader(BOOK_LOADER + mPages.size(), args, this);
+    }
+
+    /**
+     * Show the loaded pages as one list, or the search results while searching.
+     */
+    private void showPages() {
+        if (mSearchQuery != null) {
+            if (mSearchResults != null) {
+                mAdapter.submitList(new ArrayList<>(mSearchResults));
+                mEmptyView.setVisibility(View.GONE);
+            }
+            return;
+        }
+
+        ArrayList<Book> books = new ArrayList<>(mPages.size() * PAGE_SIZE);
+        for (List<Book> page : mPages) {
+            if (page != null) {
+                books.addAll(page);
+            }
+        }
+
+        mAdapter.submitList(books);
+        mEmptyView.setVisibility(books.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int i, @Nullable Bundle bundle) {
-        String [] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_PRODUCT_NAME,
-                BookEntry.COLUMN_PRICE,
-                BookEntry.COLUMN_QUANTITY,
-                BookEntry.COLUMN_SUPPLIER_NAME,
-                BookEntry.COLUMN_SUPPLIER_PHONE };
+    public Loader<List<Book>> onCreateLoader(int i, @Nullable Bundle bundle) {
+        if (i == SEARCH_LOADER) {
+            Uri searchUri = SearchEntry.buildSearchUri(bundle.getString(ARG_QUERY),
+                    SearchEntry.DEFAULT_LIMIT);
+            return new BookListLoader(this, searchUri);
+        }
+
+        long afterId = bundle == null ? -1 : bundle.getLong(ARG_AFTER_ID, -1);
+        long throughId = bundle == null ? -1 : bundle.getLong(ARG_THROUGH_ID, -1);
+        Uri pageUri = throughId >= 0 ? BookEntry.buildPageRangeUri(afterId, throughId)
+                : BookEntry.buildPageUri(afterId, PAGE_SIZE);
+
+        return new BookListLoader(this, pageUri);
+    }
 
-        return new CursorLoader(this, BookEntry.CONTENT_URI, projection, null, null, null);
+    /**
+     * Save the first page for the next launch, if it changed since the snapshot was read or saved.
+     * The page is only saved once it is live, never while it still shows the snapshot.
+     */
+    private void saveSnapshot() {
+        if (mShowingSnapshot || mPages.isEmpty() || mPages.get(0) == null) {
+            return;
         }
+        List<Book> firstPage = mPages.get(0);
+        if (!firstPage.equals(mSnapshot)) {
+            mSnapshot = new ArrayList<>(firstPage);
+            FirstScreenSnapshot.writeInBackground(this, mSnapshot);
+        }
+    }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(@NonNull Loader<List<Book>> loader, List<Book> data) {
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery != null) {
+                mSearchResults = new ArrayList<>(data);
+                showPages();
+            }
+            return;
+        }
+
+        int page = loader.getId() - BOOK_LOADER;
+        if (mLoadingPageStale && page == (mShowingSnapshot ? 0 : mPages.size())) {
+            reloadStalePage(page, data);
+            return;
+        }
+        while (mPages.size() <= page) {
+            mPages.add(null);
+        }
+        List<Book> books = new ArrayList<>(data);
+        mPages.set(page, books);
+
+        // Only the last page decides whether there is more to load; earlier pages can shrink
+        // after deletes without that meaning the catalog has ended.
+        if (page == mPages.size() - 1) {
+            mLastPageLoaded = books.size() < PAGE_SIZE;
+            mLoadingPage = false;
+        }
 
+        showPages();
+
+        if (page == 0) {
+            mShowingSnapshot = false;
+            saveSnapshot();
+            if (!mReportedFullyDrawn) {
+                mReportedFullyDrawn = true;
+                // Marks the end of a cold start in "am start -W" and the "Fully drawn" log line.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    reportFullyDrawn();
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a page again that rows changed under while it was loading. A full page is loaded
+     * again by the range of IDs it was read with, so it still ends where the next page starts
+     * whatever rows were inserted or deleted; a short page was the end of the catalog and is
+     * loaded again as such.
+     */
+    private void reloadStalePage(int page, List<Book> data) {
+        mLoadingPageStale = false;
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, mLoadingAfterId);
+        if (data.size() >= PAGE_SIZE) {
+            args.putLong(ARG_THROUGH_ID, data.get(data.size() - 1).id);
+        }
+        getSupportLoaderManager().restartLoader(BOOK_LOADER + page, args, this);
     }
 
     @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        mCursorAdapter.swapCursor(null);
+    public void onLoaderReset(@NonNull Loader<List<Book>> loader) {
+        if (loader.getId() == SEARCH_LOADER) {
+            return;
+        }
 
+        int page = loader.getId() - BOOK_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+    }
+
+    /**
+     * Imports a catalog file off the main thread, then reports the outcome. The catalog itself is
+     * refreshed by the provider's change notifications as each chunk commits.
+     */
+    private static class ImportCatalogTask extends AsyncTask<Void, Void, CatalogImporter.Result> {
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final Uri mUri;
+
+        ImportCatalogTask(MainActivity activity, Uri uri) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mUri = uri;
+        }
+
+        @Override
+        protected CatalogImporter.Result doInBackground(Void... voids) {
+            CatalogImporter importer = new CatalogImporter(mContext.getContentResolver());
+            try {
+                return importer.importFrom(mUri, new CatalogImporter.Listener() {
+                    @Override
+                    public void onProgress(int nextLine, int rowsImported, int rowsFailed) {
+                        Log.i(LOG_TAG, "Imported " + rowsImported + " books from " + mUri
+                                + ", " + rowsFailed + " rows failed");
+                    }
+
+                    @Override
+                    public void onLineError(int line, String message) {
+                        Log.w(LOG_TAG, "Line " + line + " of " + mUri + ": " + message);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to import " + mUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(CatalogImporter.Result result) {
+            MainActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                return;
+            }
+            if (result == null) {
+                Toast.makeText(activity, R.string.import_failed, Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(activity, activity.getString(R.string.import_finished,
+                        result.rowsImported, result.rowsFailed), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Reads the first screen snapshot off the main thread, then shows it if the live page has not
+     * loaded yet.
+     */
+    private static class ReadSnapshotTask extends AsyncTask<Void, Void, List<Book>> {
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+
+        ReadSnapshotTask(MainActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+        }
+
+        @Override
+        protected List<Book> doInBackground(Void... voids) {
+            return FirstScreenSnapshot.read(mContext);
+        }
+
+        @Override
+        protected void onPostExecute(List<Book> snapshot) {
+            MainActivity activity = mActivity.get();
+            if (activity != null && !activity.isFinishing()) {
+                activity.showSnapshot(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Queries the current rows of a change notification off the main thread, then patches them
+     * into the catalog.
+     */
+    private static class FetchBooksTask extends AsyncTask<Void, Void, List<Book>> {
+        private final WeakReference<MainActivity> mActivity;
+        private final ContentResolver mResolver;
+        private final String mOperation;
+        private final long[] mIds;
+
+        FetchBooksTask(MainActivity activity, String operation, long[] ids) {
+            mActivity = new WeakReference<>(activity);
+            mResolver = activity.getContentResolver();
+            mOperation = operation;
+            mIds = ids;
+        }
+
+        @Override
+        protected List<Book> doInBackground(Void... voids) {
+            StringBuilder selection = new StringBuilder(BookEntry._ID + " IN (");
+            String[] selectionArgs = new String[mIds.length];
+            for (int i = 0; i < mIds.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(mIds[i]);
+            }
+            selection.append(')');
+
+            Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, Book.PROJECTION,
+                    selection.toString(), selectionArgs, null);
+            try {
+                return Book.fromCursor(cursor);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<Book> books) {
+            MainActivity activity = mActivity.get();
+            if (activity != null && !activity.isFinishing()) {
+                activity.patchBooks(mOperation, mIds, books);
+            }
+        }
     }
 }
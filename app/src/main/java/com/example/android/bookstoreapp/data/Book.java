@@ -0,0 +1,96 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable row of the catalog list: the columns shown for one book.
+ */
+public final class Book {
+
+    /** Columns to query for a Book. */
+    public static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_COVER};
+
+    public final long id;
+    public final String name;
+    public final int price;
+    public final int quantity;
+
+    /** The book's {@link BookEntry#COLUMN_COVER}, or null if it has no cover. */
+    public final String cover;
+
+    public Book(long id, String name, int price, int quantity, String cover) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.quantity = quantity;
+        this.cover = cover;
+    }
+
+    /**
+     * Return a copy of this book with the given quantity.
+     */
+    public Book withQuantity(int quantity) {
+        return new Book(id, name, price, quantity, cover);
+    }
+
+    /**
+     * Read every row of the given cursor, which must contain the columns of {@link #PROJECTION}.
+     * Column indices are resolved once for the whole cursor.
+     */
+    public static List<Book> fromCursor(Cursor cursor) {
+        if (cursor == null) {
+            return new ArrayList<>();
+        }
+
+        int idColumnIndex = cursor.getColumnIndexOrThrow(BookEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_PRODUCT_NAME);
+        int priceColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_PRICE);
+        int quantityColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_QUANTITY);
+        int coverColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_COVER);
+
+        List<Book> books = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            books.add(new Book(cursor.getLong(idColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getInt(priceColumnIndex),
+                    cursor.getInt(quantityColumnIndex),
+                    cursor.getString(coverColumnIndex)));
+        }
+        return books;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Book)) {
+            return false;
+        }
+        Book other = (Book) o;
+        return id == other.id && price == other.price && quantity == other.quantity
+                && (name == null ? other.name == null : name.equals(other.name))
+                && (cover == null ? other.cover == null : cover.equals(other.cover));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        result = 31 * result + price;
+        result = 31 * result + quantity;
+        result = 31 * result + (cover == null ? 0 : cover.hashCode());
+        return result;
+    }
+}
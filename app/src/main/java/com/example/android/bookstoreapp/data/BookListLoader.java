@@ -0,0 +1,75 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+
+import java.util.List;
+
+/**
+ * Loads the books of a query URI, such as a catalog page, into a list and closes the cursor.
+ * Unlike a CursorLoader it does not requery on every change: the catalog screen patches the rows
+ * named by the provider's change notifications itself.
+ */
+public class BookListLoader extends AsyncTaskLoader<List<Book>> {
+
+    private final Uri mUri;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    private List<Book> mBooks;
+
+    public BookListLoader(Context context, Uri uri) {
+        this(context, uri, null, null);
+    }
+
+    public BookListLoader(Context context, Uri uri, String selection, String[] selectionArgs) {
+        super(context);
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    @Override
+    public List<Book> loadInBackground() {
+        Cursor cursor = getContext().getContentResolver().query(mUri, Book.PROJECTION,
+                mSelection, mSelectionArgs, null);
+        try {
+            return Book.fromCursor(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(List<Book> books) {
+        mBooks = books;
+        if (isStarted()) {
+            super.deliverResult(books);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mBooks != null) {
+            deliverResult(mBooks);
+        }
+        if (takeContentChanged() || mBooks == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        mBooks = null;
+    }
+}
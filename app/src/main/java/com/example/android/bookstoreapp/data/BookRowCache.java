@@ -0,0 +1,186 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of {@link BookEntry#VIEW_NAME} rows, keyed by book ID, used by
+ * {@link BookStoreProvider} to answer single-book queries without SQLite.
+ * <p>
+ * Rows are only cached whole, with every column in {@link #COLUMNS}. Writers invalidate after
+ * their transaction commits; each invalidation starts a new generation, and a row read under an
+ * older generation is not cached, so a read racing a write cannot put a stale row back.
+ */
+class BookRowCache {
+
+    /** Columns of a cached row, in order. */
+    static final String[] COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_ID,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_PHONE,
+            BookEntry.COLUMN_VERSION,
+            BookEntry.COLUMN_COVER};
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    private static final int SUPPLIER_ID_INDEX = COLUMN_LIST.indexOf(BookEntry.COLUMN_SUPPLIER_ID);
+
+    private final LruCache<Long, Object[]> mRows;
+
+    /** Incremented by every invalidation; guarded by this. */
+    private long mGeneration;
+
+    BookRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Return whether every column of the given projection can be served from a cached row.
+     * A null projection means all columns.
+     */
+    static boolean covers(String[] projection) {
+        return projection == null || COLUMN_LIST.containsAll(Arrays.asList(projection));
+    }
+
+    /**
+     * Return the generation to pass to {@link #putAll} for rows about to be read.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Return a cursor over the cached row of the given book with the given columns, or null if
+     * the row is not cached.
+     */
+    Cursor get(long id, String[] projection) {
+        Object[] row = mRows.get(id);
+        if (row == null) {
+            return null;
+        }
+
+        String[] columns = projection == null ? COLUMNS : projection;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = row[COLUMN_LIST.indexOf(columns[i])];
+        }
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    /**
+     * Copy the rows of a cursor with the {@link #COLUMNS} into a cursor with the given columns.
+     * The given cursor is closed.
+     */
+    static Cursor project(Cursor cursor, String[] projection) {
+        if (projection == null) {
+            return cursor;
+        }
+        try {
+            int[] indices = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                indices[i] = COLUMN_LIST.indexOf(projection[i]);
+            }
+            MatrixCursor projected = new MatrixCursor(projection, cursor.getCount());
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = valueOf(cursor, indices[i]);
+                }
+                projected.addRow(values);
+            }
+            return projected;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Object valueOf(Cursor cursor, int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return cursor.getString(index);
+        }
+    }
+
+    /**
+     * Cache every row of the given cursor, which must have the {@link #COLUMNS} in that order,
+     * unless the cache was invalidated since {@code generation}. The cursor is left before its
+     * first row.
+     */
+    void putAll(Cursor cursor, long generation) {
+        cursor.moveToPosition(-1);
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    row[i] = valueOf(cursor, i);
+                }
+                mRows.put(cursor.getLong(0), row);
+            }
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    /**
+     * Drop the cached rows of the given books, or every row if {@code ids} is null.
+     */
+    synchronized void invalidate(long[] ids) {
+        mGeneration++;
+        if (ids == null) {
+            mRows.evictAll();
+            return;
+        }
+        for (long id : ids) {
+            mRows.remove(id);
+        }
+    }
+
+    /**
+     * Drop the cached rows of every book of the given supplier.
+     */
+    synchronized void invalidateSupplier(long supplierId) {
+        mGeneration++;
+        for (Map.Entry<Long, Object[]> entry : mRows.snapshot().entrySet()) {
+            Object value = entry.getValue()[SUPPLIER_ID_INDEX];
+            if (value instanceof Long && (Long) value == supplierId) {
+                mRows.remove(entry.getKey());
+            }
+        }
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int evictionCount() {
+        return mRows.evictionCount();
+    }
+
+    int size() {
+        return mRows.size();
+    }
+}
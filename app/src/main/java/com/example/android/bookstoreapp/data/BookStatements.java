@@ -0,0 +1,229 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.MovementEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SyncEntry;
+
+/**
+ * Precompiled statements for the provider's frequent writes to the books table and the stock
+ * ledger, so they are not built and compiled again on every call.
+ * <p>
+ * Each statement is bound and run while holding its lock. Callers must already be inside a
+ * transaction on the database: the transaction holds the only write connection, so at most one
+ * thread ever waits for the lock, and never while holding something another thread needs.
+ * <p>
+ * Each compiled statement holds a reference on its database; {@link #close} releases them, and
+ * must be called before the database is closed or when the statements are replaced.
+ */
+class BookStatements {
+
+    private final SQLiteDatabase mDatabase;
+
+    private final SQLiteStatement mInsert;
+    private final SQLiteStatement mUpdate;
+    private final SQLiteStatement mSell;
+    private final SQLiteStatement mRestock;
+    private final SQLiteStatement mRecordMovement;
+    private final SQLiteStatement mRecordAdjustment;
+    private final SQLiteStatement mReadQuantity;
+    private final SQLiteStatement mReadVersion;
+    private final SQLiteStatement mReadSupplierId;
+    private final SQLiteStatement mHasPendingChange;
+    private final SQLiteStatement mDelete;
+
+    BookStatements(SQLiteDatabase database) {
+        mDatabase = database;
+        mInsert = database.compileStatement("INSERT INTO " + BookEntry.TABLE_NAME + "("
+                + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", "
+                + BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_ID
+                + ") VALUES (?, ?, ?, ?)");
+        mUpdate = database.compileStatement("UPDATE " + BookEntry.TABLE_NAME + " SET "
+                + BookEntry.COLUMN_PRODUCT_NAME + " = ?, " + BookEntry.COLUMN_PRICE + " = ?, "
+                + BookEntry.COLUMN_QUANTITY + " = ?, " + BookEntry.COLUMN_SUPPLIER_ID + " = ?, "
+                + BookEntry.COLUMN_VERSION + " = " + BookEntry.COLUMN_VERSION + " + 1"
+                + " WHERE " + BookEntry._ID + " = ?");
+        mSell = database.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                + " SET " + BookEntry.COLUMN_QUANTITY + " = " + BookEntry.COLUMN_QUANTITY + " - 1, "
+                + BookEntry.COLUMN_VERSION + " = " + BookEntry.COLUMN_VERSION + " + 1"
+                + " WHERE " + BookEntry._ID + " = ? AND " + BookEntry.COLUMN_QUANTITY + " > 0");
+        mRestock = database.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                + " SET " + BookEntry.COLUMN_QUANTITY + " = " + BookEntry.COLUMN_QUANTITY + " + ?, "
+                + BookEntry.COLUMN_VERSION + " = " + BookEntry.COLUMN_VERSION + " + 1"
+                + " WHERE " + BookEntry._ID + " = ?");
+        mRecordMovement = database.compileStatement("INSERT INTO " + MovementEntry.TABLE_NAME + "("
+                + MovementEntry.COLUMN_BOOK_ID + ", " + MovementEntry.COLUMN_KIND + ", "
+                + MovementEntry.COLUMN_DELTA + ", " + MovementEntry.COLUMN_QUANTITY_AFTER + ", "
+                + MovementEntry.COLUMN_CREATED_AT + ") VALUES (?, ?, ?, ?, ?)");
+        mRecordAdjustment = database.compileStatement("INSERT INTO " + MovementEntry.TABLE_NAME + "("
+                + MovementEntry.COLUMN_BOOK_ID + ", " + MovementEntry.COLUMN_KIND + ", "
+                + MovementEntry.COLUMN_DELTA + ", " + MovementEntry.COLUMN_QUANTITY_AFTER + ", "
+                + MovementEntry.COLUMN_CREATED_AT + ") SELECT " + BookEntry._ID + ", '"
+                + MovementEntry.KIND_ADJUSTMENT + "', ?1 - " + BookEntry.COLUMN_QUANTITY + ", ?1, ?2 FROM "
+                + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " = ?3 AND "
+                + BookEntry.COLUMN_QUANTITY + " <> ?1");
+        mReadQuantity = database.compileStatement("SELECT IFNULL(MAX("
+                + BookEntry.COLUMN_QUANTITY + "), 0) FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + " = ?");
+        mReadVersion = database.compileStatement("SELECT IFNULL(MAX("
+                + BookEntry.COLUMN_VERSION + "), -1) FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + " = ?");
+        mReadSupplierId = database.compileStatement("SELECT IFNULL(MAX("
+                + BookEntry.COLUMN_SUPPLIER_ID + "), -1) FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + " = ?");
+        mHasPendingChange = database.compileStatement("SELECT COUNT(*) FROM " + SyncEntry.TABLE_NAME
+                + " WHERE " + SyncEntry.COLUMN_BOOK_ID + " = ? AND "
+                + SyncEntry.COLUMN_REJECTED + " = 0");
+        mDelete = database.compileStatement("DELETE FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + " = ?");
+    }
+
+    /**
+     * Return whether these statements were compiled for the given database.
+     */
+    boolean isFor(SQLiteDatabase database) {
+        return mDatabase == database;
+    }
+
+    /**
+     * Insert a full book row. Return its ID.
+     */
+    long insert(String name, long price, long quantity, long supplierId) {
+        synchronized (mInsert) {
+            mInsert.bindString(1, name);
+            mInsert.bindLong(2, price);
+            mInsert.bindLong(3, quantity);
+            mInsert.bindLong(4, supplierId);
+            return mInsert.executeInsert();
+        }
+    }
+
+    /**
+     * Replace every column of the given book. Return the number of rows updated.
+     */
+    int update(long id, String name, long price, long quantity, long supplierId) {
+        synchronized (mUpdate) {
+            mUpdate.bindString(1, name);
+            mUpdate.bindLong(2, price);
+            mUpdate.bindLong(3, quantity);
+            mUpdate.bindLong(4, supplierId);
+            mUpdate.bindLong(5, id);
+            return mUpdate.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Take one copy of the given book out of stock, unless it has none. Return whether it did.
+     */
+    boolean sell(long id) {
+        synchronized (mSell) {
+            mSell.bindLong(1, id);
+            return mSell.executeUpdateDelete() == 1;
+        }
+    }
+
+    /**
+     * Add copies to the stock of the given book. Return whether the book exists.
+     */
+    boolean restock(long id, long copies) {
+        synchronized (mRestock) {
+            mRestock.bindLong(1, copies);
+            mRestock.bindLong(2, id);
+            return mRestock.executeUpdateDelete() == 1;
+        }
+    }
+
+    /**
+     * Append a movement to the stock ledger.
+     */
+    void recordMovement(long bookId, String kind, long delta, long quantityAfter, long createdAt) {
+        synchronized (mRecordMovement) {
+            mRecordMovement.bindLong(1, bookId);
+            mRecordMovement.bindString(2, kind);
+            mRecordMovement.bindLong(3, delta);
+            mRecordMovement.bindLong(4, quantityAfter);
+            mRecordMovement.bindLong(5, createdAt);
+            mRecordMovement.executeInsert();
+        }
+    }
+
+    /**
+     * Append an adjustment to the stock ledger if the given book exists and its quantity is about
+     * to be set to a different value. Must run before the update, in its transaction.
+     */
+    void recordAdjustment(long bookId, long quantity, long createdAt) {
+        synchronized (mRecordAdjustment) {
+            mRecordAdjustment.bindLong(1, quantity);
+            mRecordAdjustment.bindLong(2, createdAt);
+            mRecordAdjustment.bindLong(3, bookId);
+            mRecordAdjustment.executeInsert();
+        }
+    }
+
+    /**
+     * Return the quantity of the given book, or 0 if it does not exist.
+     */
+    long readQuantity(long id) {
+        synchronized (mReadQuantity) {
+            mReadQuantity.bindLong(1, id);
+            return mReadQuantity.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Return the version of the given book, or -1 if it does not exist.
+     */
+    long readVersion(long id) {
+        synchronized (mReadVersion) {
+            mReadVersion.bindLong(1, id);
+            return mReadVersion.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Return the supplier ID of the given book, or -1 if it does not exist.
+     */
+    long readSupplierId(long id) {
+        synchronized (mReadSupplierId) {
+            mReadSupplierId.bindLong(1, id);
+            return mReadSupplierId.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Return whether the given book has a change in the sync outbox the server has neither
+     * acknowledged nor rejected yet.
+     */
+    boolean hasPendingChange(long id) {
+        synchronized (mHasPendingChange) {
+            mHasPendingChange.bindLong(1, id);
+            return mHasPendingChange.simpleQueryForLong() != 0;
+        }
+    }
+
+    /**
+     * Delete the given book. Return the number of rows deleted.
+     */
+    int delete(long id) {
+        synchronized (mDelete) {
+            mDelete.bindLong(1, id);
+            return mDelete.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Release every statement. None of them can be run afterwards.
+     */
+    void close() {
+        SQLiteStatement[] statements = {mInsert, mUpdate, mSell, mRestock, mRecordMovement,
+                mRecordAdjustment, mReadQuantity, mReadVersion, mReadSupplierId, mHasPendingChange,
+                mDelete};
+        for (SQLiteStatement statement : statements) {
+            synchronized (statement) {
+                statement.close();
+            }
+        }
+    }
+}
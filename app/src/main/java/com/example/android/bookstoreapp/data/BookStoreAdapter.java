@@ -0,0 +1,296 @@
+package com.example.android.bookstoreapp.data;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.bookstoreapp.R;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * {@link RecyclerView.Adapter} for the catalog list. New lists are diffed against the current one
+ * on a background thread, so a change to one book only rebinds that book's row.
+ */
+public class BookStoreAdapter extends RecyclerView.Adapter<BookStoreAdapter.BookViewHolder> {
+
+    /**
+     * Receives clicks on a row and on its sale button.
+     */
+    public interface OnBookClickListener {
+        void onBookClick(Book book);
+
+        void onSaleClick(Book book);
+    }
+
+    /** Payload of a change that only touched the quantity of a book. */
+    private static final Object PAYLOAD_QUANTITY = new Object();
+
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final OnBookClickListener mListener;
+
+    /** Cover thumbnails of the rows, set when the first row is created. */
+    private CoverThumbnails mThumbnails;
+
+    private List<Book> mBooks = Collections.emptyList();
+
+    /** Incremented by every submitList, so a diff that finishes after a newer one is dropped. */
+    private int mGeneration;
+
+    public BookStoreAdapter(OnBookClickListener listener) {
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the shown books with the given list. The diff runs off the main thread and is
+     * applied when it finishes.
+     */
+    public void submitList(final List<Book> books) {
+        final int generation = ++mGeneration;
+        final List<Book> oldBooks = mBooks;
+
+        if (oldBooks.isEmpty() || books.isEmpty()) {
+            mBooks = books;
+            notifyDataSetChanged();
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result =
+                        DiffUtil.calculateDiff(new BookDiffCallback(oldBooks, books), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mBooks = books;
+                        result.dispatchUpdatesTo(BookStoreAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show a new quantity for the book with the given ID, without waiting for the next list.
+     * Only that book's row is rebound.
+     */
+    public void updateQuantity(long id, int quantity) {
+        for (int position = 0; position < mBooks.size(); position++) {
+            Book book = mBooks.get(position);
+            if (book.id == id) {
+                if (book.quantity != quantity) {
+                    List<Book> books = new ArrayList<>(mBooks);
+                    books.set(position, book.withQuantity(quantity));
+                    mBooks = books;
+                    notifyItemChanged(position, PAYLOAD_QUANTITY);
+                }
+                return;
+            }
+        }
+    }
+
+    public List<Book> getBooks() {
+        return mBooks;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mBooks.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mBooks.get(position).id;
+    }
+
+    @NonNull
+    @Override
+    public BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        if (mThumbnails == null) {
+            mThumbnails = CoverThumbnails.get(parent.getContext());
+        }
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new BookViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
+        Book book = mBooks.get(position);
+        holder.nameTextView.setText(book.name);
+        holder.priceTextView.setText(String.valueOf(book.price));
+        holder.quantityTextView.setText(String.valueOf(book.quantity));
+        holder.bindCover(book);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull BookViewHolder holder) {
+        holder.unbindCover();
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || payloads.contains(null)) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_QUANTITY) {
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+        holder.quantityTextView.setText(String.valueOf(mBooks.get(position).quantity));
+    }
+
+    /**
+     * Holds the views of one row, one click listener for the row and its sale button, and the load
+     * of its cover thumbnail.
+     */
+    class BookViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener,
+            CoverThumbnails.Target {
+        final ImageView coverImageView;
+        final TextView nameTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final Button saleButton;
+
+        /** The cover the row shows or is loading, or null. */
+        private String mCover;
+
+        /** The load of {@link #mCover}, or null if it is shown or there is none. */
+        private Future<?> mCoverLoad;
+
+        BookViewHolder(View itemView) {
+            super(itemView);
+            coverImageView = itemView.findViewById(R.id.cover);
+            nameTextView = itemView.findViewById(R.id.name);
+            priceTextView = itemView.findViewById(R.id.price_value);
+            quantityTextView = itemView.findViewById(R.id.quantity_value);
+            saleButton = itemView.findViewById(R.id.sale_button);
+
+            itemView.setOnClickListener(this);
+            saleButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || mListener == null) {
+                return;
+            }
+
+            Book book = mBooks.get(position);
+            if (view == saleButton) {
+                mListener.onSaleClick(book);
+            } else {
+                mListener.onBookClick(book);
+            }
+        }
+
+        /**
+         * Show the book's cover thumbnail from memory, or start loading it.
+         */
+        void bindCover(Book book) {
+            if (book.cover != null && book.cover.equals(mCover)) {
+                return;
+            }
+            unbindCover();
+            if (book.cover == null) {
+                return;
+            }
+            mCover = book.cover;
+            Bitmap thumbnail = mThumbnails.getCached(book.cover);
+            if (thumbnail != null) {
+                coverImageView.setImageBitmap(thumbnail);
+            } else {
+                mCoverLoad = mThumbnails.load(book.id, book.cover, this);
+            }
+        }
+
+        /**
+         * Cancel the load of the cover, if any, and clear it.
+         */
+        void unbindCover() {
+            if (mCoverLoad != null) {
+                mCoverLoad.cancel(false);
+                mCoverLoad = null;
+            }
+            mCover = null;
+            coverImageView.setImageDrawable(null);
+        }
+
+        @Override
+        public void onThumbnailLoaded(String cover, Bitmap thumbnail) {
+            // A load that finished as the row moved on to another book is dropped.
+            if (cover.equals(mCover)) {
+                mCoverLoad = null;
+                coverImageView.setImageBitmap(thumbnail);
+            }
+        }
+    }
+
+    private static class BookDiffCallback extends DiffUtil.Callback {
+        private final List<Book> mOldBooks;
+        private final List<Book> mNewBooks;
+
+        BookDiffCallback(List<Book> oldBooks, List<Book> newBooks) {
+            mOldBooks = oldBooks;
+            mNewBooks = newBooks;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldBooks.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewBooks.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldBooks.get(oldItemPosition).id == mNewBooks.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldBooks.get(oldItemPosition).equals(mNewBooks.get(newItemPosition));
+        }
+
+        @Override
+        public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+            Book oldBook = mOldBooks.get(oldItemPosition);
+            Book newBook = mNewBooks.get(newItemPosition);
+            if (oldBook.price == newBook.price
+                    && (oldBook.name == null ? newBook.name == null : oldBook.name.equals(newBook.name))
+                    && (oldBook.cover == null ? newBook.cover == null : oldBook.cover.equals(newBook.cover))) {
+                return PAYLOAD_QUANTITY;
+            }
+            return null;
+        }
+    }
+}
@@ -1,23 +1,146 @@
 package com.example.android.bookstoreapp.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.List;
+
 public final class BookStoreContract {
 
     public static final String CONTENT_AUTHORITY = "com.example.android.bookstoreapp";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_BOOKSTORE = "bookstore";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_SUPPLIERS = "suppliers";
+    /** The books of one supplier, under its supplier URI. */
+    public static final String PATH_BOOKS = "books";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_LOW_STOCK = "low_stock";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_MOVEMENTS = "stock_movements";
+    public static final String PATH_DAILY = "daily";
+    public static final String PATH_COVER = "cover";
+    public static final String PATH_STORES = "stores";
+    public static final String PATH_SYNC_OUTBOX = "sync_outbox";
+
+    /**
+     * Stores, each with its own catalog in its own database file, so a large store never holds
+     * the locks or the caches of a small one.
+     * <p>
+     * Every URI of this contract addresses the {@link #DEFAULT_STORE}; {@link #buildStoreUri}
+     * turns it into the same URI of another store, by adding a {@link #PATH_STORES} segment and the
+     * store name. Change notifications of a store are sent on its own URIs. A store is created by
+     * the first request that addresses it.
+     * <p>
+     * {@link #CONTENT_URI} lists the stores, one {@link #COLUMN_STORE} per row. The search, low
+     * stock and summary URIs of {@link #ALL_STORES} query every store in parallel: search and low
+     * stock rows are merged in the order of a single store's, each with its {@link #COLUMN_STORE},
+     * and the summary is the sum of the stores' totals.
+     */
+    public static final class StoreEntry {
+        /** The store of the URIs without a store segment. Its database is the original one. */
+        public static final String DEFAULT_STORE = "default";
+
+        /** Pseudo store whose search, low stock and summary URIs cover every store. */
+        public static final String ALL_STORES = "all";
+
+        /** Name of the store a row belongs to. */
+        public static final String COLUMN_STORE = "store";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STORES);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STORES;
+
+        /**
+         * Extra of every {@link android.content.ContentResolver#call} method naming the store it
+         * runs in. Without it, methods run in the {@link #DEFAULT_STORE}.
+         */
+        public static final String EXTRA_STORE = "store";
+
+        /**
+         * Return whether the given name can name a store: 1 to 32 lowercase letters, digits or
+         * underscores. {@link #ALL_STORES} is not a store.
+         */
+        public static boolean isValidName(String store) {
+            return store != null && store.matches("[a-z0-9_]{1,32}") && !ALL_STORES.equals(store);
+        }
+
+        /**
+         * Return the given URI of this contract, which addresses the default store, rewritten to
+         * address the given store or {@link #ALL_STORES}.
+         */
+        public static Uri buildStoreUri(String store, Uri uri) {
+            if (!isValidName(store) && !ALL_STORES.equals(store)) {
+                throw new IllegalArgumentException("Invalid store name " + store);
+            }
+            if (DEFAULT_STORE.equals(store)) {
+                return uri;
+            }
+            Uri.Builder builder = uri.buildUpon().path(PATH_STORES).appendPath(store);
+            for (String segment : uri.getPathSegments()) {
+                builder.appendPath(segment);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Return the store addressed by the given URI: its store segment, {@link #DEFAULT_STORE}
+         * if it has none, or {@link #ALL_STORES}.
+         */
+        public static String getStore(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() < 2 || !PATH_STORES.equals(segments.get(0))) {
+                return DEFAULT_STORE;
+            }
+            return segments.get(1);
+        }
+    }
 
     public static abstract class BookEntry implements BaseColumns {
         public static final String TABLE_NAME = "books";
+
+        /**
+         * View of the books joined with their suppliers, with the flat columns of the original
+         * books table. All book queries read it.
+         */
+        public static final String VIEW_NAME = "book_details";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PRODUCT_NAME = "Product_Name";
         public static final String COLUMN_PRICE = "Price";
         public static final String COLUMN_QUANTITY = "Quantity";
-        public static final String COLUMN_SUPPLIER_NAME = "Supplier_Name";
-        public static final String COLUMN_SUPPLIER_PHONE = "Supplier_Phone_Number";
+
+        /** The {@link SupplierEntry#_ID} of the book's supplier. */
+        public static final String COLUMN_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Incremented by every write to the book row, starting at 1. Read-only: pass it to
+         * {@link #METHOD_UPDATE_IF_VERSION} to update a book only if nobody changed it since.
+         */
+        public static final String COLUMN_VERSION = "version";
+
+        /**
+         * Name of the book's cover image file, or null if it has none. Read-only: the provider
+         * keeps the image bytes in its own files, out of the database, and serves them at
+         * {@link #buildCoverUri}. Set a cover with {@link #METHOD_SET_COVER}. Every new cover gets
+         * a new name, so the name is also a cache key for the image.
+         */
+        public static final String COLUMN_COVER = "cover";
+
+        /**
+         * The supplier's name, joined from {@link SupplierEntry}. On insert or update the book is
+         * linked to the supplier of that name, which is created if it does not exist yet.
+         */
+        public static final String COLUMN_SUPPLIER_NAME = SupplierEntry.COLUMN_SUPPLIER_NAME;
+
+        /**
+         * The supplier's phone number, joined from {@link SupplierEntry}. Writing it through a book
+         * changes the phone number of the book's supplier.
+         */
+        public static final String COLUMN_SUPPLIER_PHONE = SupplierEntry.COLUMN_SUPPLIER_PHONE;
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BOOKSTORE);
 
@@ -26,5 +149,630 @@ public final class BookStoreContract {
 
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKSTORE;
+
+        /** The type of image a cover can be set from; each cover is one of the COVER_TYPE_ types. */
+        public static final String COVER_MIME_TYPE = "image/*";
+
+        public static final String COVER_TYPE_JPEG = "image/jpeg";
+        public static final String COVER_TYPE_PNG = "image/png";
+        public static final String COVER_TYPE_GIF = "image/gif";
+        public static final String COVER_TYPE_WEBP = "image/webp";
+
+        /**
+         * Build the URI of the given book's cover image, which can be opened for reading. Opening
+         * it throws FileNotFoundException if the book has no cover.
+         */
+        public static Uri buildCoverUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_COVER)
+                    .build();
+        }
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} limiting the number of rows returned.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that only returns rows with an ID greater than
+         * the given one. Used as the key of keyset pagination: pass the last ID of the previous
+         * page. Paged queries are always ordered by ID.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that only returns rows with an ID up to and
+         * including the given one. With {@link #QUERY_PARAMETER_AFTER_ID} it bounds a page by its
+         * range of IDs instead of its number of rows, so querying the page again after rows were
+         * inserted or deleted neither skips a row nor returns a row of the next page.
+         */
+        public static final String QUERY_PARAMETER_THROUGH_ID = "through_id";
+
+        /**
+         * Build the URI of a page of at most {@code limit} books, following the book with ID
+         * {@code afterId}, or starting at the first book if {@code afterId} is negative.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (afterId >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the URI of the page of the books with an ID after {@code afterId}, or from the
+         * first book if it is negative, up to and including {@code throughId}.
+         */
+        public static Uri buildPageRangeUri(long afterId, long throughId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_THROUGH_ID, String.valueOf(throughId));
+            if (afterId >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Query parameter of a change notification naming the kind of change: one of
+         * {@link #OPERATION_INSERT}, {@link #OPERATION_UPDATE} or {@link #OPERATION_DELETE}.
+         */
+        public static final String QUERY_PARAMETER_OPERATION = "op";
+
+        /**
+         * Query parameter of a change notification listing the comma separated IDs of the changed
+         * rows, when more than one row changed. A single row change is notified on its item URI.
+         */
+        public static final String QUERY_PARAMETER_IDS = "ids";
+
+        public static final String OPERATION_INSERT = "insert";
+        public static final String OPERATION_UPDATE = "update";
+        public static final String OPERATION_DELETE = "delete";
+
+        /**
+         * Build the URI the provider notifies when the given rows were inserted, updated or
+         * deleted. Observers of {@link #CONTENT_URI} receive it and can patch just those rows.
+         */
+        public static Uri buildChangeUri(String operation, long[] ids) {
+            Uri.Builder builder;
+            if (ids.length == 1) {
+                builder = ContentUris.withAppendedId(CONTENT_URI, ids[0]).buildUpon();
+            } else {
+                StringBuilder joined = new StringBuilder();
+                for (long id : ids) {
+                    if (joined.length() > 0) {
+                        joined.append(',');
+                    }
+                    joined.append(id);
+                }
+                builder = CONTENT_URI.buildUpon()
+                        .appendQueryParameter(QUERY_PARAMETER_IDS, joined.toString());
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_OPERATION, operation).build();
+        }
+
+        /**
+         * Return the kind of change carried by a notification URI, or null if the notification
+         * does not say which rows changed and observers should reload everything.
+         */
+        public static String getChangeOperation(Uri uri) {
+            return uri == null ? null : uri.getQueryParameter(QUERY_PARAMETER_OPERATION);
+        }
+
+        /**
+         * Return the IDs of the rows a notification URI says have changed, or null if it does not
+         * say.
+         */
+        public static long[] getChangeIds(Uri uri) {
+            if (getChangeOperation(uri) == null) {
+                return null;
+            }
+
+            String ids = uri.getQueryParameter(QUERY_PARAMETER_IDS);
+            if (ids == null) {
+                return new long[]{ContentUris.parseId(uri)};
+            }
+
+            String[] parts = ids.split(",");
+            long[] result = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                result[i] = Long.parseLong(parts[i]);
+            }
+            return result;
+        }
+
+        /**
+         * {@link android.content.ContentResolver#call} method that sells one copy of a book.
+         * The argument is the book ID. The result holds {@link #EXTRA_QUANTITY} with the quantity
+         * left after the sale, and {@link #EXTRA_SOLD} telling whether a copy was sold (false when
+         * the book is out of stock or does not exist).
+         */
+        public static final String METHOD_SELL = "sell";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that sells several copies in one
+         * transaction. The extras hold {@link #EXTRA_IDS}, one book ID per copy sold; an ID may
+         * repeat. The result holds, per copy and in the same order, {@link #EXTRA_QUANTITY} as an
+         * int array and {@link #EXTRA_SOLD} as a boolean array.
+         */
+        public static final String METHOD_SELL_BATCH = "sell_batch";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that updates a book only if its
+         * {@link #COLUMN_VERSION} is still the one the caller read. The argument is the book ID; the
+         * extras hold the new values in {@link #EXTRA_VALUES}, as for an update of the book's URI,
+         * and the expected version in {@link #EXTRA_VERSION}. The result holds
+         * {@link #EXTRA_CONFLICT}: false if the book was updated, true if it changed or was
+         * deleted since. On conflict {@link #EXTRA_CURRENT_ROW} holds the current row, with its
+         * version, unless the book was deleted.
+         */
+        public static final String METHOD_UPDATE_IF_VERSION = "update_if_version";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that sets or removes a book's cover.
+         * The argument is the book ID. The extras hold the {@link android.net.Uri} to copy the
+         * image from in {@link #EXTRA_SOURCE}, or nothing to remove the cover, and optionally the
+         * version the caller read the book at in {@link #EXTRA_VERSION}. The result holds the
+         * book's new {@link #COLUMN_COVER} in {@link #EXTRA_COVER}, null once removed, and its new
+         * {@link #COLUMN_VERSION} in {@link #EXTRA_VERSION}; it has neither if the book does not
+         * exist. Given a version, {@link #EXTRA_CONFLICT} says whether the book had changed since:
+         * if not, a caller editing the book can keep editing at the new version.
+         */
+        public static final String METHOD_SET_COVER = "set_cover";
+
+        public static final String EXTRA_SOURCE = "source";
+        public static final String EXTRA_COVER = "cover";
+
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_VERSION = "version";
+        public static final String EXTRA_CONFLICT = "conflict";
+        public static final String EXTRA_CURRENT_ROW = "current_row";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that reports the provider's row
+         * cache counters: {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES},
+         * {@link #EXTRA_CACHE_EVICTIONS} and {@link #EXTRA_CACHE_SIZE}, all ints.
+         */
+        public static final String METHOD_CACHE_STATS = "cache_stats";
+
+        public static final String EXTRA_CACHE_HITS = "cache_hits";
+        public static final String EXTRA_CACHE_MISSES = "cache_misses";
+        public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+        public static final String EXTRA_CACHE_SIZE = "cache_size";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that returns the provider's call
+         * metrics. The result holds a long array "bucket_upper_bounds_us", the upper bound of each
+         * latency bucket, and one Bundle per URI and operation that saw a call, keyed
+         * "uri/operation" (for example "book_id/query"), or "method/call" for a call method (for
+         * example "sell_batch/call"). Each holds the longs "count", "errors", "rows", "total_us",
+         * "max_us", "p50_us", "p90_us" and "p99_us", and the long array "histogram" of call counts
+         * per latency bucket. The rows of a query are counted once its cursor's count is read.
+         */
+        public static final String METHOD_METRICS = "metrics";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that clears the provider's call
+         * metrics.
+         */
+        public static final String METHOD_RESET_METRICS = "reset_metrics";
+
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_QUANTITY = "quantity";
+        public static final String EXTRA_SOLD = "sold";
+    }
+
+    /**
+     * Suppliers of the books. Each book references one supplier through
+     * {@link BookEntry#COLUMN_SUPPLIER_ID}, so supplier details are stored once.
+     */
+    public static abstract class SupplierEntry implements BaseColumns {
+        public static final String TABLE_NAME = "suppliers";
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_SUPPLIER_NAME = "Supplier_Name";
+        public static final String COLUMN_SUPPLIER_PHONE = "Supplier_Phone_Number";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * Build the URI of the books of the given supplier. It returns the same columns as
+         * {@link BookEntry#CONTENT_URI} and accepts the same paging parameters.
+         */
+        public static Uri buildBooksUri(long supplierId) {
+            return ContentUris.withAppendedId(CONTENT_URI, supplierId).buildUpon()
+                    .appendPath(PATH_BOOKS)
+                    .build();
+        }
+    }
+
+    /**
+     * Inventory totals, kept exact by triggers on every write to the books table, so reading them
+     * costs the same however large the catalog is. {@link #CONTENT_URI} returns one row with the
+     * totals of the whole catalog; {@link #SUPPLIERS_URI} returns one row per supplier, with its
+     * {@link SupplierEntry#_ID} and {@link SupplierEntry#COLUMN_SUPPLIER_NAME}.
+     */
+    public static final class SummaryEntry {
+        public static final String TABLE_NAME = "inventory_summary";
+        public static final String SUPPLIER_TABLE_NAME = "supplier_summary";
+
+        /** Number of books. */
+        public static final String COLUMN_BOOK_COUNT = "book_count";
+
+        /** Sum of the quantities of the books. */
+        public static final String COLUMN_UNITS = "units_on_hand";
+
+        /** Sum of price times quantity of the books. */
+        public static final String COLUMN_STOCK_VALUE = "stock_value";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUMMARY);
+
+        public static final Uri SUPPLIERS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SUPPLIERS);
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        public static final String CONTENT_SUPPLIERS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_SUMMARY + "/" + PATH_SUPPLIERS;
+    }
+
+    /**
+     * Books that need restocking: those with a quantity below the low-stock threshold, fewest
+     * copies first. {@link #CONTENT_URI} returns the same columns as {@link BookEntry#CONTENT_URI}
+     * and accepts {@link BookEntry#QUERY_PARAMETER_LIMIT}. Its observers are only notified when a
+     * book enters or leaves the list, or the threshold changes.
+     */
+    public static final class LowStockEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOW_STOCK);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOW_STOCK;
+
+        /** Threshold of a new install. */
+        public static final int DEFAULT_THRESHOLD = 5;
+
+        /**
+         * {@link android.content.ContentResolver#call} method that returns the threshold in
+         * {@link #EXTRA_THRESHOLD}.
+         */
+        public static final String METHOD_GET_THRESHOLD = "get_low_stock_threshold";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that sets the threshold to its
+         * argument, a non-negative integer. Books with fewer copies are low on stock.
+         */
+        public static final String METHOD_SET_THRESHOLD = "set_low_stock_threshold";
+
+        public static final String EXTRA_THRESHOLD = "threshold";
+    }
+
+    /**
+     * Integer settings of the provider, one row per key. Not exposed through a URI.
+     */
+    public static final class SettingsEntry {
+        public static final String TABLE_NAME = "settings";
+        public static final String COLUMN_KEY = "key";
+        public static final String COLUMN_VALUE = "value";
+
+        /** Books with a quantity below this are low on stock. */
+        public static final String KEY_LOW_STOCK_THRESHOLD = "low_stock_threshold";
+
+        /** Incremented by triggers whenever a book enters or leaves the low-stock list. */
+        public static final String KEY_LOW_STOCK_GENERATION = "low_stock_generation";
+
+        /** 1 while server changes are applied, so the sync triggers do not queue them back. */
+        public static final String KEY_SYNC_APPLYING = "sync_applying";
+
+        /** Position in the server's change feed of the last changes applied. */
+        public static final String KEY_SYNC_CURSOR = "sync_cursor";
+    }
+
+    /**
+     * Catalog imports, written in chunks through {@link #METHOD_IMPORT_CHUNK}. Each import is
+     * identified by a caller-chosen ID and has a checkpoint row, committed together with each
+     * chunk, so an interrupted import resumes after the last chunk that was written.
+     */
+    public static final class ImportEntry {
+        public static final String TABLE_NAME = "import_checkpoints";
+        public static final String COLUMN_IMPORT_ID = "import_id";
+
+        /** Source line of the first row not imported yet. */
+        public static final String COLUMN_NEXT_LINE = "next_line";
+        public static final String COLUMN_ROWS_IMPORTED = "rows_imported";
+        public static final String COLUMN_ROWS_FAILED = "rows_failed";
+
+        /** 1 once the whole source was imported. */
+        public static final String COLUMN_COMPLETED = "completed";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that inserts a chunk of books and
+         * advances the checkpoint of the import in one transaction. The argument is the import ID.
+         * The extras hold {@link #EXTRA_ROWS}, {@link #EXTRA_LINES}, {@link #EXTRA_NEXT_LINE},
+         * {@link #EXTRA_PARSE_FAILURES} and {@link #EXTRA_COMPLETED}. Rows are validated as
+         * {@link BookEntry#CONTENT_URI} inserts are; the result holds
+         * {@link #EXTRA_ROWS_IMPORTED}, and {@link #EXTRA_ERROR_LINES} with
+         * {@link #EXTRA_ERROR_MESSAGES} for the rows that were rejected.
+         */
+        public static final String METHOD_IMPORT_CHUNK = "import_chunk";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that returns the checkpoint of the
+         * import whose ID is the argument: {@link #EXTRA_NEXT_LINE}, {@link #EXTRA_ROWS_IMPORTED},
+         * {@link #EXTRA_ROWS_FAILED} and {@link #EXTRA_COMPLETED}. A new import starts at line 1.
+         */
+        public static final String METHOD_IMPORT_CHECKPOINT = "import_checkpoint";
+
+        /** ContentValues array of the books of a chunk, with the columns of a book insert. */
+        public static final String EXTRA_ROWS = "rows";
+
+        /** Int array of the source line of each row of {@link #EXTRA_ROWS}. */
+        public static final String EXTRA_LINES = "lines";
+
+        public static final String EXTRA_NEXT_LINE = "next_line";
+
+        /** Lines of the chunk that could not be parsed, and so are not among its rows. */
+        public static final String EXTRA_PARSE_FAILURES = "parse_failures";
+
+        public static final String EXTRA_COMPLETED = "completed";
+        public static final String EXTRA_ROWS_IMPORTED = "rows_imported";
+        public static final String EXTRA_ROWS_FAILED = "rows_failed";
+        public static final String EXTRA_ERROR_LINES = "error_lines";
+        public static final String EXTRA_ERROR_MESSAGES = "error_messages";
+    }
+
+    /**
+     * The whole catalog as a file, streamed through a pipe while it is read, so an export of any
+     * size starts at once in bounded memory. Open {@link #CONTENT_URI} with
+     * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} for one of its
+     * {@link android.content.ContentResolver#getStreamTypes}, or with
+     * {@link android.content.ContentResolver#openInputStream} and {@link #QUERY_PARAMETER_FORMAT}.
+     * <p>
+     * Each row has the name, price, quantity, supplier name and supplier phone of a book, under
+     * the {@link BookEntry} column names, in the formats {@link CatalogImporter} reads.
+     */
+    public static final class ExportEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BookEntry.CONTENT_URI, PATH_EXPORT);
+
+        /** A header row of column names, then one row per book. */
+        public static final String MIME_TYPE_CSV = "text/csv";
+
+        /** An array of one object per book. */
+        public static final String MIME_TYPE_JSON = "application/json";
+
+        /**
+         * Query parameter choosing the format when the URI is opened without a MIME type:
+         * {@link #FORMAT_CSV}, the default, or {@link #FORMAT_JSON}.
+         */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+
+        /**
+         * Build the URI of the catalog in the given format.
+         */
+        public static Uri buildExportUri(String format) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build();
+        }
+    }
+
+    /**
+     * Append-only ledger of stock movements: every sale, restock and quantity adjustment of a book,
+     * written in the same transaction as the change to {@link BookEntry#COLUMN_QUANTITY}, which
+     * stays the current snapshot. Movements older than the retention period are folded into one
+     * row per book, day and kind by {@link #METHOD_COMPACT}, then pruned.
+     * <p>
+     * {@link #CONTENT_URI} returns the movements, newest first, and {@link #DAILY_URI} the folded
+     * days, newest first. Both accept {@link #QUERY_PARAMETER_BOOK_ID}, {@link #QUERY_PARAMETER_FROM},
+     * {@link #QUERY_PARAMETER_TO} and {@link BookEntry#QUERY_PARAMETER_LIMIT}. History outlives the
+     * books it refers to.
+     */
+    public static abstract class MovementEntry implements BaseColumns {
+        public static final String TABLE_NAME = "stock_movements";
+        public static final String DAILY_TABLE_NAME = "stock_movement_days";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /** {@link #KIND_SALE}, {@link #KIND_RESTOCK} or {@link #KIND_ADJUSTMENT}. */
+        public static final String COLUMN_KIND = "kind";
+
+        /** Change of quantity; negative for sales. A folded day holds the sum of its movements. */
+        public static final String COLUMN_DELTA = "delta";
+
+        /** Quantity of the book right after the movement. Not kept for folded days. */
+        public static final String COLUMN_QUANTITY_AFTER = "quantity_after";
+
+        /** Time of the movement, in milliseconds since the epoch. */
+        public static final String COLUMN_CREATED_AT = "created_at";
+
+        /** Day of a folded row, in days since the epoch, UTC. */
+        public static final String COLUMN_DAY = "day";
+
+        /** Number of movements folded into a day. */
+        public static final String COLUMN_MOVEMENTS = "movements";
+
+        public static final String KIND_SALE = "sale";
+        public static final String KIND_RESTOCK = "restock";
+        public static final String KIND_ADJUSTMENT = "adjustment";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_MOVEMENTS);
+
+        public static final Uri DAILY_URI = Uri.withAppendedPath(CONTENT_URI, PATH_DAILY);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        public static final String CONTENT_DAILY_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS + "/" + PATH_DAILY;
+
+        /** Query parameter restricting the history to one book ID. */
+        public static final String QUERY_PARAMETER_BOOK_ID = "book_id";
+
+        /**
+         * Query parameter of the first time of the history, inclusive, in milliseconds since the
+         * epoch. A folded day is included if it starts at or after this time.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+
+        /** Query parameter of the end time of the history, exclusive, in milliseconds since the epoch. */
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /** Days of movements kept unfolded by default. */
+        public static final int DEFAULT_RETENTION_DAYS = 90;
+
+        /**
+         * {@link android.content.ContentResolver#call} method that adds copies to a book's stock.
+         * The argument is the book ID and the extras hold the number of copies, a positive int, in
+         * {@link BookEntry#EXTRA_QUANTITY}. The result holds the new quantity in
+         * {@link BookEntry#EXTRA_QUANTITY}, or -1 if the book does not exist.
+         */
+        public static final String METHOD_RESTOCK = "restock";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that folds the movements older than
+         * the retention period into daily rows and deletes them. The argument is the retention in
+         * days, or null for {@link #DEFAULT_RETENTION_DAYS}. The result holds the number of
+         * movements folded in {@link #EXTRA_MOVEMENTS_FOLDED}.
+         */
+        public static final String METHOD_COMPACT = "compact_ledger";
+
+        public static final String EXTRA_MOVEMENTS_FOLDED = "movements_folded";
+
+        /**
+         * Build the URI of the movements of the given book, or of every book if {@code bookId} is
+         * negative, from {@code fromMillis} inclusive to {@code toMillis} exclusive.
+         */
+        public static Uri buildHistoryUri(long bookId, long fromMillis, long toMillis) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(fromMillis))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(toMillis));
+            if (bookId >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_BOOK_ID, String.valueOf(bookId));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Outbox of the book changes not pushed to the sync server yet, written by triggers in the
+     * same transaction as each change. A book has at most one row, its latest change: a newer
+     * change replaces the row under a new, larger {@link #_ID}, so acknowledging a pushed row
+     * never drops a change made after it was read.
+     * <p>
+     * {@link #CONTENT_URI} returns the rows oldest first, each with the book's current columns
+     * (null once deleted), and accepts {@link BookEntry#QUERY_PARAMETER_LIMIT}. Changes from the
+     * server are applied with {@link #METHOD_APPLY_CHANGES} and are not queued back.
+     */
+    public static abstract class SyncEntry implements BaseColumns {
+        public static final String TABLE_NAME = "sync_outbox";
+
+        /** The sequence number of the change, increasing with every change queued. */
+        public static final String _ID = BaseColumns._ID;
+
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /** 1 if the book was deleted, else 0. */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * The HTTP status the server rejected the change with for good, or 0 while it is still to
+         * push. A rejected change stays in the outbox, out of later pushes, until the book changes
+         * again and a new change replaces it.
+         */
+        public static final String COLUMN_REJECTED = "rejected";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SYNC_OUTBOX);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_OUTBOX;
+
+        /**
+         * {@link android.content.ContentResolver#call} method that removes pushed changes from
+         * the outbox. The extras hold their {@link #_ID}s in {@link BookEntry#EXTRA_IDS}. The
+         * result holds the number removed in {@link #EXTRA_ACKNOWLEDGED}.
+         */
+        public static final String METHOD_ACKNOWLEDGE = "sync_acknowledge";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that marks changes the server
+         * rejected for good, so later pushes leave them out. The extras hold their {@link #_ID}s
+         * in {@link BookEntry#EXTRA_IDS} and the HTTP status in {@link #EXTRA_STATUS}. The result
+         * holds the number marked in {@link #EXTRA_REJECTED}.
+         */
+        public static final String METHOD_REJECT = "sync_reject";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that applies changes from the
+         * server in one transaction, without queuing them in the outbox. The extras hold
+         * {@link #EXTRA_CHANGES}, and the server's position after them in {@link #EXTRA_CURSOR}.
+         * Each change has the book's {@link BookEntry#_ID} and either {@link #COLUMN_DELETED} set
+         * to 1 or every column of a book insert; a book that does not exist is created with that
+         * ID. A change of a book with a change of its own still to push is skipped rather
+         * than overwriting it: the local change is pushed next, and whatever the server makes of
+         * it is pulled back later. A change missing its ID or a column, or one SQLite rejects, is
+         * skipped too, so the cursor still moves past it. The result holds the number of books
+         * changed in {@link #EXTRA_APPLIED}, the number of changes skipped for a local change in
+         * {@link #EXTRA_SKIPPED}, and the number skipped as malformed in {@link #EXTRA_MALFORMED}.
+         */
+        public static final String METHOD_APPLY_CHANGES = "sync_apply_changes";
+
+        /**
+         * {@link android.content.ContentResolver#call} method that returns the server position of
+         * the last changes applied in {@link #EXTRA_CURSOR}, 0 before the first.
+         */
+        public static final String METHOD_GET_CURSOR = "sync_get_cursor";
+
+        /** ContentValues array of the changes to apply. */
+        public static final String EXTRA_CHANGES = "changes";
+
+        public static final String EXTRA_CURSOR = "cursor";
+        public static final String EXTRA_APPLIED = "applied";
+        public static final String EXTRA_SKIPPED = "skipped";
+        public static final String EXTRA_MALFORMED = "malformed";
+        public static final String EXTRA_ACKNOWLEDGED = "acknowledged";
+        public static final String EXTRA_STATUS = "status";
+        public static final String EXTRA_REJECTED = "rejected";
+    }
+
+    /**
+     * Full-text index over the book and supplier names, kept in sync with the books table by
+     * triggers. Queried through {@link #CONTENT_URI}, which returns rows of the books table.
+     */
+    public static final class SearchEntry {
+        public static final String TABLE_NAME = "books_fts";
+
+        /** The FTS row ID, equal to the {@link BookEntry#_ID} of the indexed book. */
+        public static final String COLUMN_DOCID = "docid";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BookEntry.CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Query parameter holding the text to search for. Every word of it must match the start
+         * of a word in the book name or the supplier name.
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+
+        /** Number of results returned when the URI has no {@link BookEntry#QUERY_PARAMETER_LIMIT}. */
+        public static final int DEFAULT_LIMIT = 50;
+
+        /**
+         * Build the URI of the best {@code limit} books matching the given text. Books whose name
+         * starts with the text come first, then books whose name matches, then supplier matches.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .appendQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
     }
 }
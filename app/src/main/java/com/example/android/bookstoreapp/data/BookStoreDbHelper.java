@@ -4,32 +4,51 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
-import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
-
 public class BookStoreDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = "BookStoreHelper.java";
 
     public static final String DATABASE_NAME = "bookstore.db";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = BookStoreMigrations.LATEST_VERSION;
+
+    /** Database names of the stores other than the default one are this, the store name and ".db". */
+    public static final String STORE_DATABASE_PREFIX = "bookstore-";
 
     public BookStoreDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Helper of the database of the given store, see {@link BookStoreContract.StoreEntry}.
+     */
+    public BookStoreDbHelper(Context context, String store) {
+        super(context, databaseNameOf(store), null, DATABASE_VERSION);
+    }
+
+    /**
+     * Return the name of the database file of the given store.
+     */
+    public static String databaseNameOf(String store) {
+        return BookStoreContract.StoreEntry.DEFAULT_STORE.equals(store) ? DATABASE_NAME
+                : STORE_DATABASE_PREFIX + store + ".db";
+    }
+
     public void onCreate(SQLiteDatabase db) {
-        String SQL_CREATE_BOOKS_TABLE = "CREATE TABLE " + BookEntry.TABLE_NAME + "("
-                + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + BookEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL, "
-                + BookEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
-                + BookEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 1, "
-                + BookEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
-                + BookEntry.COLUMN_SUPPLIER_PHONE + " TEXT NOT NULL);";
-
-        db.execSQL(SQL_CREATE_BOOKS_TABLE);
+        BookStoreMigrations.createVersion1(db);
+        BookStoreMigrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        BookStoreMigrations.migrate(db, oldVersion, newVersion);
+    }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Books reference their supplier; SQLite only enforces that when asked to, per connection.
+        // Migrations run before onOpen, so table rebuilds are not blocked by it.
+        if (!db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys=ON");
+        }
     }
 }
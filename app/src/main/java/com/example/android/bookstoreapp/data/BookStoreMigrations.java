@@ -0,0 +1,470 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ImportEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.LowStockEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.MovementEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SearchEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SettingsEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SummaryEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SupplierEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SyncEntry;
+
+/**
+ * Ordered schema migrations of the bookstore database.
+ *
+ * A new database is created with the version 1 schema and then migrated to the latest version, so
+ * fresh installs and upgraded installs always end up with the same schema. To change the schema,
+ * append a migration to {@link #MIGRATIONS}; never edit one that has shipped.
+ *
+ * Migrations run inside the transaction SQLiteOpenHelper opens around onCreate and onUpgrade, so
+ * an upgrade across several versions either completes or leaves the database untouched. They
+ * should stay set-based (CREATE INDEX, INSERT ... SELECT) to remain fast on large catalogs.
+ */
+public final class BookStoreMigrations {
+
+    private static final String LOG_TAG = BookStoreMigrations.class.getSimpleName();
+
+    /**
+     * A schema change from the previous version to {@link #toVersion}.
+     */
+    abstract static class Migration {
+        final int toVersion;
+
+        Migration(int toVersion) {
+            this.toVersion = toVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    private static final Migration[] MIGRATIONS = {
+            // Full-text index over book and supplier names.
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + SearchEntry.TABLE_NAME + " USING fts4("
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_SUPPLIER_NAME + ")");
+
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                            + BookEntry.TABLE_NAME + " BEGIN INSERT INTO " + SearchEntry.TABLE_NAME + "("
+                            + SearchEntry.COLUMN_DOCID + ", " + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + ") VALUES (new." + BookEntry._ID + ", new."
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", new." + BookEntry.COLUMN_SUPPLIER_NAME
+                            + "); END");
+
+                    // Only changes to the indexed columns touch the index, so a sale costs nothing here.
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_SUPPLIER_NAME + " ON "
+                            + BookEntry.TABLE_NAME + " BEGIN UPDATE " + SearchEntry.TABLE_NAME + " SET "
+                            + BookEntry.COLUMN_PRODUCT_NAME + " = new." + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + " = new." + BookEntry.COLUMN_SUPPLIER_NAME
+                            + " WHERE " + SearchEntry.COLUMN_DOCID + " = old." + BookEntry._ID + "; END");
+
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                            + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + SearchEntry.TABLE_NAME
+                            + " WHERE " + SearchEntry.COLUMN_DOCID + " = old." + BookEntry._ID + "; END");
+
+                    db.execSQL("INSERT INTO " + SearchEntry.TABLE_NAME + "(" + SearchEntry.COLUMN_DOCID
+                            + ", " + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_SUPPLIER_NAME
+                            + ") SELECT " + BookEntry._ID + ", " + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + " FROM " + BookEntry.TABLE_NAME);
+                }
+            },
+            // Indexes for supplier lookups, low stock queries and ordering by name.
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX books_supplier_name ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_SUPPLIER_NAME + ")");
+                    db.execSQL("CREATE INDEX books_quantity ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_QUANTITY + ")");
+                    db.execSQL("CREATE INDEX books_product_name ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_PRODUCT_NAME + ")");
+                }
+            },
+            // Suppliers move into their own table, referenced by books.supplier_id. The books
+            // table is rebuilt without the supplier columns; its IDs and AUTOINCREMENT sequence
+            // are kept, and so is the search index, whose triggers now read the supplier name.
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + SupplierEntry.TABLE_NAME + "("
+                            + SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + SupplierEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL UNIQUE, "
+                            + SupplierEntry.COLUMN_SUPPLIER_PHONE + " TEXT NOT NULL)");
+                    // A supplier is identified by its name, so it keeps one phone number. Books
+                    // that gave the same supplier different numbers keep the largest; the others
+                    // are logged rather than dropped unnoticed.
+                    logPhoneConflicts(db);
+                    db.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + "("
+                            + SupplierEntry.COLUMN_SUPPLIER_NAME + ", " + SupplierEntry.COLUMN_SUPPLIER_PHONE
+                            + ") SELECT Supplier_Name, MAX(Supplier_Phone_Number) FROM "
+                            + BookEntry.TABLE_NAME + " GROUP BY Supplier_Name");
+
+                    db.execSQL("CREATE TABLE books_new("
+                            + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + BookEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL, "
+                            + BookEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
+                            + BookEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 1, "
+                            + BookEntry.COLUMN_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES "
+                            + SupplierEntry.TABLE_NAME + "(" + SupplierEntry._ID + "))");
+                    db.execSQL("INSERT INTO books_new(" + BookEntry._ID + ", "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", "
+                            + BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_ID + ") SELECT b."
+                            + BookEntry._ID + ", b." + BookEntry.COLUMN_PRODUCT_NAME + ", b."
+                            + BookEntry.COLUMN_PRICE + ", b." + BookEntry.COLUMN_QUANTITY + ", s."
+                            + SupplierEntry._ID + " FROM " + BookEntry.TABLE_NAME + " b JOIN "
+                            + SupplierEntry.TABLE_NAME + " s ON s." + SupplierEntry.COLUMN_SUPPLIER_NAME
+                            + " = b.Supplier_Name");
+
+                    // Carry the AUTOINCREMENT high-water mark over, so IDs of deleted books are
+                    // never reused. Dropping the old table drops its triggers and indexes too.
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'books_new'");
+                    db.execSQL("INSERT INTO sqlite_sequence(name, seq) SELECT 'books_new', seq"
+                            + " FROM sqlite_sequence WHERE name = '" + BookEntry.TABLE_NAME + "'");
+                    db.execSQL("DROP TABLE " + BookEntry.TABLE_NAME);
+                    db.execSQL("ALTER TABLE books_new RENAME TO " + BookEntry.TABLE_NAME);
+
+                    db.execSQL("CREATE INDEX books_supplier_id ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_SUPPLIER_ID + ")");
+                    db.execSQL("CREATE INDEX books_quantity ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_QUANTITY + ")");
+                    db.execSQL("CREATE INDEX books_product_name ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_PRODUCT_NAME + ")");
+
+                    db.execSQL("CREATE VIEW " + BookEntry.VIEW_NAME + " AS SELECT b." + BookEntry._ID
+                            + " AS " + BookEntry._ID + ", b." + BookEntry.COLUMN_PRODUCT_NAME + " AS "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", b." + BookEntry.COLUMN_PRICE + " AS "
+                            + BookEntry.COLUMN_PRICE + ", b." + BookEntry.COLUMN_QUANTITY + " AS "
+                            + BookEntry.COLUMN_QUANTITY + ", b." + BookEntry.COLUMN_SUPPLIER_ID + " AS "
+                            + BookEntry.COLUMN_SUPPLIER_ID + ", s." + SupplierEntry.COLUMN_SUPPLIER_NAME
+                            + " AS " + BookEntry.COLUMN_SUPPLIER_NAME + ", s."
+                            + SupplierEntry.COLUMN_SUPPLIER_PHONE + " AS " + BookEntry.COLUMN_SUPPLIER_PHONE
+                            + " FROM " + BookEntry.TABLE_NAME + " b JOIN " + SupplierEntry.TABLE_NAME
+                            + " s ON s." + SupplierEntry._ID + " = b." + BookEntry.COLUMN_SUPPLIER_ID);
+
+                    String supplierName = "(SELECT " + SupplierEntry.COLUMN_SUPPLIER_NAME + " FROM "
+                            + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry._ID + " = new."
+                            + BookEntry.COLUMN_SUPPLIER_ID + ")";
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                            + BookEntry.TABLE_NAME + " BEGIN INSERT INTO " + SearchEntry.TABLE_NAME + "("
+                            + SearchEntry.COLUMN_DOCID + ", " + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + ") VALUES (new." + BookEntry._ID + ", new."
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + supplierName + "); END");
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_SUPPLIER_ID + " ON "
+                            + BookEntry.TABLE_NAME + " BEGIN UPDATE " + SearchEntry.TABLE_NAME + " SET "
+                            + BookEntry.COLUMN_PRODUCT_NAME + " = new." + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + " = " + supplierName
+                            + " WHERE " + SearchEntry.COLUMN_DOCID + " = old." + BookEntry._ID + "; END");
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                            + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + SearchEntry.TABLE_NAME
+                            + " WHERE " + SearchEntry.COLUMN_DOCID + " = old." + BookEntry._ID + "; END");
+                    // The index is the one place the supplier name is still copied per book.
+                    db.execSQL("CREATE TRIGGER " + SearchEntry.TABLE_NAME + "_supplier_update AFTER UPDATE OF "
+                            + SupplierEntry.COLUMN_SUPPLIER_NAME + " ON " + SupplierEntry.TABLE_NAME
+                            + " BEGIN UPDATE " + SearchEntry.TABLE_NAME + " SET "
+                            + BookEntry.COLUMN_SUPPLIER_NAME + " = new." + SupplierEntry.COLUMN_SUPPLIER_NAME
+                            + " WHERE " + SearchEntry.COLUMN_DOCID + " IN (SELECT " + BookEntry._ID
+                            + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_SUPPLIER_ID
+                            + " = new." + SupplierEntry._ID + "); END");
+                }
+            },
+            // Inventory totals, overall and per supplier, kept up to date by triggers inside the
+            // transaction of every write, so they are never out of step with the books table.
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String totals = SummaryEntry.COLUMN_BOOK_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                            + SummaryEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                            + SummaryEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL DEFAULT 0";
+                    db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + "("
+                            + BaseColumns._ID + " INTEGER PRIMARY KEY CHECK (" + BaseColumns._ID
+                            + " = 1), " + totals + ")");
+                    db.execSQL("CREATE TABLE " + SummaryEntry.SUPPLIER_TABLE_NAME + "("
+                            + BaseColumns._ID + " INTEGER PRIMARY KEY REFERENCES "
+                            + SupplierEntry.TABLE_NAME + "(" + SupplierEntry._ID + ") ON DELETE CASCADE, "
+                            + totals + ")");
+
+                    db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " SELECT 1, COUNT(*), "
+                            + "IFNULL(SUM(" + BookEntry.COLUMN_QUANTITY + "), 0), "
+                            + "IFNULL(SUM(" + BookEntry.COLUMN_PRICE + " * " + BookEntry.COLUMN_QUANTITY
+                            + "), 0) FROM " + BookEntry.TABLE_NAME);
+                    db.execSQL("INSERT INTO " + SummaryEntry.SUPPLIER_TABLE_NAME + " SELECT s."
+                            + SupplierEntry._ID + ", COUNT(b." + BookEntry._ID + "), "
+                            + "IFNULL(SUM(b." + BookEntry.COLUMN_QUANTITY + "), 0), "
+                            + "IFNULL(SUM(b." + BookEntry.COLUMN_PRICE + " * b." + BookEntry.COLUMN_QUANTITY
+                            + "), 0) FROM " + SupplierEntry.TABLE_NAME + " s LEFT JOIN "
+                            + BookEntry.TABLE_NAME + " b ON b." + BookEntry.COLUMN_SUPPLIER_ID + " = s."
+                            + SupplierEntry._ID + " GROUP BY s." + SupplierEntry._ID);
+
+                    db.execSQL("CREATE TRIGGER " + SummaryEntry.SUPPLIER_TABLE_NAME + "_supplier_insert"
+                            + " AFTER INSERT ON " + SupplierEntry.TABLE_NAME + " BEGIN INSERT INTO "
+                            + SummaryEntry.SUPPLIER_TABLE_NAME + "(" + BaseColumns._ID + ") VALUES (new."
+                            + SupplierEntry._ID + "); END");
+                    // Foreign keys are off during migrations and may be off for other connections.
+                    db.execSQL("CREATE TRIGGER " + SummaryEntry.SUPPLIER_TABLE_NAME + "_supplier_delete"
+                            + " AFTER DELETE ON " + SupplierEntry.TABLE_NAME + " BEGIN DELETE FROM "
+                            + SummaryEntry.SUPPLIER_TABLE_NAME + " WHERE " + BaseColumns._ID + " = old."
+                            + SupplierEntry._ID + "; END");
+
+                    db.execSQL("CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                            + BookEntry.TABLE_NAME + " BEGIN " + addTotals("new", "+") + " END");
+                    db.execSQL("CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                            + BookEntry.TABLE_NAME + " BEGIN " + addTotals("old", "-") + " END");
+                    db.execSQL("CREATE TRIGGER " + SummaryEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                            + BookEntry.COLUMN_PRICE + ", " + BookEntry.COLUMN_QUANTITY + ", "
+                            + BookEntry.COLUMN_SUPPLIER_ID + " ON " + BookEntry.TABLE_NAME + " BEGIN "
+                            + addTotals("old", "-") + " " + addTotals("new", "+") + " END");
+                }
+
+                /**
+                 * Return the statements adding ({@code sign} "+") or subtracting ("-") the given
+                 * row ("new" or "old") to the overall and supplier totals.
+                 */
+                private String addTotals(String row, String sign) {
+                    String set = " SET " + SummaryEntry.COLUMN_BOOK_COUNT + " = "
+                            + SummaryEntry.COLUMN_BOOK_COUNT + " " + sign + " 1, "
+                            + SummaryEntry.COLUMN_UNITS + " = " + SummaryEntry.COLUMN_UNITS + " " + sign
+                            + " " + row + "." + BookEntry.COLUMN_QUANTITY + ", "
+                            + SummaryEntry.COLUMN_STOCK_VALUE + " = " + SummaryEntry.COLUMN_STOCK_VALUE + " "
+                            + sign + " " + row + "." + BookEntry.COLUMN_PRICE + " * " + row + "."
+                            + BookEntry.COLUMN_QUANTITY;
+                    return "UPDATE " + SummaryEntry.TABLE_NAME + set + " WHERE " + BaseColumns._ID
+                            + " = 1; UPDATE " + SummaryEntry.SUPPLIER_TABLE_NAME + set + " WHERE "
+                            + BaseColumns._ID + " = " + row + "." + BookEntry.COLUMN_SUPPLIER_ID + ";";
+                }
+            },
+            // A settings table holding the low-stock threshold, and triggers counting every time a
+            // book crosses it, so the provider can tell observers of the low-stock list apart
+            // from every other write. The list itself is a range scan of books_quantity.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + SettingsEntry.TABLE_NAME + "("
+                            + SettingsEntry.COLUMN_KEY + " TEXT PRIMARY KEY, "
+                            + SettingsEntry.COLUMN_VALUE + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + SettingsEntry.TABLE_NAME + " VALUES ('"
+                            + SettingsEntry.KEY_LOW_STOCK_THRESHOLD + "', "
+                            + LowStockEntry.DEFAULT_THRESHOLD + ")");
+                    db.execSQL("INSERT INTO " + SettingsEntry.TABLE_NAME + " VALUES ('"
+                            + SettingsEntry.KEY_LOW_STOCK_GENERATION + "', 0)");
+
+                    String threshold = "(SELECT " + SettingsEntry.COLUMN_VALUE + " FROM "
+                            + SettingsEntry.TABLE_NAME + " WHERE " + SettingsEntry.COLUMN_KEY + " = '"
+                            + SettingsEntry.KEY_LOW_STOCK_THRESHOLD + "')";
+                    String bump = " BEGIN UPDATE " + SettingsEntry.TABLE_NAME + " SET "
+                            + SettingsEntry.COLUMN_VALUE + " = " + SettingsEntry.COLUMN_VALUE + " + 1 WHERE "
+                            + SettingsEntry.COLUMN_KEY + " = '" + SettingsEntry.KEY_LOW_STOCK_GENERATION
+                            + "'; END";
+                    db.execSQL("CREATE TRIGGER low_stock_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                            + " WHEN new." + BookEntry.COLUMN_QUANTITY + " < " + threshold + bump);
+                    db.execSQL("CREATE TRIGGER low_stock_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                            + " WHEN old." + BookEntry.COLUMN_QUANTITY + " < " + threshold + bump);
+                    db.execSQL("CREATE TRIGGER low_stock_update AFTER UPDATE OF "
+                            + BookEntry.COLUMN_QUANTITY + " ON " + BookEntry.TABLE_NAME + " WHEN (old."
+                            + BookEntry.COLUMN_QUANTITY + " < " + threshold + ") <> (new."
+                            + BookEntry.COLUMN_QUANTITY + " < " + threshold + ")" + bump);
+                }
+            },
+            // Checkpoints of catalog imports, so an interrupted import can resume.
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + "("
+                            + ImportEntry.COLUMN_IMPORT_ID + " TEXT PRIMARY KEY, "
+                            + ImportEntry.COLUMN_NEXT_LINE + " INTEGER NOT NULL, "
+                            + ImportEntry.COLUMN_ROWS_IMPORTED + " INTEGER NOT NULL, "
+                            + ImportEntry.COLUMN_ROWS_FAILED + " INTEGER NOT NULL, "
+                            + ImportEntry.COLUMN_COMPLETED + " INTEGER NOT NULL DEFAULT 0)");
+                }
+            },
+            // Row versions for optimistic concurrency. Writes of the provider's compiled statements
+            // bump the version themselves; the trigger covers every other update, and only fires
+            // when the statement left the version alone.
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 1");
+                    db.execSQL("CREATE TRIGGER books_version AFTER UPDATE ON " + BookEntry.TABLE_NAME
+                            + " WHEN new." + BookEntry.COLUMN_VERSION + " = old." + BookEntry.COLUMN_VERSION
+                            + " BEGIN UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_VERSION
+                            + " = old." + BookEntry.COLUMN_VERSION + " + 1 WHERE " + BookEntry._ID
+                            + " = old." + BookEntry._ID + "; END");
+
+                    db.execSQL("DROP VIEW " + BookEntry.VIEW_NAME);
+                    db.execSQL("CREATE VIEW " + BookEntry.VIEW_NAME + " AS SELECT b." + BookEntry._ID
+                            + " AS " + BookEntry._ID + ", b." + BookEntry.COLUMN_PRODUCT_NAME + " AS "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", b." + BookEntry.COLUMN_PRICE + " AS "
+                            + BookEntry.COLUMN_PRICE + ", b." + BookEntry.COLUMN_QUANTITY + " AS "
+                            + BookEntry.COLUMN_QUANTITY + ", b." + BookEntry.COLUMN_SUPPLIER_ID + " AS "
+                            + BookEntry.COLUMN_SUPPLIER_ID + ", s." + SupplierEntry.COLUMN_SUPPLIER_NAME
+                            + " AS " + BookEntry.COLUMN_SUPPLIER_NAME + ", s."
+                            + SupplierEntry.COLUMN_SUPPLIER_PHONE + " AS " + BookEntry.COLUMN_SUPPLIER_PHONE
+                            + ", b." + BookEntry.COLUMN_VERSION + " AS " + BookEntry.COLUMN_VERSION
+                            + " FROM " + BookEntry.TABLE_NAME + " b JOIN " + SupplierEntry.TABLE_NAME
+                            + " s ON s." + SupplierEntry._ID + " = b." + BookEntry.COLUMN_SUPPLIER_ID);
+                }
+            },
+            // The stock movement ledger and its folded days. Time-range queries, over all books or
+            // one, and the compaction cutoff are range scans of the two indexes.
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + MovementEntry.TABLE_NAME + "("
+                            + MovementEntry._ID + " INTEGER PRIMARY KEY, "
+                            + MovementEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_KIND + " TEXT NOT NULL, "
+                            + MovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_QUANTITY_AFTER + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE INDEX stock_movements_created_at ON " + MovementEntry.TABLE_NAME
+                            + "(" + MovementEntry.COLUMN_CREATED_AT + ")");
+                    db.execSQL("CREATE INDEX stock_movements_book ON " + MovementEntry.TABLE_NAME + "("
+                            + MovementEntry.COLUMN_BOOK_ID + ", " + MovementEntry.COLUMN_CREATED_AT + ")");
+
+                    db.execSQL("CREATE TABLE " + MovementEntry.DAILY_TABLE_NAME + "("
+                            + MovementEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_DAY + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_KIND + " TEXT NOT NULL, "
+                            + MovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                            + MovementEntry.COLUMN_MOVEMENTS + " INTEGER NOT NULL, "
+                            + "PRIMARY KEY (" + MovementEntry.COLUMN_BOOK_ID + ", " + MovementEntry.COLUMN_DAY
+                            + ", " + MovementEntry.COLUMN_KIND + "))");
+                    db.execSQL("CREATE INDEX stock_movement_days_day ON " + MovementEntry.DAILY_TABLE_NAME
+                            + "(" + MovementEntry.COLUMN_DAY + ")");
+                }
+            },
+            // Covers are files of the provider; the row only references one by name.
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_COVER + " TEXT");
+
+                    db.execSQL("DROP VIEW " + BookEntry.VIEW_NAME);
+                    db.execSQL("CREATE VIEW " + BookEntry.VIEW_NAME + " AS SELECT b." + BookEntry._ID
+                            + " AS " + BookEntry._ID + ", b." + BookEntry.COLUMN_PRODUCT_NAME + " AS "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", b." + BookEntry.COLUMN_PRICE + " AS "
+                            + BookEntry.COLUMN_PRICE + ", b." + BookEntry.COLUMN_QUANTITY + " AS "
+                            + BookEntry.COLUMN_QUANTITY + ", b." + BookEntry.COLUMN_SUPPLIER_ID + " AS "
+                            + BookEntry.COLUMN_SUPPLIER_ID + ", s." + SupplierEntry.COLUMN_SUPPLIER_NAME
+                            + " AS " + BookEntry.COLUMN_SUPPLIER_NAME + ", s."
+                            + SupplierEntry.COLUMN_SUPPLIER_PHONE + " AS " + BookEntry.COLUMN_SUPPLIER_PHONE
+                            + ", b." + BookEntry.COLUMN_VERSION + " AS " + BookEntry.COLUMN_VERSION
+                            + ", b." + BookEntry.COLUMN_COVER + " AS " + BookEntry.COLUMN_COVER
+                            + " FROM " + BookEntry.TABLE_NAME + " b JOIN " + SupplierEntry.TABLE_NAME
+                            + " s ON s." + SupplierEntry._ID + " = b." + BookEntry.COLUMN_SUPPLIER_ID);
+                }
+            },
+            // The sync outbox: one row per book changed since the last push, its latest change
+            // only, written by triggers in the same transaction as the change. Changes applied
+            // from the server are not queued back. Every existing book is queued for the first push.
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + SyncEntry.TABLE_NAME + "("
+                            + SyncEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + SyncEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL UNIQUE ON CONFLICT REPLACE, "
+                            + SyncEntry.COLUMN_DELETED + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + SettingsEntry.TABLE_NAME + " VALUES ('"
+                            + SettingsEntry.KEY_SYNC_APPLYING + "', 0)");
+                    db.execSQL("INSERT INTO " + SettingsEntry.TABLE_NAME + " VALUES ('"
+                            + SettingsEntry.KEY_SYNC_CURSOR + "', 0)");
+                    db.execSQL("INSERT INTO " + SyncEntry.TABLE_NAME + "(" + SyncEntry.COLUMN_BOOK_ID
+                            + ", " + SyncEntry.COLUMN_DELETED + ") SELECT " + BookEntry._ID + ", 0 FROM "
+                            + BookEntry.TABLE_NAME + " ORDER BY " + BookEntry._ID);
+
+                    String local = " WHEN (SELECT " + SettingsEntry.COLUMN_VALUE + " FROM "
+                            + SettingsEntry.TABLE_NAME + " WHERE " + SettingsEntry.COLUMN_KEY + " = '"
+                            + SettingsEntry.KEY_SYNC_APPLYING + "') = 0";
+                    String queue = " BEGIN INSERT INTO " + SyncEntry.TABLE_NAME + "("
+                            + SyncEntry.COLUMN_BOOK_ID + ", " + SyncEntry.COLUMN_DELETED + ") ";
+                    db.execSQL("CREATE TRIGGER sync_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                            + local + queue + "VALUES (new." + BookEntry._ID + ", 0); END");
+                    // Only the synced columns: the version and cover updates do not queue a change.
+                    db.execSQL("CREATE TRIGGER sync_update AFTER UPDATE OF "
+                            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", "
+                            + BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_ID + " ON "
+                            + BookEntry.TABLE_NAME + local + queue + "VALUES (new." + BookEntry._ID
+                            + ", 0); END");
+                    db.execSQL("CREATE TRIGGER sync_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                            + local + queue + "VALUES (old." + BookEntry._ID + ", 1); END");
+                    // A supplier's details are synced with each of its books.
+                    db.execSQL("CREATE TRIGGER sync_supplier_update AFTER UPDATE ON "
+                            + SupplierEntry.TABLE_NAME + local + queue + "SELECT " + BookEntry._ID
+                            + ", 0 FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_SUPPLIER_ID
+                            + " = new." + SupplierEntry._ID + "; END");
+                }
+            },
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // A new change of the book replaces the row, so it is pushed again.
+                    db.execSQL("ALTER TABLE " + SyncEntry.TABLE_NAME + " ADD COLUMN "
+                            + SyncEntry.COLUMN_REJECTED + " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+    };
+
+    /** The version the last migration leads to. */
+    public static final int LATEST_VERSION = MIGRATIONS[MIGRATIONS.length - 1].toVersion;
+
+    private BookStoreMigrations() {
+    }
+
+    /**
+     * Log each supplier name that the books of a version 3 database give more than one phone
+     * number, with the numbers migration 4 replaces by the largest.
+     */
+    private static void logPhoneConflicts(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT Supplier_Name, MAX(Supplier_Phone_Number), "
+                + "GROUP_CONCAT(DISTINCT Supplier_Phone_Number) FROM " + BookEntry.TABLE_NAME
+                + " GROUP BY Supplier_Name HAVING COUNT(DISTINCT Supplier_Phone_Number) > 1", null);
+        try {
+            while (cursor.moveToNext()) {
+                Log.w(LOG_TAG, "Supplier " + cursor.getString(0) + " had the phone numbers "
+                        + cursor.getString(2) + "; keeping " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create the version 1 schema, the one the app first shipped with.
+     */
+    static void createVersion1(SQLiteDatabase db) {
+        String SQL_CREATE_BOOKS_TABLE = "CREATE TABLE " + BookEntry.TABLE_NAME + "("
+                + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + BookEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL, "
+                + BookEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
+                + BookEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 1, "
+                + "Supplier_Name TEXT NOT NULL, "
+                + "Supplier_Phone_Number TEXT NOT NULL);";
+
+        db.execSQL(SQL_CREATE_BOOKS_TABLE);
+    }
+
+    /**
+     * Run, in order, every migration after {@code oldVersion} up to and including
+     * {@code newVersion}.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (newVersion > LATEST_VERSION) {
+            throw new IllegalArgumentException("No migration to version " + newVersion);
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion > oldVersion && migration.toVersion <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+}
@@ -1,18 +1,60 @@
 package com.example.android.bookstoreapp.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
+import android.database.CrossProcessCursorWrapper;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.util.Log;
 import android.view.View;
-import android.widget.Toast;
 
-import com.example.android.bookstoreapp.R;
 import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ExportEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ImportEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.LowStockEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.MovementEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SearchEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SettingsEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.StoreEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SummaryEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SupplierEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SyncEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * {@link ContentProvider} for BookStore app.
@@ -20,170 +62,2303 @@ import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
 public class BookStoreProvider extends ContentProvider {
 
     /**
-     * Tag for the log messages
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = BookStoreProvider.class.getSimpleName();
+    /** URI matcher code for the content URI for the bookstore table */
+    private static final int BOOKS = 100;
+    /** URI matcher code for the content URI for a single inventory in the bookstore table */
+    private static final int BOOK_ID = 101;
+    /** URI matcher code for the full-text search over the bookstore table */
+    private static final int BOOK_SEARCH = 102;
+    /** URI matcher code for the catalog export of the bookstore table */
+    private static final int BOOK_EXPORT = 103;
+    /** URI matcher code for the content URI for the cover image of a single book */
+    private static final int BOOK_COVER = 104;
+    /** URI matcher code for the content URI for the suppliers table */
+    private static final int SUPPLIERS = 200;
+    /** URI matcher code for the content URI for a single supplier */
+    private static final int SUPPLIER_ID = 201;
+    /** URI matcher code for the content URI for the books of a single supplier */
+    private static final int SUPPLIER_BOOKS = 202;
+    /** URI matcher code for the content URI for the inventory totals */
+    private static final int SUMMARY = 300;
+    /** URI matcher code for the content URI for the inventory totals per supplier */
+    private static final int SUPPLIER_SUMMARY = 301;
+    /** URI matcher code for the content URI for the books low on stock */
+    private static final int LOW_STOCK = 400;
+    /** URI matcher code for the content URI for the stock movement ledger */
+    private static final int MOVEMENTS = 500;
+    /** URI matcher code for the content URI for the folded days of the ledger */
+    private static final int MOVEMENTS_DAILY = 501;
+    /** URI matcher code for the content URI for the list of stores */
+    private static final int STORES = 600;
+    /** URI matcher code for the full-text search over every store */
+    private static final int ALL_STORES_SEARCH = 601;
+    /** URI matcher code for the books low on stock in every store */
+    private static final int ALL_STORES_LOW_STOCK = 602;
+    /** URI matcher code for the inventory totals of every store */
+    private static final int ALL_STORES_SUMMARY = 603;
+    /** URI matcher code for the content URI for the sync outbox */
+    private static final int SYNC_OUTBOX = 700;
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Largest number of row IDs a change notification lists. Bigger changes are notified on the
+     * collection URI alone, telling observers to reload.
+     */
+    static final int MAX_NOTIFY_IDS = 100;
+
+    /** Directory of the cover files, under the app's private files. */
+    private static final String COVERS_DIRECTORY = "covers";
+
+    /** Largest cover accepted, in bytes. */
+    private static final long MAX_COVER_BYTES = 10 * 1024 * 1024;
+
+    /**
+     * Cover files younger than this are never swept, even if no row references them yet: a cover
+     * being set is copied before its row is updated.
+     */
+    private static final long COVER_SWEEP_GRACE_MILLIS = 60 * 1000;
+
+    /** The file suffix of each cover type, so the type is known from the cover's name. */
+    private static final String[][] COVER_SUFFIXES = {
+            {".jpg", BookEntry.COVER_TYPE_JPEG},
+            {".png", BookEntry.COVER_TYPE_PNG},
+            {".gif", BookEntry.COVER_TYPE_GIF},
+            {".webp", BookEntry.COVER_TYPE_WEBP}};
+
+    /** Enough of the start of an image to tell its type. */
+    private static final int COVER_HEADER_BYTES = 12;
+
+    /** Number of book rows kept in the row cache of each store. */
+    private static final int ROW_CACHE_SIZE = 500;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    // Static initializer. This is run the first time anything is called from this class.
+    static {
+        // The calls to addURI() go here, for all of the content URI patterns that the provider
+        // should recognize. All paths added to the UriMatcher have a corresponding code to return
+        // when a match is found.
+
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_BOOKSTORE, BOOKS);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_BOOKSTORE + "/#", BOOK_ID);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_BOOKSTORE + "/" + BookStoreContract.PATH_SEARCH, BOOK_SEARCH);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_BOOKSTORE + "/" + BookStoreContract.PATH_EXPORT, BOOK_EXPORT);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_BOOKSTORE + "/#/" + BookStoreContract.PATH_COVER, BOOK_COVER);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_SUPPLIERS + "/#", SUPPLIER_ID);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_SUPPLIERS + "/#/" + BookStoreContract.PATH_BOOKS, SUPPLIER_BOOKS);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_SUMMARY, SUMMARY);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_SUMMARY + "/" + BookStoreContract.PATH_SUPPLIERS, SUPPLIER_SUMMARY);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_LOW_STOCK, LOW_STOCK);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_MOVEMENTS, MOVEMENTS);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                BookStoreContract.PATH_MOVEMENTS + "/" + BookStoreContract.PATH_DAILY, MOVEMENTS_DAILY);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_SYNC_OUTBOX, SYNC_OUTBOX);
+
+        // Other stores' URIs lose their store segment before matching, see enterStore(); only the
+        // cross-store URIs keep it.
+        String allStores = BookStoreContract.PATH_STORES + "/" + StoreEntry.ALL_STORES + "/";
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_STORES, STORES);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, allStores
+                + BookStoreContract.PATH_BOOKSTORE + "/" + BookStoreContract.PATH_SEARCH, ALL_STORES_SEARCH);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                allStores + BookStoreContract.PATH_LOW_STOCK, ALL_STORES_LOW_STOCK);
+        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY,
+                allStores + BookStoreContract.PATH_SUMMARY, ALL_STORES_SUMMARY);
+    }
+
+    /** The store of the URIs without a store segment. */
+    private Store mDefaultStore;
+
+    /** The other stores opened so far, by name; guarded by itself. */
+    private final Map<String, Store> mStores = new HashMap<>();
+
+    /**
+     * Store of the request the current thread is running, or null for the default store. Set by
+     * every entry point from its URI, see {@link #enterStore}.
+     */
+    private final ThreadLocal<Store> mStore = new ThreadLocal<>();
+
+    /**
+     * The {@link #call} methods, recorded in {@link #mMetrics} under their own name instead of a
+     * URI, each with the metrics code {@link #CALL_METHOD_CODE} plus its index.
+     */
+    private static final String[] CALL_METHODS = {BookEntry.METHOD_SELL, BookEntry.METHOD_SELL_BATCH,
+            BookEntry.METHOD_UPDATE_IF_VERSION, BookEntry.METHOD_SET_COVER, BookEntry.METHOD_CACHE_STATS,
+            SettingsEntry.METHOD_GET_THRESHOLD, SettingsEntry.METHOD_SET_THRESHOLD,
+            ImportEntry.METHOD_IMPORT_CHUNK, ImportEntry.METHOD_IMPORT_CHECKPOINT,
+            MovementEntry.METHOD_RESTOCK, MovementEntry.METHOD_COMPACT, SyncEntry.METHOD_ACKNOWLEDGE,
+            SyncEntry.METHOD_APPLY_CHANGES, SyncEntry.METHOD_GET_CURSOR, SyncEntry.METHOD_REJECT};
+
+    /**
+     * Savepoint of each operation of {@link #applyBatch} and each change of
+     * {@link SyncEntry#METHOD_APPLY_CHANGES}, so a failed one is undone alone.
+     */
+    private static final String SAVEPOINT_OPERATION = "SAVEPOINT batch_operation";
+    private static final String RELEASE_OPERATION = "RELEASE batch_operation";
+
+    /**
+     * The comment keeps SQLiteSession from taking the statement for a ROLLBACK of the whole
+     * transaction, as it does for any statement starting with ROLLBACK.
+     */
+    private static final String ROLLBACK_TO_OPERATION = "/* savepoint */ ROLLBACK TO batch_operation";
+
+    /** Metrics code of the first of {@link #CALL_METHODS}; above every URI match code. */
+    private static final int CALL_METHOD_CODE = 10000;
+
+    /** Per-URI and per-operation counters and latencies of every call. */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(
+            metricsCodes(new int[]{BOOKS, BOOK_ID, BOOK_SEARCH, BOOK_COVER, SUPPLIERS, SUPPLIER_ID,
+                    SUPPLIER_BOOKS, SUMMARY, SUPPLIER_SUMMARY, LOW_STOCK, MOVEMENTS, MOVEMENTS_DAILY,
+                    STORES, ALL_STORES_SEARCH, ALL_STORES_LOW_STOCK, ALL_STORES_SUMMARY, SYNC_OUTBOX}),
+            metricsNames(new String[]{"books", "book_id", "book_search", "book_cover", "suppliers",
+                    "supplier_id", "supplier_books", "summary", "supplier_summary", "low_stock",
+                    "movements", "movements_daily", "stores", "all_stores_search",
+                    "all_stores_low_stock", "all_stores_summary", "sync_outbox"}));
+
+    /**
+     * Set while the current thread is running a {@link #bulkInsert} or {@link #applyBatch}, so the
+     * single-row paths skip their own change notification and the batch sends one at the end.
+     */
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    /**
+     * The database, caches and cover files of one store. Each store has its own, so the writes,
+     * locks and cached rows of one store never slow down another.
+     */
+    private static final class Store {
+        final String name;
+        final BookStoreDbHelper dbHelper;
+
+        /** Streams the catalog to {@link ExportEntry#CONTENT_URI} opens. */
+        final CatalogExporter exporter;
+
+        /** Holds the cover files named by {@link BookEntry#COLUMN_COVER}. */
+        final File coversDir;
+
+        /** False until the store has a covers directory, so stores without covers skip sweeps. */
+        volatile boolean hasCovers;
+
+        /** True from queuing a sweep of the cover files until it starts. */
+        final AtomicBoolean coverSweepPending = new AtomicBoolean();
+
+        /** Rows of recently listed or opened books, so opening a book from the list skips SQLite. */
+        final BookRowCache rowCache = new BookRowCache(ROW_CACHE_SIZE);
+
+        /**
+         * The low-stock generation last seen, to notify low-stock observers only when a book entered
+         * or left the list since. -1 until first read.
+         */
+        final AtomicLong lowStockGeneration = new AtomicLong(-1);
+
+        /** Compiled statements of the frequent writes, for the current writable database. */
+        private BookStatements mStatements;
+
+        Store(Context context, String name) {
+            this.name = name;
+            dbHelper = new BookStoreDbHelper(context, name);
+            exporter = new CatalogExporter(dbHelper);
+            coversDir = new File(context.getFilesDir(), StoreEntry.DEFAULT_STORE.equals(name)
+                    ? COVERS_DIRECTORY : COVERS_DIRECTORY + "-" + name);
+            hasCovers = coversDir.isDirectory();
+        }
+
+        /**
+         * Return the compiled statements for the given writable database, compiling them on first
+         * use. Must run inside a transaction, as must every use of the statements.
+         */
+        synchronized BookStatements statements(SQLiteDatabase database) {
+            if (mStatements == null || !mStatements.isFor(database)) {
+                if (mStatements != null) {
+                    mStatements.close();
+                }
+                mStatements = new BookStatements(database);
+            }
+            return mStatements;
+        }
+
+        /**
+         * Release the compiled statements, then close the database. Both are opened again on the
+         * next use.
+         */
+        synchronized void close() {
+            if (mStatements != null) {
+                mStatements.close();
+                mStatements = null;
+            }
+            dbHelper.close();
+        }
+
+        /**
+         * Return the given URI of the default store as the same URI of this store.
+         */
+        Uri toStoreUri(Uri uri) {
+            return StoreEntry.buildStoreUri(name, uri);
+        }
+    }
+
+    /**
+     * Initialize the provider and the database helper object.
+     */
+    @Override
+    public boolean onCreate() {
+        // Make sure the variable is a global variable, so it can be referenced from other
+        // ContentProvider methods.
+        mDefaultStore = new Store(getContext(), StoreEntry.DEFAULT_STORE);
+        warmUpInBackground(mDefaultStore.dbHelper);
+        return true;
+    }
+
+    /**
+     * Close the database of every store, with the statements compiled for it.
+     */
+    @Override
+    public void shutdown() {
+        mDefaultStore.close();
+        synchronized (mStores) {
+            for (Store store : mStores.values()) {
+                store.close();
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Return the store of the request the current thread is running.
+     */
+    private Store store() {
+        Store store = mStore.get();
+        return store != null ? store : mDefaultStore;
+    }
+
+    /**
+     * Return the store of the given name, opening it on first use. Its database file is created
+     * when it is first read or written.
+     */
+    private Store storeNamed(String name) {
+        if (name == null || StoreEntry.DEFAULT_STORE.equals(name)) {
+            return mDefaultStore;
+        }
+        if (!StoreEntry.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid store name " + name);
+        }
+        synchronized (mStores) {
+            Store store = mStores.get(name);
+            if (store == null) {
+                store = new Store(getContext(), name);
+                mStores.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Return the names of every store: the default store, then the others in name order.
+     */
+    private String[] storeNames() {
+        TreeSet<String> names = new TreeSet<>();
+        for (String database : getContext().databaseList()) {
+            if (database.startsWith(BookStoreDbHelper.STORE_DATABASE_PREFIX) && database.endsWith(".db")) {
+                String name = database.substring(BookStoreDbHelper.STORE_DATABASE_PREFIX.length(),
+                        database.length() - ".db".length());
+                if (StoreEntry.isValidName(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        synchronized (mStores) {
+            names.addAll(mStores.keySet());
+        }
+        names.remove(StoreEntry.DEFAULT_STORE);
+
+        String[] result = new String[names.size() + 1];
+        result[0] = StoreEntry.DEFAULT_STORE;
+        int i = 1;
+        for (String name : names) {
+            result[i++] = name;
+        }
+        return result;
+    }
+
+    /**
+     * Return the given URI without its store segment, if it has one other than
+     * {@link StoreEntry#ALL_STORES}.
+     */
+    private static Uri withoutStore(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !BookStoreContract.PATH_STORES.equals(segments.get(0))
+                || StoreEntry.ALL_STORES.equals(segments.get(1))) {
+            return uri;
+        }
+        Uri.Builder local = uri.buildUpon().path("");
+        for (String segment : segments.subList(2, segments.size())) {
+            local.appendPath(segment);
+        }
+        return local.build();
+    }
+
+    /**
+     * Make the store addressed by the given URI the current thread's store, and return the URI
+     * without its store segment, as the rest of the provider matches it. The URIs of the store
+     * list and of {@link StoreEntry#ALL_STORES} are returned unchanged. The caller restores the
+     * previous store when the request is done.
+     */
+    private Uri enterStore(Uri uri) {
+        String name = StoreEntry.getStore(uri);
+        mStore.set(StoreEntry.ALL_STORES.equals(name) ? null : storeNamed(name));
+        return withoutStore(uri);
+    }
+
+    /**
+     * Open the database, running any migration, on a background thread. onCreate runs on the main
+     * thread during app startup, so it must not open the database itself; this starts the open
+     * while the first activity inflates, and the first query waits for it at most.
+     */
+    private static void warmUpInBackground(final BookStoreDbHelper dbHelper) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dbHelper.getWritableDatabase();
+                } catch (SQLException e) {
+                    // The first query will open it again and report the error to its caller.
+                    Log.e(LOG_TAG, "Failed to open the database", e);
+                }
+            }
+        });
+    }
+
+    // Every entry point enters the store of its URI, records its latency and row count in
+    // mMetrics, then delegates to the perform* method that does the work. Metrics are shared by
+    // the stores.
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        long start = System.nanoTime();
+        Store previous = mStore.get();
+        uri = enterStore(uri);
+        int match = sUriMatcher.match(uri);
+        try {
+            Cursor cursor = performQuery(uri, projection, selection, selectionArgs, sortOrder);
+            mMetrics.record(match, ProviderMetrics.OP_QUERY, 0, start);
+            return cursor == null ? null : new RowCountingCursor(cursor, match);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(match, ProviderMetrics.OP_QUERY);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Store previous = mStore.get();
+        uri = enterStore(uri);
+        int match = sUriMatcher.match(uri);
+        try {
+            Uri newUri = performInsert(uri, contentValues);
+            mMetrics.record(match, ProviderMetrics.OP_INSERT, ContentUris.parseId(newUri) == -1 ? 0 : 1,
+                    start);
+            return store().toStoreUri(newUri);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(match, ProviderMetrics.OP_INSERT);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        Store previous = mStore.get();
+        uri = enterStore(uri);
+        int match = sUriMatcher.match(uri);
+        try {
+            int rowsInserted = performBulkInsert(uri, values);
+            mMetrics.record(match, ProviderMetrics.OP_BULK_INSERT, rowsInserted, start);
+            return rowsInserted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(match, ProviderMetrics.OP_BULK_INSERT);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        Store previous = mStore.get();
+        uri = enterStore(uri);
+        int match = sUriMatcher.match(uri);
+        try {
+            int rowsUpdated = performUpdate(uri, contentValues, selection, selectionArgs);
+            mMetrics.record(match, ProviderMetrics.OP_UPDATE, rowsUpdated, start);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(match, ProviderMetrics.OP_UPDATE);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        Store previous = mStore.get();
+        uri = enterStore(uri);
+        int match = sUriMatcher.match(uri);
+        try {
+            int rowsDeleted = performDelete(uri, selection, selectionArgs);
+            mMetrics.record(match, ProviderMetrics.OP_DELETE, rowsDeleted, start);
+            return rowsDeleted;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(match, ProviderMetrics.OP_DELETE);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    /**
+     * Adds the row count of a query to its metrics when the caller first asks for it, so recording
+     * it never makes SQLite count rows the caller does not read. Callers that list the rows ask
+     * for the count first thing; a cursor only read with moveToFirst() is recorded without rows.
+     */
+    private final class RowCountingCursor extends CrossProcessCursorWrapper {
+        private final int mMatch;
+        private boolean mCounted;
+
+        RowCountingCursor(Cursor cursor, int match) {
+            super(cursor);
+            mMatch = match;
+        }
+
+        @Override
+        public int getCount() {
+            int count = super.getCount();
+            if (!mCounted) {
+                mCounted = true;
+                mMetrics.recordRows(mMatch, ProviderMetrics.OP_QUERY, count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Return the given URI match codes followed by the metrics code of each of
+     * {@link #CALL_METHODS}.
+     */
+    private static int[] metricsCodes(int[] matchCodes) {
+        int[] codes = Arrays.copyOf(matchCodes, matchCodes.length + CALL_METHODS.length);
+        for (int i = 0; i < CALL_METHODS.length; i++) {
+            codes[matchCodes.length + i] = CALL_METHOD_CODE + i;
+        }
+        return codes;
+    }
+
+    /**
+     * Return the given URI names followed by each of {@link #CALL_METHODS}.
+     */
+    private static String[] metricsNames(String[] uriNames) {
+        String[] names = Arrays.copyOf(uriNames, uriNames.length + CALL_METHODS.length);
+        System.arraycopy(CALL_METHODS, 0, names, uriNames.length, CALL_METHODS.length);
+        return names;
+    }
+
+    /**
+     * Return the metrics code of the given {@link #call} method, or -1, counted as unknown, for a
+     * method the provider does not have.
+     */
+    private static int callMetricsCode(String method) {
+        for (int i = 0; i < CALL_METHODS.length; i++) {
+            if (CALL_METHODS[i].equals(method)) {
+                return CALL_METHOD_CODE + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Run a provider method, in the store named by its {@link StoreEntry#EXTRA_STORE}. Each method
+     * is recorded under its own name, as "method/call"; reading or resetting the metrics is not
+     * recorded.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (BookEntry.METHOD_METRICS.equals(method)) {
+            return mMetrics.snapshot();
+        }
+        if (BookEntry.METHOD_RESET_METRICS.equals(method)) {
+            mMetrics.reset();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        int code = callMetricsCode(method);
+        Store previous = mStore.get();
+        mStore.set(storeNamed(extras == null ? null : extras.getString(StoreEntry.EXTRA_STORE)));
+        try {
+            Bundle result = performCall(method, arg, extras);
+            mMetrics.record(code, ProviderMetrics.OP_CALL, soldCount(result), start);
+            return result;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(code, ProviderMetrics.OP_CALL);
+            throw e;
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    /**
+     * Return the number of copies a sale call sold, from its result.
+     */
+    private static int soldCount(Bundle result) {
+        if (result == null || !result.containsKey(BookEntry.EXTRA_SOLD)) {
+            return 0;
+        }
+        boolean[] soldArray = result.getBooleanArray(BookEntry.EXTRA_SOLD);
+        if (soldArray == null) {
+            return result.getBoolean(BookEntry.EXTRA_SOLD) ? 1 : 0;
+        }
+        int sold = 0;
+        for (boolean copySold : soldArray) {
+            if (copySold) {
+                sold++;
+            }
+        }
+        return sold;
+    }
+
+    /**
+     * Print the metrics, for {@code adb shell dumpsys activity provider}. The argument "reset"
+     * clears them after printing.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        if (args != null && Arrays.asList(args).contains("reset")) {
+            mMetrics.reset();
+            writer.println("Metrics reset");
+        }
+    }
+
+    /**
+     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     */
+    private Cursor performQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        if (match == STORES || match == ALL_STORES_SEARCH || match == ALL_STORES_LOW_STOCK
+                || match == ALL_STORES_SUMMARY) {
+            return queryAllStores(match, uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        // Get readable database
+        SQLiteDatabase database = store().dbHelper.getReadableDatabase();
+
+        // This cursor will hold the result of the query
+        Cursor cursor;
+
+        switch (match) {
+            case BOOKS:
+                cursor = queryBooks(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case BOOK_ID:
+                // For the PET_ID code, extract out the ID from the URI.
+                // For an example URI such as "content://com.example.android.pets/pets/3",
+                // the selection will be "_id=?" and the selection argument will be a
+                // String array containing the actual ID of 3 in this case.
+                //
+                // For every "?" in the selection, we need to have an element in the selection
+                // arguments that will fill in the "?". Since we have 1 question mark in the
+                // selection, we have 1 String in the selection arguments' String array.
+                selection = BookEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+
+                cursor = queryCachedBook(database, ContentUris.parseId(uri), projection);
+                if (cursor == null) {
+                    // This will perform a query on the pets table where the _id equals 3 to return a
+                    // Cursor containing that row of the table.
+                    cursor = database.query(BookEntry.VIEW_NAME, projection, selection, selectionArgs,
+                            null, null, sortOrder);
+                }
+                break;
+            case BOOK_SEARCH:
+                cursor = searchBooks(database, uri, projection, false);
+                break;
+            case SUPPLIERS:
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case SUPPLIER_BOOKS:
+                selection = DatabaseUtils.concatenateWhere(selection, BookEntry.COLUMN_SUPPLIER_ID + "=?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[]{uri.getPathSegments().get(1)});
+                cursor = queryBooks(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case SUMMARY:
+                // A single row maintained by triggers; reading it never scans the books.
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case SUPPLIER_SUMMARY:
+                cursor = database.query(SummaryEntry.SUPPLIER_TABLE_NAME + " JOIN "
+                                + SupplierEntry.TABLE_NAME + " USING (" + SupplierEntry._ID + ")",
+                        projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case LOW_STOCK:
+                // A range scan of the books_quantity index: the cost follows the number of books
+                // low on stock, not the size of the catalog.
+                selection = DatabaseUtils.concatenateWhere(selection, BookEntry.COLUMN_QUANTITY + " < ?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{
+                        String.valueOf(readSetting(database, SettingsEntry.KEY_LOW_STOCK_THRESHOLD))});
+                String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+                cursor = database.query(BookEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder != null ? sortOrder
+                                : BookEntry.COLUMN_QUANTITY + " ASC, " + BookEntry._ID + " ASC",
+                        limit == null ? null : String.valueOf(Integer.parseInt(limit)));
+                break;
+            case MOVEMENTS:
+            case MOVEMENTS_DAILY:
+                cursor = queryMovements(database, uri, match == MOVEMENTS_DAILY, projection,
+                        selection, selectionArgs, sortOrder);
+                break;
+            case SYNC_OUTBOX:
+                cursor = queryOutbox(database, uri, projection, selection, selectionArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+
+        cursor.setNotificationUri(getContext().getContentResolver(), store().toStoreUri(uri));
+        return cursor;
+    }
+
+    /**
+     * Query the list of stores, or run a search, low stock or summary query in every store at
+     * once. Each store is queried on its own thread; see {@link StoreFanOut}.
+     */
+    private Cursor queryAllStores(int match, Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        final String[] names = storeNames();
+        Cursor cursor;
+        if (match == STORES) {
+            MatrixCursor stores = new MatrixCursor(new String[]{StoreEntry.COLUMN_STORE}, names.length);
+            for (String name : names) {
+                stores.addRow(new Object[]{name});
+            }
+            cursor = stores;
+        } else if (match == ALL_STORES_SUMMARY) {
+            cursor = sumSummaries(names, projection);
+        } else {
+            if (sortOrder != null) {
+                throw new IllegalArgumentException("Queries of every store keep the order of a single "
+                        + "store's, cannot sort by " + sortOrder);
+            }
+            String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+            int maxResults = limit != null ? Integer.parseInt(limit)
+                    : match == ALL_STORES_SEARCH ? SearchEntry.DEFAULT_LIMIT : Integer.MAX_VALUE;
+            List<Callable<Cursor>> queries = new ArrayList<>(names.length);
+            for (String name : names) {
+                queries.add(storeQuery(match, storeNamed(name), uri, projection, selection,
+                        selectionArgs));
+            }
+            // Each store returns its rows sorted, followed by two sort key columns.
+            cursor = StoreFanOut.merge(names, StoreFanOut.queryAll(queries), 2, maxResults);
+        }
+
+        // Rows may come from any store, so any change of the provider may change them.
+        cursor.setNotificationUri(getContext().getContentResolver(), BookStoreContract.BASE_CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Return the query of one store for a search or low stock query of every store. Its rows have
+     * the given projection and then two sort keys, and are sorted by them.
+     */
+    private Callable<Cursor> storeQuery(final int match, final Store store, final Uri uri,
+                                        final String[] projection, final String selection,
+                                        final String[] selectionArgs) {
+        return new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                SQLiteDatabase database = store.dbHelper.getReadableDatabase();
+                if (match == ALL_STORES_SEARCH) {
+                    return searchBooks(database, uri, projection, true);
+                }
+
+                // The store's own threshold, and the order of its low-stock list.
+                String[] columns = new String[(projection == null ? 1 : projection.length) + 2];
+                if (projection == null) {
+                    columns[0] = "*";
+                } else {
+                    System.arraycopy(projection, 0, columns, 0, projection.length);
+                }
+                columns[columns.length - 2] = BookEntry.COLUMN_QUANTITY + " AS sort_quantity";
+                columns[columns.length - 1] = BookEntry._ID + " AS sort_id";
+                String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+                return database.query(BookEntry.VIEW_NAME, columns,
+                        DatabaseUtils.concatenateWhere(selection, BookEntry.COLUMN_QUANTITY + " < ?"),
+                        DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{String.valueOf(
+                                readSetting(database, SettingsEntry.KEY_LOW_STOCK_THRESHOLD))}),
+                        null, null, "sort_quantity ASC, sort_id ASC",
+                        limit == null ? null : String.valueOf(Integer.parseInt(limit)));
+            }
+        };
+    }
+
+    /**
+     * Return one row with the sums of the inventory totals of the given stores, read in parallel.
+     */
+    private Cursor sumSummaries(String[] names, String[] projection) {
+        final String[] columns = {SummaryEntry.COLUMN_BOOK_COUNT, SummaryEntry.COLUMN_UNITS,
+                SummaryEntry.COLUMN_STOCK_VALUE};
+        List<Callable<Cursor>> queries = new ArrayList<>(names.length);
+        for (String name : names) {
+            final Store store = storeNamed(name);
+            queries.add(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    return store.dbHelper.getReadableDatabase().query(SummaryEntry.TABLE_NAME,
+                            columns, null, null, null, null, null);
+                }
+            });
+        }
+
+        long[] totals = new long[columns.length];
+        for (Cursor summary : StoreFanOut.queryAll(queries)) {
+            try {
+                if (summary.moveToFirst()) {
+                    for (int i = 0; i < columns.length; i++) {
+                        totals[i] += summary.getLong(i);
+                    }
+                }
+            } finally {
+                summary.close();
+            }
+        }
+
+        if (projection == null) {
+            projection = columns;
+        }
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            int column = Arrays.asList(columns).indexOf(projection[i]);
+            if (column < 0) {
+                throw new IllegalArgumentException("Unknown summary column " + projection[i]);
+            }
+            row[i] = totals[column];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    /**
+     * Query the books view, applying the paging parameters of the URI if it has any.
+     */
+    private Cursor queryBooks(SQLiteDatabase database, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        // Keyset pagination: "after_id" continues after the last row of the previous page,
+        // so a page costs the same however deep into the catalog it is; "through_id" bounds a
+        // page queried again by its range of IDs.
+        String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+        String afterId = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_AFTER_ID);
+        String throughId = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_THROUGH_ID);
+        if (limit != null || afterId != null || throughId != null) {
+            if (sortOrder != null) {
+                throw new IllegalArgumentException("Paged queries are ordered by "
+                        + BookEntry._ID + ", cannot sort by " + sortOrder);
+            }
+            sortOrder = BookEntry._ID + " ASC";
+        }
+        if (limit != null) {
+            limit = String.valueOf(Integer.parseInt(limit));
+        }
+        if (afterId != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, BookEntry._ID + " > ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(Long.parseLong(afterId))});
+        }
+        if (throughId != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, BookEntry._ID + " <= ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(Long.parseLong(throughId))});
+        }
+
+        // A page is small, so read it whole into the row cache; the book opened next is likely on it.
+        if (limit != null && Integer.parseInt(limit) <= ROW_CACHE_SIZE && BookRowCache.covers(projection)) {
+            long generation = store().rowCache.generation();
+            Cursor rows = database.query(BookEntry.VIEW_NAME, BookRowCache.COLUMNS, selection,
+                    selectionArgs, null, null, sortOrder, limit);
+            store().rowCache.putAll(rows, generation);
+            return BookRowCache.project(rows, projection);
+        }
+
+        return database.query(BookEntry.VIEW_NAME, projection, selection, selectionArgs,
+                null, null, sortOrder, limit);
+    }
+
+    /**
+     * Query the stock ledger, or its folded days, applying the book and time range parameters of
+     * the URI. Newest first unless the caller sorts otherwise.
+     */
+    private Cursor queryMovements(SQLiteDatabase database, Uri uri, boolean daily, String[] projection,
+                                  String selection, String[] selectionArgs, String sortOrder) {
+        String bookId = uri.getQueryParameter(MovementEntry.QUERY_PARAMETER_BOOK_ID);
+        String from = uri.getQueryParameter(MovementEntry.QUERY_PARAMETER_FROM);
+        String to = uri.getQueryParameter(MovementEntry.QUERY_PARAMETER_TO);
+        String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+        String time = daily ? MovementEntry.COLUMN_DAY : MovementEntry.COLUMN_CREATED_AT;
+
+        if (bookId != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, MovementEntry.COLUMN_BOOK_ID + " = ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(Long.parseLong(bookId))});
+        }
+        if (from != null) {
+            long millis = Long.parseLong(from);
+            // The first day starting at or after the time.
+            long bound = daily ? (millis + DAY_MILLIS - 1) / DAY_MILLIS : millis;
+            selection = DatabaseUtils.concatenateWhere(selection, time + " >= ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(bound)});
+        }
+        if (to != null) {
+            long millis = Long.parseLong(to);
+            // Days starting before the time.
+            long bound = daily ? (millis + DAY_MILLIS - 1) / DAY_MILLIS : millis;
+            selection = DatabaseUtils.concatenateWhere(selection, time + " < ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{String.valueOf(bound)});
+        }
+        if (sortOrder == null) {
+            sortOrder = daily ? MovementEntry.COLUMN_DAY + " DESC"
+                    : MovementEntry.COLUMN_CREATED_AT + " DESC, " + MovementEntry._ID + " DESC";
+        }
+        return database.query(daily ? MovementEntry.DAILY_TABLE_NAME : MovementEntry.TABLE_NAME,
+                projection, selection, selectionArgs, null, null, sortOrder,
+                limit == null ? null : String.valueOf(Integer.parseInt(limit)));
+    }
+
+    /**
+     * Query the sync outbox, oldest change first, each change with the current columns of its
+     * book, or nulls if the book is gone.
+     */
+    private static Cursor queryOutbox(SQLiteDatabase database, Uri uri, String[] projection,
+                                      String selection, String[] selectionArgs) {
+        String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+        StringBuilder table = new StringBuilder("(SELECT o.").append(SyncEntry._ID).append(" AS ")
+                .append(SyncEntry._ID).append(", o.").append(SyncEntry.COLUMN_BOOK_ID).append(" AS ")
+                .append(SyncEntry.COLUMN_BOOK_ID).append(", o.").append(SyncEntry.COLUMN_DELETED)
+                .append(" AS ").append(SyncEntry.COLUMN_DELETED).append(", o.")
+                .append(SyncEntry.COLUMN_REJECTED).append(" AS ").append(SyncEntry.COLUMN_REJECTED);
+        for (String column : new String[]{BookEntry.COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE,
+                BookEntry.COLUMN_QUANTITY, BookEntry.COLUMN_SUPPLIER_NAME,
+                BookEntry.COLUMN_SUPPLIER_PHONE, BookEntry.COLUMN_VERSION}) {
+            table.append(", b.").append(column).append(" AS ").append(column);
+        }
+        table.append(" FROM ").append(SyncEntry.TABLE_NAME).append(" o LEFT JOIN ")
+                .append(BookEntry.VIEW_NAME).append(" b ON b.").append(BookEntry._ID).append(" = o.")
+                .append(SyncEntry.COLUMN_BOOK_ID).append(')');
+        return database.query(table.toString(), projection, selection, selectionArgs, null, null,
+                SyncEntry._ID + " ASC", limit == null ? null : String.valueOf(Integer.parseInt(limit)));
+    }
+
+    /**
+     * Return the given book from the row cache, reading its row into the cache on a miss.
+     * Return null if the projection cannot be served from the cache or the row was not cached.
+     */
+    private Cursor queryCachedBook(SQLiteDatabase database, long id, String[] projection) {
+        if (!BookRowCache.covers(projection)) {
+            return null;
+        }
+
+        Cursor cursor = store().rowCache.get(id, projection);
+        if (cursor != null) {
+            return cursor;
+        }
+
+        long generation = store().rowCache.generation();
+        Cursor row = database.query(BookEntry.VIEW_NAME, BookRowCache.COLUMNS,
+                BookEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+        store().rowCache.putAll(row, generation);
+        return BookRowCache.project(row, projection);
+    }
+
+    /**
+     * Drop the cached rows of every book sharing a supplier with the given books, whose supplier
+     * phone number may have changed with them. Null drops every row.
+     */
+    private void invalidateSuppliersOf(SQLiteDatabase database, long[] ids) {
+        if (ids == null) {
+            store().rowCache.invalidate(null);
+            return;
+        }
+
+        StringBuilder selection = new StringBuilder(BookEntry._ID + " IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = database.query(true, BookEntry.TABLE_NAME,
+                new String[]{BookEntry.COLUMN_SUPPLIER_ID}, selection.toString(), selectionArgs,
+                null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                store().rowCache.invalidateSupplier(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        store().rowCache.invalidate(ids);
+    }
+
+    /**
+     * Run a full-text search for the "q" parameter of the given URI. Every word of the query is
+     * matched as a prefix. Books whose name starts with the query rank first, then books with a
+     * match in their name, then books matching only on supplier; ties are ordered by name. With
+     * {@code sortKeys}, the rank and the name follow the projection as two more columns, for
+     * merging the results of several stores.
+     */
+    private static Cursor searchBooks(SQLiteDatabase database, Uri uri, String[] projection,
+                                      boolean sortKeys) {
+        String query = uri.getQueryParameter(SearchEntry.QUERY_PARAMETER_QUERY);
+        String limit = uri.getQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT);
+        int maxResults = limit == null ? SearchEntry.DEFAULT_LIMIT : Integer.parseInt(limit);
+
+        StringBuilder columns = new StringBuilder();
+        if (projection == null) {
+            columns.append("b.*");
+        } else {
+            for (String column : projection) {
+                if (columns.length() > 0) {
+                    columns.append(", ");
+                }
+                columns.append("b.").append(column).append(" AS ").append(column);
+            }
+        }
+
+        String match = toFtsQuery(query);
+        if (match == null) {
+            // Nothing searchable, such as only punctuation: return no rows, with the right columns.
+            return database.rawQuery("SELECT " + columns + (sortKeys ? ", 0, b."
+                    + BookEntry.COLUMN_PRODUCT_NAME : "") + " FROM " + BookEntry.VIEW_NAME
+                    + " b WHERE 0", null);
+        }
+
+        String namePrefix = query.trim().replace("\\", "\\\\").replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+
+        // offsets() lists matches column by column, so it starts with "0 " when the name matched.
+        String rank = "CASE WHEN b." + BookEntry.COLUMN_PRODUCT_NAME + " LIKE ? ESCAPE '\\'"
+                + " THEN 0 WHEN offsets(" + SearchEntry.TABLE_NAME + ") LIKE '0 %' THEN 1 ELSE 2 END";
+        String from = " FROM " + SearchEntry.TABLE_NAME + " JOIN " + BookEntry.VIEW_NAME + " b ON b."
+                + BookEntry._ID + " = " + SearchEntry.TABLE_NAME + "." + SearchEntry.COLUMN_DOCID
+                + " WHERE " + SearchEntry.TABLE_NAME + " MATCH ?";
+        if (sortKeys) {
+            // The rank's argument now comes first, in the column list.
+            String sql = "SELECT " + columns + ", " + rank + " AS sort_rank, b."
+                    + BookEntry.COLUMN_PRODUCT_NAME + " AS sort_name" + from
+                    + " ORDER BY sort_rank, sort_name LIMIT " + maxResults;
+            return database.rawQuery(sql, new String[]{namePrefix, match});
+        }
+        String sql = "SELECT " + columns + from + " ORDER BY " + rank + ", b."
+                + BookEntry.COLUMN_PRODUCT_NAME
+                + " LIMIT " + maxResults;
+        return database.rawQuery(sql, new String[]{match, namePrefix});
+    }
+
+    /**
+     * Turn user input into an FTS query that matches every word as a prefix, or return null if
+     * the input has no words. Everything but letters and digits is dropped, so the input cannot
+     * use FTS operators.
+     */
+    private static String toFtsQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Insert new data into the provider with the given ContentValues.
+     */
+    private Uri performInsert(Uri uri, ContentValues contentValues) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return insertBook(uri, contentValues);
+            case SUPPLIERS:
+                return insertSupplier(uri, contentValues);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertBook(Uri uri, ContentValues values) {
+
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        long id;
+        beginWrite(database);
+        try {
+            id = insertBookRow(database, values);
+            writeSucceeded(database);
+        } finally {
+            endWrite(database);
+        }
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        } else {
+            if (hasSupplierDetails(values)) {
+                invalidateSuppliersOf(database, new long[]{id});
+            }
+            notifyRowsChanged(BookEntry.OPERATION_INSERT, new long[]{id});
+            if (hasSupplierDetails(values)) {
+                notifyChange(SupplierEntry.CONTENT_URI);
+            }
+        }
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Validate the given content values and insert them as a new row. Shared by the single-row
+     * and the batch insert paths; it neither shows UI nor sends change notifications. The book is
+     * linked to the supplier given by {@link BookEntry#COLUMN_SUPPLIER_ID}, or else to the supplier
+     * named by {@link BookEntry#COLUMN_SUPPLIER_NAME}, which is created if needed. Must run inside
+     * a transaction.
+     *
+     * @return the ID of the new row, or -1 if SQLite rejected it
+     * @throws IllegalArgumentException if a required value is missing
+     */
+    private long insertBookRow(SQLiteDatabase database, ContentValues values) {
+        return insertBookRow(database, values, null);
+    }
+
+    /**
+     * Like {@link #insertBookRow(SQLiteDatabase, ContentValues)}, remembering in
+     * {@code supplierIds} the supplier of each name and phone number already resolved in the
+     * current transaction, so a batch looks each supplier up once. It may be null.
+     */
+    private long insertBookRow(SQLiteDatabase database, ContentValues values,
+                               Map<String, Long> supplierIds) {
+
+        // Check that the name is not null
+        String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Inventory requires a name");
+        }
+
+        //Check that the price is not null
+        Integer price = values.getAsInteger(BookEntry.COLUMN_PRICE);
+        if (price == null) {
+            throw new IllegalArgumentException("Inventory requires a price");
+        }
+
+        //Check that the quantity is not null
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        if (quantity == null) {
+            throw new IllegalArgumentException("Inventory requires a quantity");
+        }
+
+        Long supplierId = values.getAsLong(BookEntry.COLUMN_SUPPLIER_ID);
+        if (supplierId == null) {
+            String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+            if (supplierName == null) {
+                throw new IllegalArgumentException("Supplier requires a name");
+            }
+
+            String supplierPhone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
+            if (supplierPhone == null) {
+                throw new IllegalArgumentException("Supplier requires a phone number");
+            }
+
+            if (supplierIds == null) {
+                supplierId = resolveSupplier(database, supplierName, supplierPhone);
+            } else {
+                String key = supplierName + '\n' + supplierPhone;
+                supplierId = supplierIds.get(key);
+                if (supplierId == null) {
+                    supplierId = resolveSupplier(database, supplierName, supplierPhone);
+                    supplierIds.put(key, supplierId);
+                }
+            }
+        }
+
+        try {
+            return store().statements(database).insert(name, price, quantity, supplierId);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Return whether the given values set exactly the columns of {@link BookStatements#update},
+     * all of them non-null.
+     */
+    private static boolean isFullRow(ContentValues row) {
+        return row.size() == 4
+                && row.get(BookEntry.COLUMN_PRODUCT_NAME) != null
+                && row.get(BookEntry.COLUMN_PRICE) != null
+                && row.get(BookEntry.COLUMN_QUANTITY) != null
+                && row.get(BookEntry.COLUMN_SUPPLIER_ID) != null;
+    }
+
+    /**
+     * Return the ID of the supplier with the given name, creating it if there is none. A phone
+     * number different from the stored one replaces it; it may be null to keep the stored one.
+     * Must run inside a transaction.
+     *
+     * @throws IllegalArgumentException if the supplier has to be created and phone is null
+     */
+    private long resolveSupplier(SQLiteDatabase database, String name, String phone) {
+        Cursor cursor = database.query(SupplierEntry.TABLE_NAME,
+                new String[]{SupplierEntry._ID, SupplierEntry.COLUMN_SUPPLIER_PHONE},
+                SupplierEntry.COLUMN_SUPPLIER_NAME + "=?", new String[]{name}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                long id = cursor.getLong(0);
+                if (phone != null && !phone.equals(cursor.getString(1))) {
+                    ContentValues values = new ContentValues();
+                    values.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, phone);
+                    database.update(SupplierEntry.TABLE_NAME, values, SupplierEntry._ID + "=?",
+                            new String[]{String.valueOf(id)});
+                }
+                return id;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (phone == null) {
+            throw new IllegalArgumentException("Supplier requires a phone number");
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(SupplierEntry.COLUMN_SUPPLIER_NAME, name);
+        values.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, phone);
+        return database.insertOrThrow(SupplierEntry.TABLE_NAME, null, values);
+    }
+
+    private static boolean hasSupplierDetails(ContentValues values) {
+        return values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)
+                || values.containsKey(BookEntry.COLUMN_SUPPLIER_PHONE);
+    }
+
+    /**
+     * Insert a new supplier. Return the content URI of the new row.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        if (values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME) == null) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+        if (values.getAsString(SupplierEntry.COLUMN_SUPPLIER_PHONE) == null) {
+            throw new IllegalArgumentException("Supplier requires a phone number");
+        }
+
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        long id = database.insert(SupplierEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        } else {
+            notifyChange(SupplierEntry.CONTENT_URI);
+            notifyChange(SummaryEntry.SUPPLIERS_URI);
+        }
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert all the given rows in a single transaction. Rows that fail validation or are
+     * rejected by SQLite are logged and skipped instead of aborting the whole batch.
+     *
+     * @return the number of rows actually inserted
+     */
+    private int performBulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != BOOKS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        long[] insertedIds = new long[Math.min(values.length, MAX_NOTIFY_IDS + 1)];
+        Map<String, Long> supplierIds = new HashMap<>();
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    long id = insertBookRow(database, values[i], supplierIds);
+                    if (id != -1) {
+                        if (rowsInserted < insertedIds.length) {
+                            insertedIds[rowsInserted] = id;
+                        }
+                        rowsInserted++;
+                    } else {
+                        Log.e(LOG_TAG, "Failed to insert row " + i + " of bulk insert for " + uri);
+                    }
+                } catch (IllegalArgumentException | SQLException e) {
+                    Log.e(LOG_TAG, "Skipping row " + i + " of bulk insert for " + uri + ": "
+                            + e.getMessage());
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted > MAX_NOTIFY_IDS) {
+            store().rowCache.invalidate(null);
+            notifyRowsChanged(BookEntry.OPERATION_INSERT, null);
+        } else if (rowsInserted != 0) {
+            long[] ids = Arrays.copyOf(insertedIds, rowsInserted);
+            invalidateSuppliersOf(database, ids);
+            notifyRowsChanged(BookEntry.OPERATION_INSERT, ids);
+        }
+        if (rowsInserted != 0) {
+            notifyChange(SupplierEntry.CONTENT_URI);
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Apply all the given operations in a single transaction, with one change notification at the
+     * end. An operation that fails is rolled back alone, logged and reported as a result with a
+     * count of 0; the remaining operations still run and commit. Every operation must be in the
+     * same store, as the transaction is.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int numOperations = operations.size();
+        String storeName = numOperations == 0 ? StoreEntry.DEFAULT_STORE
+                : StoreEntry.getStore(operations.get(0).getUri());
+        for (ContentProviderOperation operation : operations) {
+            if (!storeName.equals(StoreEntry.getStore(operation.getUri()))) {
+                throw new OperationApplicationException("A batch cannot span stores: "
+                        + operation.getUri() + " is not in " + storeName);
+            }
+        }
+        Store previous = mStore.get();
+        mStore.set(storeNamed(storeName));
+        try {
+            return applyBatchInStore(operations);
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    /**
+     * Begin the transaction of a single write. Inside a batch the write runs in the savepoint of
+     * its operation instead: a nested transaction ending without success would roll the whole
+     * batch back when it ends.
+     */
+    private void beginWrite(SQLiteDatabase database) {
+        if (!mInBatch.get()) {
+            database.beginTransaction();
+        }
+    }
+
+    private void writeSucceeded(SQLiteDatabase database) {
+        if (!mInBatch.get()) {
+            database.setTransactionSuccessful();
+        }
+    }
+
+    private void endWrite(SQLiteDatabase database) {
+        if (!mInBatch.get()) {
+            database.endTransaction();
+        }
+    }
+
+    private ContentProviderResult[] applyBatchInStore(ArrayList<ContentProviderOperation> operations) {
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        boolean changed = false;
+
+        mInBatch.set(Boolean.TRUE);
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                database.execSQL(SAVEPOINT_OPERATION);
+                try {
+                    results[i] = operation.apply(this, results, i);
+                    changed |= operation.isWriteOperation();
+                } catch (IllegalArgumentException | SQLException
+                        | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Operation " + i + " of batch failed for " + operation.getUri()
+                            + ": " + e.getMessage());
+                    results[i] = new ContentProviderResult(0);
+                    database.execSQL(ROLLBACK_TO_OPERATION);
+                }
+                database.execSQL(RELEASE_OPERATION);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mInBatch.set(Boolean.FALSE);
+        }
+
+        if (changed) {
+            // Rows were invalidated as each operation ran, but the batch only committed now.
+            store().rowCache.invalidate(null);
+            notifyChange(BookEntry.CONTENT_URI);
+            notifyChange(SupplierEntry.CONTENT_URI);
+            notifyChange(SummaryEntry.CONTENT_URI);
+            notifyChange(MovementEntry.CONTENT_URI);
+            notifyLowStockIfChanged();
+        }
+
+        return results;
+    }
+
+    /**
+     * Provider methods that are not plain CRUD. See {@link BookEntry#METHOD_SELL}.
+     */
+    private Bundle performCall(String method, String arg, Bundle extras) {
+        if (BookEntry.METHOD_SELL.equals(method)) {
+            return sellBook(Long.parseLong(arg));
+        }
+        if (BookEntry.METHOD_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(BookEntry.EXTRA_CACHE_HITS, store().rowCache.hitCount());
+            result.putInt(BookEntry.EXTRA_CACHE_MISSES, store().rowCache.missCount());
+            result.putInt(BookEntry.EXTRA_CACHE_EVICTIONS, store().rowCache.evictionCount());
+            result.putInt(BookEntry.EXTRA_CACHE_SIZE, store().rowCache.size());
+            return result;
+        }
+        if (LowStockEntry.METHOD_GET_THRESHOLD.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(LowStockEntry.EXTRA_THRESHOLD, (int) readSetting(
+                    store().dbHelper.getReadableDatabase(), SettingsEntry.KEY_LOW_STOCK_THRESHOLD));
+            return result;
+        }
+        if (LowStockEntry.METHOD_SET_THRESHOLD.equals(method)) {
+            setLowStockThreshold(Integer.parseInt(arg));
+            return null;
+        }
+        if (ImportEntry.METHOD_IMPORT_CHUNK.equals(method)) {
+            return importChunk(arg, extras);
+        }
+        if (ImportEntry.METHOD_IMPORT_CHECKPOINT.equals(method)) {
+            return readImportCheckpoint(store().dbHelper.getReadableDatabase(), arg);
+        }
+        if (BookEntry.METHOD_SET_COVER.equals(method)) {
+            return setCover(Long.parseLong(arg),
+                    extras == null ? null : (Uri) extras.getParcelable(BookEntry.EXTRA_SOURCE),
+                    extras == null ? -1 : extras.getLong(BookEntry.EXTRA_VERSION, -1));
+        }
+        if (MovementEntry.METHOD_RESTOCK.equals(method)) {
+            if (extras == null || !extras.containsKey(BookEntry.EXTRA_QUANTITY)) {
+                throw new IllegalArgumentException(method + " requires " + BookEntry.EXTRA_QUANTITY);
+            }
+            return restock(Long.parseLong(arg), extras.getInt(BookEntry.EXTRA_QUANTITY));
+        }
+        if (MovementEntry.METHOD_COMPACT.equals(method)) {
+            return compactLedger(arg == null ? MovementEntry.DEFAULT_RETENTION_DAYS : Integer.parseInt(arg));
+        }
+        if (BookEntry.METHOD_UPDATE_IF_VERSION.equals(method)) {
+            return updateIfVersion(arg, extras);
+        }
+        if (SyncEntry.METHOD_ACKNOWLEDGE.equals(method)) {
+            if (extras == null || extras.getLongArray(BookEntry.EXTRA_IDS) == null) {
+                throw new IllegalArgumentException(method + " requires " + BookEntry.EXTRA_IDS);
+            }
+            return acknowledgeChanges(extras.getLongArray(BookEntry.EXTRA_IDS));
+        }
+        if (SyncEntry.METHOD_REJECT.equals(method)) {
+            if (extras == null || extras.getLongArray(BookEntry.EXTRA_IDS) == null
+                    || extras.getInt(SyncEntry.EXTRA_STATUS) <= 0) {
+                throw new IllegalArgumentException(method + " requires " + BookEntry.EXTRA_IDS
+                        + " and " + SyncEntry.EXTRA_STATUS);
+            }
+            return rejectChanges(extras.getLongArray(BookEntry.EXTRA_IDS),
+                    extras.getInt(SyncEntry.EXTRA_STATUS));
+        }
+        if (SyncEntry.METHOD_APPLY_CHANGES.equals(method)) {
+            if (extras == null || extras.getParcelableArray(SyncEntry.EXTRA_CHANGES) == null
+                    || !extras.containsKey(SyncEntry.EXTRA_CURSOR)) {
+                throw new IllegalArgumentException(method + " requires " + SyncEntry.EXTRA_CHANGES
+                        + " and " + SyncEntry.EXTRA_CURSOR);
+            }
+            return applyChanges(extras.getParcelableArray(SyncEntry.EXTRA_CHANGES),
+                    extras.getLong(SyncEntry.EXTRA_CURSOR));
+        }
+        if (SyncEntry.METHOD_GET_CURSOR.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(SyncEntry.EXTRA_CURSOR, readSetting(
+                    store().dbHelper.getReadableDatabase(), SettingsEntry.KEY_SYNC_CURSOR));
+            return result;
+        }
+        if (BookEntry.METHOD_SELL_BATCH.equals(method)) {
+            if (extras == null || extras.getLongArray(BookEntry.EXTRA_IDS) == null) {
+                throw new IllegalArgumentException(method + " requires " + BookEntry.EXTRA_IDS);
+            }
+            return sellBooks(extras.getLongArray(BookEntry.EXTRA_IDS));
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    /**
+     * Update a book if it still has the version the caller read; otherwise report the conflict
+     * with the book's current row. See {@link BookEntry#METHOD_UPDATE_IF_VERSION}.
+     */
+    private Bundle updateIfVersion(String arg, Bundle extras) {
+        if (arg == null || extras == null || extras.getParcelable(BookEntry.EXTRA_VALUES) == null
+                || !extras.containsKey(BookEntry.EXTRA_VERSION)) {
+            throw new IllegalArgumentException(BookEntry.METHOD_UPDATE_IF_VERSION + " requires a book ID, "
+                    + BookEntry.EXTRA_VALUES + " and " + BookEntry.EXTRA_VERSION);
+        }
+        long id = Long.parseLong(arg);
+        ContentValues values = extras.getParcelable(BookEntry.EXTRA_VALUES);
+        String[] selectionArgs = new String[]{String.valueOf(id)};
+        int rowsUpdated = updateBook(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id), values,
+                BookEntry._ID + "=?", selectionArgs, new long[]{id},
+                extras.getLong(BookEntry.EXTRA_VERSION));
+
+        Bundle result = new Bundle();
+        result.putBoolean(BookEntry.EXTRA_CONFLICT, rowsUpdated == 0);
+        if (rowsUpdated == 0) {
+            Cursor cursor = store().dbHelper.getReadableDatabase().query(BookEntry.VIEW_NAME,
+                    BookRowCache.COLUMNS, BookEntry._ID + "=?", selectionArgs, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    ContentValues current = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, current);
+                    result.putParcelable(BookEntry.EXTRA_CURRENT_ROW, current);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sell one copy of the given book.
+     */
+    private Bundle sellBook(long id) {
+        Bundle batch = sellBooks(new long[]{id});
+        Bundle result = new Bundle();
+        result.putBoolean(BookEntry.EXTRA_SOLD, batch.getBooleanArray(BookEntry.EXTRA_SOLD)[0]);
+        result.putInt(BookEntry.EXTRA_QUANTITY, batch.getIntArray(BookEntry.EXTRA_QUANTITY)[0]);
+        return result;
+    }
+
+    /**
+     * Sell one copy per given ID, all in one transaction so a burst of sales costs one commit.
+     * Each decrement and its {@code quantity > 0} guard run as a single UPDATE, so concurrent
+     * sales and edits cannot lose each other's changes.
+     */
+    private Bundle sellBooks(long[] ids) {
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        boolean[] sold = new boolean[ids.length];
+        int[] quantities = new int[ids.length];
+
+        database.beginTransaction();
+        try {
+            BookStatements statements = store().statements(database);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < ids.length; i++) {
+                sold[i] = statements.sell(ids[i]);
+                // Read each quantity back inside the transaction so it is the one that sale left.
+                quantities[i] = (int) statements.readQuantity(ids[i]);
+                if (sold[i]) {
+                    statements.recordMovement(ids[i], MovementEntry.KIND_SALE, -1, quantities[i], now);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        long[] soldIds = new long[ids.length];
+        int soldCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (sold[i] && indexOf(soldIds, soldCount, ids[i]) < 0) {
+                soldIds[soldCount++] = ids[i];
+            }
+        }
+        if (soldCount != 0) {
+            soldIds = Arrays.copyOf(soldIds, soldCount);
+            store().rowCache.invalidate(soldIds);
+            notifyRowsChanged(BookEntry.OPERATION_UPDATE, soldIds);
+            notifyChange(MovementEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putBooleanArray(BookEntry.EXTRA_SOLD, sold);
+        result.putIntArray(BookEntry.EXTRA_QUANTITY, quantities);
+        return result;
+    }
+
+    /**
+     * Copy the image at the given URI into a new cover file and point the book at it, or remove
+     * the book's cover if the source is null. The old cover file is deleted once the row no
+     * longer references it. The copy happens outside the transaction, so it never holds the
+     * database while reading the source. The cover bumps the book's version like any update, so
+     * the result reports the new version and whether the book was at the caller's version before.
+     */
+    private Bundle setCover(long id, Uri source, long expectedVersion) {
+        File cover = null;
+        if (source != null) {
+            try {
+                cover = copyCover(id, source);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the cover at " + source, e);
+            }
+        }
+        String name = cover == null ? null : cover.getName();
+
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        String oldName = null;
+        int rowsUpdated;
+        long previousVersion;
+        long version = -1;
+        database.beginTransaction();
+        try {
+            oldName = readCover(database, id);
+            previousVersion = store().statements(database).readVersion(id);
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_COVER, name);
+            rowsUpdated = database.update(BookEntry.TABLE_NAME, values, BookEntry._ID + "=?",
+                    new String[]{String.valueOf(id)});
+            if (rowsUpdated != 0) {
+                version = store().statements(database).readVersion(id);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Bundle result = new Bundle();
+        if (rowsUpdated == 0) {
+            if (cover != null) {
+                cover.delete();
+            }
+            return result;
+        }
+        if (oldName != null) {
+            new File(store().coversDir, oldName).delete();
+        }
+        store().rowCache.invalidate(new long[]{id});
+        notifyRowsChanged(BookEntry.OPERATION_UPDATE, new long[]{id});
+
+        result.putString(BookEntry.EXTRA_COVER, name);
+        result.putLong(BookEntry.EXTRA_VERSION, version);
+        if (expectedVersion >= 0) {
+            result.putBoolean(BookEntry.EXTRA_CONFLICT, previousVersion != expectedVersion);
+        }
+        return result;
+    }
+
+    /**
+     * Copy the image at the given URI into a new, uniquely named file of the store's covers, named
+     * with the suffix of its type. Only JPEG, PNG, GIF and WebP images are taken.
+     */
+    private File copyCover(long id, Uri source) throws IOException {
+        Store store = store();
+        if (!store.coversDir.isDirectory() && !store.coversDir.mkdirs()) {
+            throw new IOException("Cannot create " + store.coversDir);
+        }
+        store.hasCovers = true;
+        InputStream in = getContext().getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new FileNotFoundException("Nothing to read at " + source);
+        }
+        File cover = null;
+        boolean copied = false;
+        OutputStream out = null;
+        try {
+            byte[] buffer = new byte[8192];
+            int header = 0;
+            int read;
+            while (header < COVER_HEADER_BYTES
+                    && (read = in.read(buffer, header, COVER_HEADER_BYTES - header)) != -1) {
+                header += read;
+            }
+            String suffix = coverSuffix(buffer, header);
+            if (suffix == null) {
+                throw new IOException("Not a JPEG, PNG, GIF or WebP image");
+            }
+            cover = File.createTempFile(id + "-", suffix, store.coversDir);
+            out = new FileOutputStream(cover);
+            out.write(buffer, 0, header);
+            long total = header;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_COVER_BYTES) {
+                    throw new IOException("Cover larger than " + MAX_COVER_BYTES + " bytes");
+                }
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            out = null;
+            copied = true;
+            return cover;
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+            if (!copied && cover != null) {
+                cover.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the file suffix of the image type the given header starts with, or null if it is
+     * not a cover type.
+     */
+    private static String coverSuffix(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8
+                && (header[2] & 0xff) == 0xff) {
+            return COVER_SUFFIXES[0][0];
+        }
+        if (length >= 4 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N'
+                && header[3] == 'G') {
+            return COVER_SUFFIXES[1][0];
+        }
+        if (length >= 4 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == '8') {
+            return COVER_SUFFIXES[2][0];
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B'
+                && header[11] == 'P') {
+            return COVER_SUFFIXES[3][0];
+        }
+        return null;
+    }
+
+    /**
+     * Return the type of the given book's cover, from the suffix of its file name, or null if the
+     * book has no cover.
+     */
+    private String coverType(long id) {
+        String name = readCover(store().dbHelper.getReadableDatabase(), id);
+        if (name == null) {
+            return null;
+        }
+        for (String[] suffix : COVER_SUFFIXES) {
+            if (name.endsWith(suffix[0])) {
+                return suffix[1];
+            }
+        }
+        // Covers copied before their type was kept.
+        return BookEntry.COVER_MIME_TYPE;
+    }
+
+    /**
+     * Return the {@link BookEntry#COLUMN_COVER} of the given book, or null if it has no cover or
+     * does not exist.
+     */
+    private static String readCover(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry.COLUMN_COVER},
+                BookEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete, on a background thread, the cover files no book references any more. Deletes only
+     * remove rows, so their covers are left for this sweep instead of being looked up first. A
+     * store that never had covers is not swept, and deletes while a sweep is pending share it.
+     */
+    private void sweepCoversInBackground() {
+        final Store store = store();
+        if (!store.hasCovers || !store.coverSweepPending.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Deletes from now on need a sweep of their own.
+                store.coverSweepPending.set(false);
+                try {
+                    sweepCovers(store);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to sweep the cover files", e);
+                }
+            }
+        });
+    }
+
+    private static void sweepCovers(Store store) {
+        File[] files = store.coversDir.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+        HashSet<String> referenced = new HashSet<>();
+        Cursor cursor = store.dbHelper.getReadableDatabase().query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry.COLUMN_COVER}, BookEntry.COLUMN_COVER + " IS NOT NULL",
+                null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long cutoff = System.currentTimeMillis() - COVER_SWEEP_GRACE_MILLIS;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Add copies to a book's stock and record the restock in the ledger, in one transaction.
      */
-    public static final String LOG_TAG = BookStoreProvider.class.getSimpleName();
-    /** URI matcher code for the content URI for the bookstore table */
-    private static final int BOOKS = 100;
-    /** URI matcher code for the content URI for a single inventory in the bookstore table */
-    private static final int BOOK_ID = 101;
+    private Bundle restock(long id, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("A restock needs a positive number of copies: " + copies);
+        }
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        int quantity = -1;
+        database.beginTransaction();
+        try {
+            BookStatements statements = store().statements(database);
+            if (statements.restock(id, copies)) {
+                quantity = (int) statements.readQuantity(id);
+                statements.recordMovement(id, MovementEntry.KIND_RESTOCK, copies, quantity,
+                        System.currentTimeMillis());
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
-    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+        if (quantity != -1) {
+            store().rowCache.invalidate(new long[]{id});
+            notifyRowsChanged(BookEntry.OPERATION_UPDATE, new long[]{id});
+            notifyChange(MovementEntry.CONTENT_URI);
+        }
 
-    // Static initializer. This is run the first time anything is called from this class.
-    static {
-        // The calls to addURI() go here, for all of the content URI patterns that the provider
-        // should recognize. All paths added to the UriMatcher have a corresponding code to return
-        // when a match is found.
+        Bundle result = new Bundle();
+        result.putInt(BookEntry.EXTRA_QUANTITY, quantity);
+        return result;
+    }
 
-        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_BOOKSTORE, BOOKS);
-        sUriMatcher.addURI(BookStoreContract.CONTENT_AUTHORITY, BookStoreContract.PATH_BOOKSTORE + "/#", BOOK_ID);
+    /**
+     * Fold the ledger's movements from before the retention period into one row per book, day and
+     * kind, adding to the days already folded, and delete them. The cutoff is the start of a day,
+     * so each day is folded whole, once.
+     */
+    private Bundle compactLedger(int retentionDays) {
+        if (retentionDays < 0) {
+            throw new IllegalArgumentException("Retention cannot be negative: " + retentionDays);
+        }
+        long cutoff = (System.currentTimeMillis() / DAY_MILLIS - retentionDays) * DAY_MILLIS;
+        String day = "m." + MovementEntry.COLUMN_CREATED_AT + " / " + DAY_MILLIS;
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        int folded;
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT OR REPLACE INTO " + MovementEntry.DAILY_TABLE_NAME + " SELECT m."
+                    + MovementEntry.COLUMN_BOOK_ID + ", " + day + ", m." + MovementEntry.COLUMN_KIND
+                    + ", SUM(m." + MovementEntry.COLUMN_DELTA + ") + IFNULL(d." + MovementEntry.COLUMN_DELTA
+                    + ", 0), COUNT(*) + IFNULL(d." + MovementEntry.COLUMN_MOVEMENTS + ", 0) FROM "
+                    + MovementEntry.TABLE_NAME + " m LEFT JOIN " + MovementEntry.DAILY_TABLE_NAME
+                    + " d ON d." + MovementEntry.COLUMN_BOOK_ID + " = m." + MovementEntry.COLUMN_BOOK_ID
+                    + " AND d." + MovementEntry.COLUMN_DAY + " = " + day + " AND d."
+                    + MovementEntry.COLUMN_KIND + " = m." + MovementEntry.COLUMN_KIND + " WHERE m."
+                    + MovementEntry.COLUMN_CREATED_AT + " < ? GROUP BY m." + MovementEntry.COLUMN_BOOK_ID
+                    + ", " + day + ", m." + MovementEntry.COLUMN_KIND, new Object[]{cutoff});
+            folded = database.delete(MovementEntry.TABLE_NAME,
+                    MovementEntry.COLUMN_CREATED_AT + " < ?", new String[]{String.valueOf(cutoff)});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (folded != 0) {
+            notifyChange(MovementEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(MovementEntry.EXTRA_MOVEMENTS_FOLDED, folded);
+        return result;
     }
 
-    private BookStoreDbHelper mDbHelper;
+    /**
+     * Remove the given changes from the sync outbox once the server has them. A row replaced by a
+     * newer change since has a new ID, so the newer change stays queued.
+     */
+    private Bundle acknowledgeChanges(long[] ids) {
+        int acknowledged = ids.length == 0 ? 0 : store().dbHelper.getWritableDatabase()
+                .delete(SyncEntry.TABLE_NAME, outboxSelection(ids), null);
+
+        Bundle result = new Bundle();
+        result.putInt(SyncEntry.EXTRA_ACKNOWLEDGED, acknowledged);
+        return result;
+    }
 
     /**
-     * Initialize the provider and the database helper object.
+     * Mark the given changes as rejected by the server with the given status, so later pushes
+     * leave them out. As when acknowledging, a newer change of the same book is not marked.
      */
-    @Override
-    public boolean onCreate() {
-        // Make sure the variable is a global variable, so it can be referenced from other
-        // ContentProvider methods.
-        mDbHelper = new BookStoreDbHelper(getContext());
-        return true;
+    private Bundle rejectChanges(long[] ids, int status) {
+        ContentValues values = new ContentValues();
+        values.put(SyncEntry.COLUMN_REJECTED, status);
+        int rejected = ids.length == 0 ? 0 : store().dbHelper.getWritableDatabase()
+                .update(SyncEntry.TABLE_NAME, values, outboxSelection(ids), null);
+
+        Bundle result = new Bundle();
+        result.putInt(SyncEntry.EXTRA_REJECTED, rejected);
+        return result;
     }
 
     /**
-     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     * Return the selection of the given outbox rows.
      */
-    @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-                        String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+    private static String outboxSelection(long[] ids) {
+        StringBuilder selection = new StringBuilder(SyncEntry._ID + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
 
-        // This cursor will hold the result of the query
-        Cursor cursor;
+    /**
+     * Apply a batch of server changes and advance the sync cursor, in one transaction, so after a
+     * crash the cursor names exactly the changes that were applied. The sync triggers are turned
+     * off for the transaction, so the changes are not pushed back to the server.
+     */
+    private Bundle applyChanges(Parcelable[] changes, long cursor) {
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        Map<String, Long> supplierIds = new HashMap<>();
+        int applied = 0;
+        int skipped = 0;
+        int malformed = 0;
+        boolean deleted = false;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
-                break;
-            case BOOK_ID:
-                // For the PET_ID code, extract out the ID from the URI.
-                // For an example URI such as "content://com.example.android.pets/pets/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case.
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+        database.beginTransaction();
+        try {
+            writeSetting(database, SettingsEntry.KEY_SYNC_APPLYING, 1);
+            BookStatements statements = store().statements(database);
+            for (Parcelable change : changes) {
+                ContentValues values = (ContentValues) change;
+                Long id = values.getAsLong(BookEntry._ID);
+                if (id == null) {
+                    Log.e(LOG_TAG, "Skipping a server change without a book " + BookEntry._ID);
+                    malformed++;
+                    continue;
+                }
+                if (statements.hasPendingChange(id)) {
+                    // Changed here since the server's change was made: the local change is pushed
+                    // next, and the server's answer to it comes back in a later pull.
+                    skipped++;
+                    continue;
+                }
+                database.execSQL(SAVEPOINT_OPERATION);
+                try {
+                    Integer delete = values.getAsInteger(SyncEntry.COLUMN_DELETED);
+                    if (delete != null && delete != 0) {
+                        if (database.delete(BookEntry.TABLE_NAME, BookEntry._ID + "=?",
+                                new String[]{String.valueOf(id)}) != 0) {
+                            applied++;
+                            deleted = true;
+                        }
+                    } else if (applyBookChange(database, id, values, supplierIds)) {
+                        applied++;
+                    }
+                } catch (IllegalArgumentException | SQLException e) {
+                    // Skipped rather than failing every pull from here on, as the cursor would
+                    // never pass it.
+                    Log.e(LOG_TAG, "Skipping the server change of book " + id + ": " + e.getMessage());
+                    malformed++;
+                    database.execSQL(ROLLBACK_TO_OPERATION);
+                    // It may have resolved a supplier the rollback undid.
+                    supplierIds.clear();
+                }
+                database.execSQL(RELEASE_OPERATION);
+            }
+            writeSetting(database, SettingsEntry.KEY_SYNC_APPLYING, 0);
+            writeSetting(database, SettingsEntry.KEY_SYNC_CURSOR, cursor);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
-                // This will perform a query on the pets table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        if (applied != 0) {
+            // Inserts, updates and deletes mixed: observers reload.
+            store().rowCache.invalidate(null);
+            notifyRowsChanged(BookEntry.OPERATION_UPDATE, null);
+            notifyChange(SupplierEntry.CONTENT_URI);
+            notifyChange(MovementEntry.CONTENT_URI);
+        }
+        if (deleted) {
+            sweepCoversInBackground();
         }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return cursor;
+        Bundle result = new Bundle();
+        result.putInt(SyncEntry.EXTRA_APPLIED, applied);
+        result.putInt(SyncEntry.EXTRA_SKIPPED, skipped);
+        result.putInt(SyncEntry.EXTRA_MALFORMED, malformed);
+        return result;
     }
 
     /**
-     * Insert new data into the provider with the given ContentValues.
+     * Set every column of the given book from a server change, creating the book with that ID if
+     * it does not exist. A change of quantity is recorded in the ledger as an adjustment. Must run
+     * inside a transaction.
+     *
+     * @return whether a row was written
+     * @throws IllegalArgumentException if a column of a book insert is missing
      */
-    @Override
-    public Uri insert(Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                return insertBook(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+    private boolean applyBookChange(SQLiteDatabase database, long id, ContentValues change,
+                                    Map<String, Long> supplierIds) {
+        String name = change.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
+        Integer price = change.getAsInteger(BookEntry.COLUMN_PRICE);
+        Integer quantity = change.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        String supplierName = change.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+        String supplierPhone = change.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
+        if (name == null || price == null || quantity == null || supplierName == null
+                || supplierPhone == null) {
+            throw new IllegalArgumentException("The change of book " + id + " is missing a column");
+        }
+
+        String key = supplierName + '\n' + supplierPhone;
+        Long supplierId = supplierIds.get(key);
+        if (supplierId == null) {
+            supplierId = resolveSupplier(database, supplierName, supplierPhone);
+            supplierIds.put(key, supplierId);
+        }
+
+        ContentValues row = new ContentValues();
+        row.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        row.put(BookEntry.COLUMN_PRICE, price);
+        row.put(BookEntry.COLUMN_QUANTITY, quantity);
+        row.put(BookEntry.COLUMN_SUPPLIER_ID, supplierId);
+        String[] idArg = {String.valueOf(id)};
+        store().statements(database).recordAdjustment(id, quantity, System.currentTimeMillis());
+        if (database.update(BookEntry.TABLE_NAME, row, BookEntry._ID + "=?", idArg) != 0) {
+            return true;
         }
+        row.put(BookEntry._ID, id);
+        return database.insertOrThrow(BookEntry.TABLE_NAME, null, row) != -1;
     }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Insert a chunk of an import and advance its checkpoint, in one transaction: after a crash
+     * the checkpoint names exactly the first line that was not committed. Rejected rows are
+     * skipped and reported with their line.
      */
-    private Uri insertBook(Uri uri, ContentValues values) {
+    private Bundle importChunk(String importId, Bundle extras) {
+        if (importId == null || extras == null) {
+            throw new IllegalArgumentException(ImportEntry.METHOD_IMPORT_CHUNK
+                    + " requires an import ID and extras");
+        }
+        Parcelable[] rows = extras.getParcelableArray(ImportEntry.EXTRA_ROWS);
+        int[] lines = extras.getIntArray(ImportEntry.EXTRA_LINES);
+        if (rows == null) {
+            rows = new Parcelable[0];
+        }
+        if (lines == null || lines.length != rows.length) {
+            throw new IllegalArgumentException(ImportEntry.EXTRA_LINES + " must match "
+                    + ImportEntry.EXTRA_ROWS);
+        }
 
-        // Check that the name is not null
-        String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
-        if (name == null) {
-            Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Inventory requires a name");
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        Map<String, Long> supplierIds = new HashMap<>();
+        int imported = 0;
+        int[] errorLines = new int[rows.length];
+        String[] errorMessages = new String[rows.length];
+        int errors = 0;
+
+        database.beginTransaction();
+        try {
+            Bundle checkpoint = readImportCheckpoint(database, importId);
+            if (checkpoint.getBoolean(ImportEntry.EXTRA_COMPLETED)) {
+                throw new IllegalArgumentException("Import " + importId + " is already completed");
+            }
+
+            for (int i = 0; i < rows.length; i++) {
+                String message;
+                try {
+                    if (insertBookRow(database, (ContentValues) rows[i], supplierIds) != -1) {
+                        imported++;
+                        continue;
+                    }
+                    message = "Rejected by the database";
+                } catch (IllegalArgumentException e) {
+                    message = e.getMessage();
+                }
+                errorLines[errors] = lines[i];
+                errorMessages[errors] = message;
+                errors++;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(ImportEntry.COLUMN_IMPORT_ID, importId);
+            values.put(ImportEntry.COLUMN_NEXT_LINE, extras.getInt(ImportEntry.EXTRA_NEXT_LINE));
+            values.put(ImportEntry.COLUMN_ROWS_IMPORTED,
+                    checkpoint.getInt(ImportEntry.EXTRA_ROWS_IMPORTED) + imported);
+            values.put(ImportEntry.COLUMN_ROWS_FAILED, checkpoint.getInt(ImportEntry.EXTRA_ROWS_FAILED)
+                    + errors + extras.getInt(ImportEntry.EXTRA_PARSE_FAILURES));
+            values.put(ImportEntry.COLUMN_COMPLETED, extras.getBoolean(ImportEntry.EXTRA_COMPLETED) ? 1 : 0);
+            database.insertWithOnConflict(ImportEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
-        //Check that the price is not null
-        Integer price = values.getAsInteger(BookEntry.COLUMN_PRICE);
-        if (price == null) {
-            Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Inventory requires a price");
+        if (imported != 0) {
+            // A chunk is too large to list its rows; observers reload once per chunk.
+            store().rowCache.invalidate(null);
+            notifyRowsChanged(BookEntry.OPERATION_INSERT, null);
+            notifyChange(SupplierEntry.CONTENT_URI);
         }
 
-        //Check that the quantity is not null
-        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
-        if (quantity == null) {
-            Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Inventory requires a quantity");
+        Bundle result = new Bundle();
+        result.putInt(ImportEntry.EXTRA_ROWS_IMPORTED, imported);
+        result.putIntArray(ImportEntry.EXTRA_ERROR_LINES, Arrays.copyOf(errorLines, errors));
+        result.putStringArray(ImportEntry.EXTRA_ERROR_MESSAGES, Arrays.copyOf(errorMessages, errors));
+        return result;
+    }
+
+    /**
+     * Return the checkpoint of the given import, or the start of a new one.
+     */
+    private static Bundle readImportCheckpoint(SQLiteDatabase database, String importId) {
+        Bundle checkpoint = new Bundle();
+        checkpoint.putInt(ImportEntry.EXTRA_NEXT_LINE, 1);
+        Cursor cursor = database.query(ImportEntry.TABLE_NAME, new String[]{
+                        ImportEntry.COLUMN_NEXT_LINE, ImportEntry.COLUMN_ROWS_IMPORTED,
+                        ImportEntry.COLUMN_ROWS_FAILED, ImportEntry.COLUMN_COMPLETED},
+                ImportEntry.COLUMN_IMPORT_ID + " = ?", new String[]{importId}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                checkpoint.putInt(ImportEntry.EXTRA_NEXT_LINE, cursor.getInt(0));
+                checkpoint.putInt(ImportEntry.EXTRA_ROWS_IMPORTED, cursor.getInt(1));
+                checkpoint.putInt(ImportEntry.EXTRA_ROWS_FAILED, cursor.getInt(2));
+                checkpoint.putBoolean(ImportEntry.EXTRA_COMPLETED, cursor.getInt(3) != 0);
+            }
+        } finally {
+            cursor.close();
         }
+        return checkpoint;
+    }
 
-        String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
-        if (supplierName == null) {
-            Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Supplier requires a name");
+    private static int indexOf(long[] values, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        String supplierPhone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
-        if (supplierPhone == null) {
-            Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Supplier requires a phone number");
+    /**
+     * Notify observers of a change to the given URI of the current store, unless the current
+     * thread is inside a batch, which notifies once when it completes.
+     */
+    private void notifyChange(Uri uri) {
+        if (!mInBatch.get()) {
+            getContext().getContentResolver().notifyChange(store().toStoreUri(uri), null);
+        }
+    }
+
+    /**
+     * Notify observers that the given rows were inserted, updated or deleted. When the rows are
+     * unknown (null) or too many to list, notify the collection URI so observers reload.
+     */
+    private void notifyRowsChanged(String operation, long[] ids) {
+        if (ids == null || ids.length == 0 || ids.length > MAX_NOTIFY_IDS) {
+            notifyChange(BookEntry.CONTENT_URI);
+        } else {
+            notifyChange(BookEntry.buildChangeUri(operation, ids));
         }
+        // The totals live under their own path, which book notifications do not reach.
+        notifyChange(SummaryEntry.CONTENT_URI);
+        notifyLowStockIfChanged();
+    }
 
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Notify low-stock observers if a book entered or left the low-stock list since the last
+     * check. Inside a batch, the check runs once when it completes.
+     */
+    private void notifyLowStockIfChanged() {
+        if (mInBatch.get()) {
+            return;
+        }
+        long generation = readSetting(store().dbHelper.getReadableDatabase(),
+                SettingsEntry.KEY_LOW_STOCK_GENERATION);
+        if (store().lowStockGeneration.getAndSet(generation) != generation) {
+            notifyChange(LowStockEntry.CONTENT_URI);
+        }
+    }
 
-        long id = database.insert(BookEntry.TABLE_NAME, null, values);
+    private static long readSetting(SQLiteDatabase database, String key) {
+        return DatabaseUtils.longForQuery(database, "SELECT " + SettingsEntry.COLUMN_VALUE + " FROM "
+                + SettingsEntry.TABLE_NAME + " WHERE " + SettingsEntry.COLUMN_KEY + " = ?",
+                new String[]{key});
+    }
 
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+    private static void writeSetting(SQLiteDatabase database, String key, long value) {
+        ContentValues values = new ContentValues();
+        values.put(SettingsEntry.COLUMN_VALUE, value);
+        database.update(SettingsEntry.TABLE_NAME, values, SettingsEntry.COLUMN_KEY + " = ?",
+                new String[]{key});
+    }
+
+    /**
+     * Set the low-stock threshold. The list changes as a whole, so its observers are notified.
+     */
+    private void setLowStockThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Low-stock threshold cannot be negative: " + threshold);
+        }
+        ContentValues values = new ContentValues();
+        values.put(SettingsEntry.COLUMN_VALUE, threshold);
+        store().dbHelper.getWritableDatabase().update(SettingsEntry.TABLE_NAME, values,
+                SettingsEntry.COLUMN_KEY + " = ?", new String[]{SettingsEntry.KEY_LOW_STOCK_THRESHOLD});
+        notifyChange(LowStockEntry.CONTENT_URI);
+    }
+
+    /**
+     * Return the IDs of the rows matching the given selection, or null if there are more than
+     * {@link #MAX_NOTIFY_IDS} of them or the selection is null (all rows).
+     */
+    private long[] queryIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        Cursor cursor = database.query(BookEntry.VIEW_NAME, new String[]{BookEntry._ID},
+                selection, selectionArgs, null, null, null, String.valueOf(MAX_NOTIFY_IDS + 1));
+        try {
+            if (cursor.getCount() > MAX_NOTIFY_IDS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Rewrite a selection on the {@link BookEntry#VIEW_NAME} columns, which may name the supplier
+     * columns, into one that can be used on the books table.
+     */
+    private static String toBooksTableSelection(String selection) {
+        if (selection == null) {
+            return null;
+        }
+        return BookEntry._ID + " IN (SELECT " + BookEntry._ID + " FROM " + BookEntry.VIEW_NAME
+                + " WHERE (" + selection + "))";
     }
 
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
-    @Override
-    public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    private int performUpdate(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
 
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                return updateBook(uri, contentValues, selection, selectionArgs, null, null);
             case BOOK_ID:
+                long id = ContentUris.parseId(uri);
                 selection = BookEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(id)};
+                return updateBook(uri, contentValues, selection, selectionArgs, new long[]{id}, null);
+            case SUPPLIERS:
+                return updateSupplier(contentValues, selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                return updateSupplier(contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
-    private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Update the rows matching the selection. {@code ids} are the IDs of those rows when the caller
+     * already knows them; otherwise they are looked up for the change notification.
+     * <p>
+     * A supplier name moves the books to that supplier, creating it if needed; a supplier phone
+     * number is stored on the supplier, so it changes for every book of that supplier.
+     * <p>
+     * With an {@code expectedVersion}, the update is of the single book in {@code ids} and only
+     * happens if that book still has this {@link BookEntry#COLUMN_VERSION}; otherwise nothing is
+     * written and 0 is returned.
+     */
+    private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs,
+                           long[] ids, Long expectedVersion) {
+
+        if (values.containsKey(BookEntry.COLUMN_VERSION)) {
+            throw new IllegalArgumentException(BookEntry.COLUMN_VERSION + " is maintained by the provider");
+        }
+        if (values.containsKey(BookEntry.COLUMN_COVER)) {
+            throw new IllegalArgumentException(BookEntry.COLUMN_COVER + " is set by "
+                    + BookEntry.METHOD_SET_COVER);
+        }
 
         // Check that the name is not null
         if (values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)) {
@@ -211,7 +2386,6 @@ public class BookStoreProvider extends ContentProvider {
         if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
             String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
             if (supplierName == null) {
-                Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
                 throw new IllegalArgumentException("Supplier requires a name");
             }
         }
@@ -219,7 +2393,6 @@ public class BookStoreProvider extends ContentProvider {
         if (values.containsKey(BookEntry.COLUMN_SUPPLIER_PHONE)) {
             String supplierPhone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
             if (supplierPhone == null) {
-                Toast.makeText(getContext(), R.string.blank_entry, Toast.LENGTH_SHORT).show();
                 throw new IllegalArgumentException("Supplier requires a phone number");
             }
         }
@@ -230,62 +2403,369 @@ public class BookStoreProvider extends ContentProvider {
         }
 
         // Otherwise, get writable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+
+        String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+        String supplierPhone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
+        ContentValues row = new ContentValues(values);
+        row.remove(BookEntry.COLUMN_SUPPLIER_NAME);
+        row.remove(BookEntry.COLUMN_SUPPLIER_PHONE);
+        String booksSelection = toBooksTableSelection(selection);
+        // Only an update of one book by its URI passes the IDs in.
+        boolean byId = ids != null && ids.length == 1;
 
-        int rowsUpdated = database.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        int rowsUpdated;
+        beginWrite(database);
+        try {
+            if (ids == null) {
+                ids = queryIds(database, selection, selectionArgs);
+            }
+            if (expectedVersion != null
+                    && store().statements(database).readVersion(ids[0]) != expectedVersion) {
+                // Changed or deleted since the caller read it: roll back, writing nothing.
+                return 0;
+            }
+            if (row.containsKey(BookEntry.COLUMN_QUANTITY)) {
+                long quantity = row.getAsLong(BookEntry.COLUMN_QUANTITY);
+                if (byId) {
+                    // A primary key lookup with a compiled statement, like the update itself.
+                    store().statements(database).recordAdjustment(ids[0], quantity,
+                            System.currentTimeMillis());
+                } else {
+                    recordAdjustments(database, booksSelection, selectionArgs, quantity);
+                }
+            }
+            if (supplierName != null) {
+                row.put(BookEntry.COLUMN_SUPPLIER_ID,
+                        resolveSupplier(database, supplierName, supplierPhone));
+            } else if (supplierPhone != null) {
+                ContentValues supplier = new ContentValues();
+                supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, supplierPhone);
+                if (byId) {
+                    // The book's supplier by its primary key, instead of a subquery on the books.
+                    long supplierId = store().statements(database).readSupplierId(ids[0]);
+                    database.update(SupplierEntry.TABLE_NAME, supplier, SupplierEntry._ID + " = ?",
+                            new String[]{String.valueOf(supplierId)});
+                } else {
+                    String suppliersSelection = SupplierEntry._ID + " IN (SELECT "
+                            + BookEntry.COLUMN_SUPPLIER_ID + " FROM " + BookEntry.TABLE_NAME
+                            + (booksSelection == null ? "" : " WHERE " + booksSelection) + ")";
+                    database.update(SupplierEntry.TABLE_NAME, supplier, suppliersSelection,
+                            selectionArgs);
+                }
+            }
+            if (byId && isFullRow(row)) {
+                // The editor's save: every column of one book, by ID.
+                rowsUpdated = store().statements(database).update(ids[0],
+                        row.getAsString(BookEntry.COLUMN_PRODUCT_NAME),
+                        row.getAsLong(BookEntry.COLUMN_PRICE),
+                        row.getAsLong(BookEntry.COLUMN_QUANTITY),
+                        row.getAsLong(BookEntry.COLUMN_SUPPLIER_ID));
+            } else if (row.size() > 0) {
+                rowsUpdated = database.update(BookEntry.TABLE_NAME, row, booksSelection, selectionArgs);
+            } else {
+                rowsUpdated = (int) DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME,
+                        booksSelection, selectionArgs);
+            }
+            writeSucceeded(database);
+        } finally {
+            endWrite(database);
+        }
 
         if (rowsUpdated !=0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (supplierPhone != null) {
+                invalidateSuppliersOf(database, ids);
+            } else {
+                store().rowCache.invalidate(ids);
+            }
+            notifyRowsChanged(BookEntry.OPERATION_UPDATE, ids);
+            if (row.containsKey(BookEntry.COLUMN_QUANTITY)) {
+                notifyChange(MovementEntry.CONTENT_URI);
+            }
+            if (hasSupplierDetails(values)) {
+                notifyChange(SupplierEntry.CONTENT_URI);
+            }
         }
 
         return rowsUpdated;
 
     }
 
+    /**
+     * Record in the ledger an adjustment for every book matching the selection of the books table
+     * whose quantity is about to be set to a different value. Must run inside the transaction of
+     * the update, before it.
+     */
+    private static void recordAdjustments(SQLiteDatabase database, String booksSelection,
+                                          String[] selectionArgs, long quantity) {
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] bindArgs = new Object[argCount + 4];
+        bindArgs[0] = quantity;
+        bindArgs[1] = quantity;
+        bindArgs[2] = System.currentTimeMillis();
+        for (int i = 0; i < argCount; i++) {
+            bindArgs[3 + i] = selectionArgs[i];
+        }
+        bindArgs[3 + argCount] = quantity;
+        database.execSQL("INSERT INTO " + MovementEntry.TABLE_NAME + "(" + MovementEntry.COLUMN_BOOK_ID
+                + ", " + MovementEntry.COLUMN_KIND + ", " + MovementEntry.COLUMN_DELTA + ", "
+                + MovementEntry.COLUMN_QUANTITY_AFTER + ", " + MovementEntry.COLUMN_CREATED_AT
+                + ") SELECT " + BookEntry._ID + ", '" + MovementEntry.KIND_ADJUSTMENT + "', ? - "
+                + BookEntry.COLUMN_QUANTITY + ", ?, ? FROM " + BookEntry.TABLE_NAME + " WHERE "
+                + (booksSelection == null ? "" : "(" + booksSelection + ") AND ")
+                + BookEntry.COLUMN_QUANTITY + " <> ?", bindArgs);
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
-    @Override
-    public int delete (Uri uri, String selection, String[]selectionArgs){
+    private int performDelete(Uri uri, String selection, String[] selectionArgs){
 
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
 
         int rowsDeleted;
+        long[] ids;
 
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+                beginWrite(database);
+                try {
+                    ids = queryIds(database, selection, selectionArgs);
+                    rowsDeleted = database.delete(BookEntry.TABLE_NAME,
+                            toBooksTableSelection(selection), selectionArgs);
+                    writeSucceeded(database);
+                } finally {
+                    endWrite(database);
+                }
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted =  database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+                long id = ContentUris.parseId(uri);
+                ids = new long[]{id};
+                beginWrite(database);
+                try {
+                    rowsDeleted = store().statements(database).delete(id);
+                    writeSucceeded(database);
+                } finally {
+                    endWrite(database);
+                }
                 break;
+            case SUPPLIERS:
+                return deleteSupplier(database, selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return deleteSupplier(database, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
         if (rowsDeleted !=0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            store().rowCache.invalidate(ids);
+            notifyRowsChanged(BookEntry.OPERATION_DELETE, ids);
+            sweepCoversInBackground();
         }
 
         return rowsDeleted;
     }
 
+    /**
+     * Update the suppliers matching the selection. Every book of those suppliers changes with them.
+     */
+    private int updateSupplier(ContentValues values, String selection, String[] selectionArgs) {
+        if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_NAME)
+                && values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME) == null) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+        if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_PHONE)
+                && values.getAsString(SupplierEntry.COLUMN_SUPPLIER_PHONE) == null) {
+            throw new IllegalArgumentException("Supplier requires a phone number");
+        }
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        SQLiteDatabase database = store().dbHelper.getWritableDatabase();
+        String booksSelection = BookEntry.COLUMN_SUPPLIER_ID + " IN (SELECT " + SupplierEntry._ID
+                + " FROM " + SupplierEntry.TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection) + ")";
+
+        int rowsUpdated;
+        long[] ids;
+        beginWrite(database);
+        try {
+            ids = queryIds(database, booksSelection, selectionArgs);
+            rowsUpdated = database.update(SupplierEntry.TABLE_NAME, values, selection, selectionArgs);
+            writeSucceeded(database);
+        } catch (SQLiteConstraintException e) {
+            throw new IllegalArgumentException("A supplier with that name already exists", e);
+        } finally {
+            endWrite(database);
+        }
+
+        if (rowsUpdated != 0) {
+            store().rowCache.invalidate(ids);
+            notifyChange(SupplierEntry.CONTENT_URI);
+            if (ids == null || ids.length > 0) {
+                notifyRowsChanged(BookEntry.OPERATION_UPDATE, ids);
+            }
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Delete the suppliers matching the selection. A supplier that still has books is not deleted.
+     */
+    private int deleteSupplier(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        int rowsDeleted;
+        try {
+            rowsDeleted = database.delete(SupplierEntry.TABLE_NAME, selection, selectionArgs);
+        } catch (SQLiteConstraintException e) {
+            throw new IllegalArgumentException("Cannot delete a supplier that still has books", e);
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(SupplierEntry.CONTENT_URI);
+            notifyChange(SummaryEntry.SUPPLIERS_URI);
+        }
+        return rowsDeleted;
+    }
+
     @Override
     public String getType (Uri uri){
 
-        final int match = sUriMatcher.match(uri);
+        final int match = sUriMatcher.match(withoutStore(uri));
         switch (match) {
             case BOOKS:
                 return BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_SEARCH:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIER_BOOKS:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIER_SUMMARY:
+                return SummaryEntry.CONTENT_SUPPLIERS_TYPE;
+            case LOW_STOCK:
+                return LowStockEntry.CONTENT_LIST_TYPE;
+            case BOOK_EXPORT:
+                return ExportEntry.MIME_TYPE_CSV;
+            case BOOK_COVER:
+                return coverType(Long.parseLong(uri.getPathSegments().get(1)));
+            case MOVEMENTS:
+                return MovementEntry.CONTENT_LIST_TYPE;
+            case MOVEMENTS_DAILY:
+                return MovementEntry.CONTENT_DAILY_TYPE;
+            case SYNC_OUTBOX:
+                return SyncEntry.CONTENT_LIST_TYPE;
+            case STORES:
+                return StoreEntry.CONTENT_LIST_TYPE;
+            case ALL_STORES_SEARCH:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case ALL_STORES_LOW_STOCK:
+                return LowStockEntry.CONTENT_LIST_TYPE;
+            case ALL_STORES_SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
+
+    /**
+     * Return the file types {@link ExportEntry#CONTENT_URI} can be opened as that match the given
+     * filter, or null for any other URI.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(withoutStore(uri)) != BOOK_EXPORT) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<>();
+        for (String type : new String[]{ExportEntry.MIME_TYPE_CSV, ExportEntry.MIME_TYPE_JSON}) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Open {@link ExportEntry#CONTENT_URI} for reading, in the format of its
+     * {@link ExportEntry#QUERY_PARAMETER_FORMAT}, or a book's cover file.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        Store previous = mStore.get();
+        try {
+            return openStoreFile(enterStore(uri), mode);
+        } finally {
+            mStore.set(previous);
+        }
+    }
+
+    private ParcelFileDescriptor openStoreFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match == BOOK_COVER) {
+            return openCover(uri, mode);
+        }
+        if (match != BOOK_EXPORT) {
+            throw new FileNotFoundException("No files supported for " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The catalog export is read-only, cannot open it as " + mode);
+        }
+        String format = uri.getQueryParameter(ExportEntry.QUERY_PARAMETER_FORMAT);
+        if (format == null || ExportEntry.FORMAT_CSV.equals(format)) {
+            return openPipeHelper(uri, ExportEntry.MIME_TYPE_CSV, null, null, store().exporter);
+        }
+        if (ExportEntry.FORMAT_JSON.equals(format)) {
+            return openPipeHelper(uri, ExportEntry.MIME_TYPE_JSON, null, null, store().exporter);
+        }
+        throw new FileNotFoundException("Unknown export format " + format);
+    }
+
+    /**
+     * Open the current cover file of the book of the given cover URI, read-only. The file is
+     * never rewritten: a new cover gets a new file, so a reader keeps the image it opened.
+     */
+    private ParcelFileDescriptor openCover(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Covers are set with " + BookEntry.METHOD_SET_COVER
+                    + ", cannot open one as " + mode);
+        }
+        long start = System.nanoTime();
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        String name = readCover(store().dbHelper.getReadableDatabase(), id);
+        if (name == null) {
+            mMetrics.recordError(BOOK_COVER, ProviderMetrics.OP_QUERY);
+            throw new FileNotFoundException("No cover for book " + id);
+        }
+        ParcelFileDescriptor cover = ParcelFileDescriptor.open(new File(store().coversDir, name),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        mMetrics.record(BOOK_COVER, ProviderMetrics.OP_QUERY, 1, start);
+        return cover;
+    }
+
+    /**
+     * Open {@link ExportEntry#CONTENT_URI} as the first of its stream types matching the filter.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        ParcelFileDescriptor pipe = openPipeHelper(uri, types[0], opts, null,
+                storeNamed(StoreEntry.getStore(uri)).exporter);
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ExportEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes the catalog into the pipe of an {@link ExportEntry#CONTENT_URI} open, on the pipe's
+ * background thread.
+ * <p>
+ * Rows are read {@link #CHUNK_SIZE} at a time by keyset on {@link BookEntry#_ID}, and each chunk
+ * is written out before the next is read, so memory stays bounded and the reader gets its first
+ * bytes without waiting for SQLite to count the whole table. A book changed during the export
+ * appears as it was when its chunk was read.
+ */
+class CatalogExporter implements ContentProvider.PipeDataWriter<Void> {
+
+    private static final String LOG_TAG = CatalogExporter.class.getSimpleName();
+
+    /** Rows per query; a chunk fits in one cursor window. */
+    static final int CHUNK_SIZE = 1000;
+
+    /** Columns read, in order; the exported ones are those {@link CatalogImporter} reads back. */
+    private static final String[] COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    /** Columns written to the file: every column but the ID, which is only read for paging. */
+    private static final int FIRST_EXPORTED_COLUMN = 1;
+
+    private final BookStoreDbHelper mDbHelper;
+
+    CatalogExporter(BookStoreDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts,
+                                Void args) {
+        boolean json = ExportEntry.MIME_TYPE_JSON.equals(mimeType);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), "UTF-8"));
+            if (json) {
+                writeJson(writer);
+            } else {
+                writeCsv(writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Most often the reader closed its end before the end of the catalog.
+            Log.w(LOG_TAG, "Export of " + uri + " stopped: " + e.getMessage());
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+                output.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the export pipe", e);
+            }
+        }
+    }
+
+    private void writeCsv(Writer writer) throws IOException {
+        for (int i = FIRST_EXPORTED_COLUMN; i < COLUMNS.length; i++) {
+            if (i > FIRST_EXPORTED_COLUMN) {
+                writer.write(',');
+            }
+            writeCsvField(writer, COLUMNS[i]);
+        }
+        writer.write("\r\n");
+
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return;
+                }
+                do {
+                    for (int i = FIRST_EXPORTED_COLUMN; i < COLUMNS.length; i++) {
+                        if (i > FIRST_EXPORTED_COLUMN) {
+                            writer.write(',');
+                        }
+                        if (!cursor.isNull(i)) {
+                            writeCsvField(writer, cursor.getString(i));
+                        }
+                    }
+                    writer.write("\r\n");
+                } while (cursor.moveToNext());
+                cursor.moveToLast();
+                lastId = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Write a field, quoted if it holds a separator, a quote or a line break.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginArray();
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (!cursor.moveToFirst()) {
+                    break;
+                }
+                do {
+                    json.beginObject();
+                    for (int i = FIRST_EXPORTED_COLUMN; i < COLUMNS.length; i++) {
+                        json.name(COLUMNS[i]);
+                        switch (cursor.getType(i)) {
+                            case Cursor.FIELD_TYPE_NULL:
+                                json.nullValue();
+                                break;
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                json.value(cursor.getLong(i));
+                                break;
+                            default:
+                                json.value(cursor.getString(i));
+                                break;
+                        }
+                    }
+                    json.endObject();
+                } while (cursor.moveToNext());
+                cursor.moveToLast();
+                lastId = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+        json.endArray();
+        json.flush();
+    }
+
+    /**
+     * Return the next {@link #CHUNK_SIZE} books after the given ID, in ID order.
+     */
+    private Cursor queryChunk(long afterId) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        return database.query(BookEntry.VIEW_NAME, COLUMNS, BookEntry._ID + " > ?",
+                new String[]{String.valueOf(afterId)}, null, null, BookEntry._ID + " ASC",
+                String.valueOf(CHUNK_SIZE));
+    }
+}
@@ -0,0 +1,459 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ImportEntry;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a catalog of books from a CSV or JSON file into {@link BookStoreProvider}, a chunk of
+ * {@link #CHUNK_SIZE} rows at a time, so memory stays bounded whatever the size of the file.
+ * <p>
+ * A CSV file starts with a header row naming the {@link BookEntry} columns of each field, in any
+ * case and order; fields follow RFC 4180 quoting. A JSON file is an array of objects keyed by the
+ * same column names. The line of a CSV row is the file line it starts on, the header being line 1;
+ * the line of a JSON row is its position in the array, starting at 1.
+ * <p>
+ * Each chunk is inserted with its checkpoint in one transaction by
+ * {@link ImportEntry#METHOD_IMPORT_CHUNK}. Importing the same source again under the same import
+ * ID resumes after the last committed chunk; once an import completed, importing it again does
+ * nothing. A URI is imported under an ID that includes a digest of its content, so a file
+ * changed since is imported again. Importing runs on the calling thread, which must not be the main thread.
+ */
+public class CatalogImporter {
+
+    /**
+     * Receives the progress of an import, on the importing thread.
+     */
+    public interface Listener {
+        /**
+         * Called after each committed chunk, with the totals of the whole import so far.
+         */
+        void onProgress(int nextLine, int rowsImported, int rowsFailed);
+
+        /**
+         * Called for each row that could not be parsed or was rejected by the provider.
+         */
+        void onLineError(int line, String message);
+    }
+
+    /**
+     * The totals of an import, including the chunks committed by earlier attempts.
+     */
+    public static final class Result {
+        public final int rowsImported;
+        public final int rowsFailed;
+
+        Result(int rowsImported, int rowsFailed) {
+            this.rowsImported = rowsImported;
+            this.rowsFailed = rowsFailed;
+        }
+    }
+
+    private static final String LOG_TAG = CatalogImporter.class.getSimpleName();
+
+    /** Rows per provider call, and so per transaction. */
+    static final int CHUNK_SIZE = 5000;
+
+    /** Columns a source may set; any other field is ignored. */
+    private static final String[] COLUMNS = {
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_ID,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    private final ContentResolver mResolver;
+
+    public CatalogImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Import the content at the given URI. The import ID is the URI with a digest of its content,
+     * see {@link #importId}: importing the same content again resumes it, while content changed
+     * since at the same URI is a new import.
+     */
+    public Result importFrom(Uri uri, Listener listener) throws IOException {
+        String importId = importId(uri.toString(), open(uri));
+        return importFrom(importId, open(uri), listener);
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        return in;
+    }
+
+    /**
+     * Return the import ID of the given content: its source, its length and the SHA-1 of its
+     * bytes. Reading a file is much faster than importing it, so this costs little next to the
+     * import. The stream is closed.
+     */
+    static String importId(String source, InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        long length = 0;
+        try {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                digest.update(buffer, 0, read);
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder id = new StringBuilder(source).append('#').append(length).append('-');
+        for (byte b : digest.digest()) {
+            id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Import the given file. The descriptor is closed.
+     */
+    public Result importFrom(String importId, ParcelFileDescriptor descriptor, Listener listener)
+            throws IOException {
+        return importFrom(importId, new ParcelFileDescriptor.AutoCloseInputStream(descriptor), listener);
+    }
+
+    /**
+     * Import the given stream, which is closed.
+     */
+    public Result importFrom(String importId, InputStream in, Listener listener) throws IOException {
+        try {
+            Bundle checkpoint = mResolver.call(BookEntry.CONTENT_URI,
+                    ImportEntry.METHOD_IMPORT_CHECKPOINT, importId, null);
+            if (checkpoint.getBoolean(ImportEntry.EXTRA_COMPLETED)) {
+                return new Result(checkpoint.getInt(ImportEntry.EXTRA_ROWS_IMPORTED),
+                        checkpoint.getInt(ImportEntry.EXTRA_ROWS_FAILED));
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            Chunker chunker = new Chunker(importId, checkpoint, listener);
+            if (firstSignificantChar(reader) == '[') {
+                readJson(reader, chunker);
+            } else {
+                readCsv(reader, chunker);
+            }
+            chunker.commit(true);
+            return new Result(chunker.mRowsImported, chunker.mRowsFailed);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the first character of the reader that is neither white space nor a byte order mark,
+     * or -1 at the end. The reader is left at that character.
+     */
+    private static int firstSignificantChar(BufferedReader reader) throws IOException {
+        while (true) {
+            reader.mark(1);
+            int c = reader.read();
+            if (c == -1 || (c != '\uFEFF' && !Character.isWhitespace(c))) {
+                reader.reset();
+                return c;
+            }
+        }
+    }
+
+    private static void readCsv(Reader reader, Chunker chunker) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> header = csv.readRecord();
+        if (header == null) {
+            return;
+        }
+        String[] columns = new String[header.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = column(header.get(i).trim());
+            if (columns[i] == null) {
+                Log.w(LOG_TAG, "Ignoring unknown CSV column " + header.get(i));
+            }
+        }
+
+        while (true) {
+            int line = csv.nextLine();
+            List<String> fields = csv.readRecord();
+            if (fields == null) {
+                break;
+            }
+            if (!chunker.wants(line)) {
+                continue;
+            }
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                // A blank line.
+                chunker.skip(line);
+                continue;
+            }
+            if (fields.size() != columns.length) {
+                chunker.fail(line, "Expected " + columns.length + " fields, found " + fields.size());
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null && !fields.get(i).isEmpty()) {
+                    values.put(columns[i], fields.get(i));
+                }
+            }
+            chunker.add(line, values);
+        }
+    }
+
+    private static void readJson(Reader reader, Chunker chunker) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.beginArray();
+        int line = 0;
+        while (json.hasNext()) {
+            line++;
+            if (!chunker.wants(line)) {
+                json.skipValue();
+                continue;
+            }
+            if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                json.skipValue();
+                chunker.fail(line, "Expected an object");
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            json.beginObject();
+            while (json.hasNext()) {
+                String column = column(json.nextName());
+                JsonToken token = json.peek();
+                if (column == null || token == JsonToken.NULL) {
+                    json.skipValue();
+                } else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    // Numbers are read as strings; the provider converts and validates them.
+                    values.put(column, json.nextString());
+                } else {
+                    json.skipValue();
+                    values.putNull(column);
+                }
+            }
+            json.endObject();
+            chunker.add(line, values);
+        }
+        json.endArray();
+    }
+
+    /**
+     * Return the contract column with the given name, ignoring case, or null if there is none.
+     */
+    private static String column(String name) {
+        for (String column : COLUMNS) {
+            if (column.equalsIgnoreCase(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects parsed rows and commits them a chunk at a time.
+     */
+    private class Chunker {
+        private final String mImportId;
+        private final Listener mListener;
+        private final int mFirstLine;
+
+        private final ArrayList<ContentValues> mRows = new ArrayList<>(CHUNK_SIZE);
+        private final int[] mLines = new int[CHUNK_SIZE];
+        private int mParseFailures;
+        private int mNextLine;
+
+        int mRowsImported;
+        int mRowsFailed;
+
+        Chunker(String importId, Bundle checkpoint, Listener listener) {
+            mImportId = importId;
+            mListener = listener;
+            mFirstLine = checkpoint.getInt(ImportEntry.EXTRA_NEXT_LINE, 1);
+            mNextLine = mFirstLine;
+            mRowsImported = checkpoint.getInt(ImportEntry.EXTRA_ROWS_IMPORTED);
+            mRowsFailed = checkpoint.getInt(ImportEntry.EXTRA_ROWS_FAILED);
+        }
+
+        /**
+         * Return whether the row at the given line was not committed by an earlier attempt.
+         */
+        boolean wants(int line) {
+            return line >= mFirstLine;
+        }
+
+        void add(int line, ContentValues values) throws IOException {
+            mLines[mRows.size()] = line;
+            mRows.add(values);
+            advance(line);
+        }
+
+        void fail(int line, String message) throws IOException {
+            mParseFailures++;
+            if (mListener != null) {
+                mListener.onLineError(line, message);
+            }
+            advance(line);
+        }
+
+        void skip(int line) throws IOException {
+            advance(line);
+        }
+
+        private void advance(int line) throws IOException {
+            mNextLine = line + 1;
+            if (mRows.size() + mParseFailures >= CHUNK_SIZE) {
+                commit(false);
+            }
+        }
+
+        /**
+         * Insert the collected rows and move the checkpoint past them.
+         */
+        void commit(boolean completed) throws IOException {
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(ImportEntry.EXTRA_ROWS,
+                    mRows.toArray(new ContentValues[mRows.size()]));
+            int[] lines = new int[mRows.size()];
+            System.arraycopy(mLines, 0, lines, 0, lines.length);
+            extras.putIntArray(ImportEntry.EXTRA_LINES, lines);
+            extras.putInt(ImportEntry.EXTRA_NEXT_LINE, mNextLine);
+            extras.putInt(ImportEntry.EXTRA_PARSE_FAILURES, mParseFailures);
+            extras.putBoolean(ImportEntry.EXTRA_COMPLETED, completed);
+
+            Bundle result;
+            try {
+                result = mResolver.call(BookEntry.CONTENT_URI, ImportEntry.METHOD_IMPORT_CHUNK,
+                        mImportId, extras);
+            } catch (RuntimeException e) {
+                throw new IOException("Failed to import the chunk before line " + mNextLine, e);
+            }
+
+            int[] errorLines = result.getIntArray(ImportEntry.EXTRA_ERROR_LINES);
+            String[] errorMessages = result.getStringArray(ImportEntry.EXTRA_ERROR_MESSAGES);
+            mRowsImported += result.getInt(ImportEntry.EXTRA_ROWS_IMPORTED);
+            mRowsFailed += mParseFailures + errorLines.length;
+            if (mListener != null) {
+                for (int i = 0; i < errorLines.length; i++) {
+                    mListener.onLineError(errorLines[i], errorMessages[i]);
+                }
+                mListener.onProgress(mNextLine, mRowsImported, mRowsFailed);
+            }
+
+            mRows.clear();
+            mParseFailures = 0;
+        }
+    }
+
+    /**
+     * Reads RFC 4180 records, keeping track of the line each one starts on.
+     */
+    private static class CsvReader {
+        private final Reader mReader;
+        private int mLine = 1;
+        private int mPending = -2;
+
+        CsvReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Return the line the next record starts on.
+         */
+        int nextLine() {
+            return mLine;
+        }
+
+        /**
+         * Return the fields of the next record, or null at the end of the input.
+         */
+        List<String> readRecord() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field before line " + mLine);
+                    } else if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            c = next;
+                            continue;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            mLine++;
+                        }
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    if (c == '\r') {
+                        int next = read();
+                        if (next != '\n') {
+                            mPending = next;
+                        }
+                    }
+                    if (c != -1) {
+                        mLine++;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (mPending != -2) {
+                int c = mPending;
+                mPending = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Read-only, column-oriented copy of the catalog for filtering, sorting and totals in memory.
+ * <p>
+ * Each column is a primitive array indexed by row, and rows are in ID order. Names are held once
+ * each in a shared pool that rows point into, so books with the same name share one String.
+ * A snapshot never changes: {@link #withChanges} returns a new one, so any thread can read a
+ * snapshot while {@link LiveCatalogSnapshot} builds the next.
+ * <p>
+ * Filters and totals over more than {@link #PARALLEL_THRESHOLD} rows can be split across the
+ * cores; below that a single pass is faster than handing out the work.
+ */
+public final class CatalogSnapshot {
+
+    /**
+     * Decides whether a row is kept by {@link #filter}. Called from several threads at once when
+     * filtering in parallel.
+     */
+    public interface RowFilter {
+        boolean accept(CatalogSnapshot snapshot, int row);
+    }
+
+    /** Totals over a set of rows. */
+    public static final class Totals {
+        public final int bookCount;
+        public final long units;
+
+        /** The sum of price times quantity. */
+        public final long stockValue;
+
+        Totals(int bookCount, long units, long stockValue) {
+            this.bookCount = bookCount;
+            this.units = units;
+            this.stockValue = stockValue;
+        }
+    }
+
+    public static final int SORT_BY_NAME = 0;
+    public static final int SORT_BY_PRICE = 1;
+    public static final int SORT_BY_QUANTITY = 2;
+
+    /** Columns to query for a snapshot, in the order it reads them. */
+    static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY};
+
+    /** Rows below which filters and totals run on the calling thread, even if asked to split. */
+    static final int PARALLEL_THRESHOLD = 100000;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private final int mSize;
+    private final int[] mIds;
+    private final int[] mPrices;
+    private final int[] mQuantities;
+
+    /** Index into mNamePool of each row's name. */
+    private final int[] mNameRefs;
+    private final String[] mNamePool;
+    private final int mNamePoolSize;
+
+    /** Rank of each pool entry in name order, computed on the first sort by name. */
+    private volatile int[] mNameRanks;
+
+    private CatalogSnapshot(int size, int[] ids, int[] prices, int[] quantities, int[] nameRefs,
+                            String[] namePool, int namePoolSize) {
+        mSize = size;
+        mIds = ids;
+        mPrices = prices;
+        mQuantities = quantities;
+        mNameRefs = nameRefs;
+        mNamePool = namePool;
+        mNamePoolSize = namePoolSize;
+    }
+
+    /**
+     * Query the whole catalog and build a snapshot of it. Call it off the main thread.
+     */
+    public static CatalogSnapshot load(ContentResolver resolver) {
+        Cursor cursor = resolver.query(BookEntry.CONTENT_URI, PROJECTION, null, null,
+                BookEntry._ID + " ASC");
+        if (cursor == null) {
+            throw new IllegalStateException("No cursor for " + BookEntry.CONTENT_URI);
+        }
+        try {
+            return fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Build a snapshot in one pass over a cursor of the {@link #PROJECTION} columns, in ID order.
+     * The arrays grow as rows are read, so the cursor is never counted first.
+     */
+    static CatalogSnapshot fromCursor(Cursor cursor) {
+        Builder builder = new Builder(1024);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            builder.add(toIntId(cursor.getLong(0)), cursor.getString(1), cursor.getInt(2),
+                    cursor.getInt(3));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return a snapshot with the given books removed and the rows of the cursor, of the
+     * {@link #PROJECTION} columns in any order, inserted or replacing the rows of the same ID.
+     * This snapshot is left as it was.
+     */
+    CatalogSnapshot withChanges(Cursor changed, long[] deletedIds) {
+        int count = changed == null ? 0 : changed.getCount();
+        Builder upserts = new Builder(Math.max(count, 1));
+        if (changed != null) {
+            changed.moveToPosition(-1);
+            while (changed.moveToNext()) {
+                upserts.add(toIntId(changed.getLong(0)), changed.getString(1), changed.getInt(2),
+                        changed.getInt(3));
+            }
+        }
+        int[] upsertOrder = upserts.idOrder();
+
+        // Every ID whose old row goes: the deleted books and the replaced ones.
+        int[] removed = new int[upserts.mSize + (deletedIds == null ? 0 : deletedIds.length)];
+        System.arraycopy(upserts.mIds, 0, removed, 0, upserts.mSize);
+        for (int i = upserts.mSize; i < removed.length; i++) {
+            removed[i] = toIntId(deletedIds[i - upserts.mSize]);
+        }
+        Arrays.sort(removed);
+
+        // Merge the kept old rows with the upserts, both in ID order. The old pool is reused, and
+        // a replaced row that kept its name, as after a sale, keeps its pool entry.
+        int capacity = mSize + upserts.mSize;
+        Builder merged = new Builder(capacity, Arrays.copyOf(mNamePool,
+                Math.max(mNamePoolSize + upserts.mSize, 1)), mNamePoolSize);
+        int next = 0;
+        for (int row = 0; row < mSize || next < upsertOrder.length; ) {
+            boolean takeOld = next == upsertOrder.length
+                    || row < mSize && mIds[row] < upserts.mIds[upsertOrder[next]];
+            if (takeOld) {
+                if (Arrays.binarySearch(removed, mIds[row]) < 0) {
+                    merged.addRef(mIds[row], mNameRefs[row], mPrices[row], mQuantities[row]);
+                }
+                row++;
+                continue;
+            }
+            int upsert = upsertOrder[next++];
+            int id = upserts.mIds[upsert];
+            String name = upserts.mNamePool[upserts.mNameRefs[upsert]];
+            int oldRow = indexOf(id);
+            if (oldRow >= 0 && equal(name, name(oldRow))) {
+                merged.addRef(id, mNameRefs[oldRow], upserts.mPrices[upsert],
+                        upserts.mQuantities[upsert]);
+            } else {
+                merged.addNew(id, name, upserts.mPrices[upsert], upserts.mQuantities[upsert]);
+            }
+        }
+        CatalogSnapshot snapshot = merged.build();
+
+        // Renamed and deleted books leave unused names behind; drop them once they dominate.
+        if (snapshot.mNamePoolSize > 2 * snapshot.mSize + 1024) {
+            snapshot = snapshot.compacted();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return a copy with a pool of only the names in use, each held once.
+     */
+    private CatalogSnapshot compacted() {
+        Builder builder = new Builder(Math.max(mSize, 1));
+        for (int row = 0; row < mSize; row++) {
+            builder.add(mIds[row], name(row), mPrices[row], mQuantities[row]);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int id(int row) {
+        return mIds[row];
+    }
+
+    public String name(int row) {
+        return mNamePool[mNameRefs[row]];
+    }
+
+    public int price(int row) {
+        return mPrices[row];
+    }
+
+    public int quantity(int row) {
+        return mQuantities[row];
+    }
+
+    /**
+     * Return the row of the book with the given ID, or a negative number if it is not in the
+     * snapshot.
+     */
+    public int indexOf(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return Arrays.binarySearch(mIds, 0, mSize, (int) id);
+    }
+
+    /**
+     * Return the rows the filter accepts, in ID order.
+     */
+    public int[] filter(RowFilter filter) {
+        return filter(filter, false);
+    }
+
+    /**
+     * Return the rows the filter accepts, in ID order, splitting the rows across the cores if
+     * {@code parallel} and there are enough of them.
+     */
+    public int[] filter(final RowFilter filter, boolean parallel) {
+        if (!parallel || mSize < PARALLEL_THRESHOLD || THREADS < 2) {
+            return filterRange(filter, 0, mSize);
+        }
+
+        List<Callable<int[]>> parts = new ArrayList<>(THREADS);
+        int partSize = (mSize + THREADS - 1) / THREADS;
+        for (int start = 0; start < mSize; start += partSize) {
+            final int from = start;
+            final int to = Math.min(start + partSize, mSize);
+            parts.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return filterRange(filter, from, to);
+                }
+            });
+        }
+
+        List<int[]> results = runAll(parts);
+        int total = 0;
+        for (int[] result : results) {
+            total += result.length;
+        }
+        int[] rows = new int[total];
+        int offset = 0;
+        for (int[] result : results) {
+            System.arraycopy(result, 0, rows, offset, result.length);
+            offset += result.length;
+        }
+        return rows;
+    }
+
+    private int[] filterRange(RowFilter filter, int from, int to) {
+        int[] rows = new int[Math.min(to - from, 64)];
+        int count = 0;
+        for (int row = from; row < to; row++) {
+            if (filter.accept(this, row)) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, Math.min(to - from, count * 2));
+                }
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Return the given rows, or every row if null, sorted by one of {@link #SORT_BY_NAME},
+     * {@link #SORT_BY_PRICE} or {@link #SORT_BY_QUANTITY}. Ties stay in ID order. Each row and
+     * its key are packed into one long, so the sort is of primitives and allocates one array.
+     */
+    public int[] sort(int[] rows, int sortBy, boolean descending) {
+        int count = rows == null ? mSize : rows.length;
+        int[] keys;
+        switch (sortBy) {
+            case SORT_BY_NAME:
+                keys = nameRanks();
+                break;
+            case SORT_BY_PRICE:
+                keys = mPrices;
+                break;
+            case SORT_BY_QUANTITY:
+                keys = mQuantities;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort " + sortBy);
+        }
+
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            int row = rows == null ? i : rows[i];
+            int key = sortBy == SORT_BY_NAME ? keys[mNameRefs[row]] : keys[row];
+            // ~key reverses the order without overflowing, and the row breaks ties.
+            packed[i] = ((long) (descending ? ~key : key) << 32) | row;
+        }
+        Arrays.sort(packed);
+
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = (int) packed[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Return the rank of every pool entry in case-insensitive name order; nulls sort first.
+     */
+    private int[] nameRanks() {
+        int[] ranks = mNameRanks;
+        if (ranks != null) {
+            return ranks;
+        }
+        Integer[] order = new Integer[mNamePoolSize];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                String nameA = mNamePool[a];
+                String nameB = mNamePool[b];
+                if (nameA == null || nameB == null) {
+                    return nameA == null ? (nameB == null ? 0 : -1) : 1;
+                }
+                return String.CASE_INSENSITIVE_ORDER.compare(nameA, nameB);
+            }
+        });
+        ranks = new int[mNamePoolSize];
+        for (int rank = 0; rank < order.length; rank++) {
+            ranks[order[rank]] = rank;
+        }
+        mNameRanks = ranks;
+        return ranks;
+    }
+
+    /**
+     * Return the totals of the given rows, or of every row if null.
+     */
+    public Totals totals(int[] rows) {
+        return totals(rows, false);
+    }
+
+    /**
+     * Return the totals of the given rows, or of every row if null, splitting the rows across
+     * the cores if {@code parallel} and there are enough of them.
+     */
+    public Totals totals(final int[] rows, boolean parallel) {
+        final int count = rows == null ? mSize : rows.length;
+        if (!parallel || count < PARALLEL_THRESHOLD || THREADS < 2) {
+            return totalsRange(rows, 0, count);
+        }
+
+        List<Callable<Totals>> parts = new ArrayList<>(THREADS);
+        int partSize = (count + THREADS - 1) / THREADS;
+        for (int start = 0; start < count; start += partSize) {
+            final int from = start;
+            final int to = Math.min(start + partSize, count);
+            parts.add(new Callable<Totals>() {
+                @Override
+                public Totals call() {
+                    return totalsRange(rows, from, to);
+                }
+            });
+        }
+
+        long units = 0;
+        long stockValue = 0;
+        for (Totals part : runAll(parts)) {
+            units += part.units;
+            stockValue += part.stockValue;
+        }
+        return new Totals(count, units, stockValue);
+    }
+
+    private Totals totalsRange(int[] rows, int from, int to) {
+        long units = 0;
+        long stockValue = 0;
+        for (int i = from; i < to; i++) {
+            int row = rows == null ? i : rows[i];
+            units += mQuantities[row];
+            stockValue += (long) mPrices[row] * mQuantities[row];
+        }
+        return new Totals(to - from, units, stockValue);
+    }
+
+    /**
+     * Return a filter keeping the books with fewer than {@code quantity} copies.
+     */
+    public static RowFilter quantityBelow(final int quantity) {
+        return new RowFilter() {
+            @Override
+            public boolean accept(CatalogSnapshot snapshot, int row) {
+                return snapshot.mQuantities[row] < quantity;
+            }
+        };
+    }
+
+    /**
+     * Return a filter keeping the books priced from {@code min} to {@code max}, inclusive.
+     */
+    public static RowFilter priceBetween(final int min, final int max) {
+        return new RowFilter() {
+            @Override
+            public boolean accept(CatalogSnapshot snapshot, int row) {
+                int price = snapshot.mPrices[row];
+                return price >= min && price <= max;
+            }
+        };
+    }
+
+    /**
+     * Return a filter keeping the books whose name contains the given text, ignoring case.
+     */
+    public static RowFilter nameContains(final String text) {
+        return new RowFilter() {
+            @Override
+            public boolean accept(CatalogSnapshot snapshot, int row) {
+                String name = snapshot.name(row);
+                if (name == null) {
+                    return false;
+                }
+                for (int i = 0; i + text.length() <= name.length(); i++) {
+                    if (name.regionMatches(true, i, text, 0, text.length())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private static <T> List<T> runAll(List<Callable<T>> parts) {
+        List<T> results = new ArrayList<>(parts.size());
+        try {
+            for (Future<T> part : executor().invokeAll(parts)) {
+                results.add(part.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning the snapshot", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to scan the snapshot", e.getCause());
+        }
+        return results;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, CatalogSnapshot.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    private static int toIntId(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Book ID " + id + " does not fit the snapshot");
+        }
+        return (int) id;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Appends rows to growing column arrays, interning names added by value.
+     */
+    private static final class Builder {
+        int mSize;
+        int[] mIds;
+        int[] mPrices;
+        int[] mQuantities;
+        int[] mNameRefs;
+        String[] mNamePool;
+        int mNamePoolSize;
+        private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+        Builder(int capacity) {
+            this(capacity, new String[capacity], 0);
+        }
+
+        /**
+         * Start with an existing pool; its names are only reused through {@link #addRef}.
+         */
+        Builder(int capacity, String[] namePool, int namePoolSize) {
+            mIds = new int[capacity];
+            mPrices = new int[capacity];
+            mQuantities = new int[capacity];
+            mNameRefs = new int[capacity];
+            mNamePool = namePool;
+            mNamePoolSize = namePoolSize;
+        }
+
+        void add(int id, String name, int price, int quantity) {
+            Integer ref = mInterned.get(name);
+            if (ref == null) {
+                ref = addName(name);
+                mInterned.put(name, ref);
+            }
+            addRef(id, ref, price, quantity);
+        }
+
+        void addNew(int id, String name, int price, int quantity) {
+            addRef(id, addName(name), price, quantity);
+        }
+
+        void addRef(int id, int nameRef, int price, int quantity) {
+            if (mSize == mIds.length) {
+                int capacity = Math.max(mSize * 2, 16);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mPrices = Arrays.copyOf(mPrices, capacity);
+                mQuantities = Arrays.copyOf(mQuantities, capacity);
+                mNameRefs = Arrays.copyOf(mNameRefs, capacity);
+            }
+            mIds[mSize] = id;
+            mPrices[mSize] = price;
+            mQuantities[mSize] = quantity;
+            mNameRefs[mSize] = nameRef;
+            mSize++;
+        }
+
+        private int addName(String name) {
+            if (mNamePoolSize == mNamePool.length) {
+                mNamePool = Arrays.copyOf(mNamePool, Math.max(mNamePoolSize * 2, 16));
+            }
+            mNamePool[mNamePoolSize] = name;
+            return mNamePoolSize++;
+        }
+
+        /**
+         * Return the indices of the added rows in ID order.
+         */
+        int[] idOrder() {
+            long[] packed = new long[mSize];
+            for (int i = 0; i < mSize; i++) {
+                packed[i] = ((long) mIds[i] << 32) | i;
+            }
+            Arrays.sort(packed);
+            int[] order = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                order[i] = (int) packed[i];
+            }
+            return order;
+        }
+
+        CatalogSnapshot build() {
+            return new CatalogSnapshot(mSize, mIds, mPrices, mQuantities, mNameRefs, mNamePool,
+                    mNamePoolSize);
+        }
+    }
+}
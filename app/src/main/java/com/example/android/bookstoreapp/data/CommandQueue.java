@@ -0,0 +1,431 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs inserts, updates, deletes, cover changes and sales through the ContentResolver on a
+ * background thread, so the UI never waits for SQLite. Each command returns a {@link Future} of
+ * its {@link Result}, and the optional {@link Callback} gets the same result on the main thread.
+ * <p>
+ * Commands run one at a time, in the order they were queued across the whole app, so an edit
+ * followed by a delete of the same book applies in that order. Sales queued one after another are
+ * written together, in one transaction, while the queue is busy; a sale queued after another
+ * command still runs after it. Commands keep running after the activity that queued them
+ * finishes, so a callback should not hold the activity: keep it in a {@code WeakReference}, or
+ * use the application context. They are not kept if the process is killed: keep it alive with a
+ * component, as {@code CommandQueueService} does, until they have run.
+ */
+public class CommandQueue {
+
+    /**
+     * Receives the outcome of a command on the main thread.
+     */
+    public interface Callback {
+        void onCommandComplete(Result result);
+    }
+
+    /**
+     * The outcome of a command. A provider error is reported here, never thrown to the caller.
+     */
+    public static final class Result {
+        /** The command ran. {@link #count} may still be 0 if no row matched. */
+        public static final int STATUS_OK = 0;
+
+        /** The provider rejected the values; {@link #message} says why. */
+        public static final int STATUS_INVALID = 1;
+
+        /** The database failed to apply the command. */
+        public static final int STATUS_FAILED = 2;
+
+        /**
+         * A conditional update found the book changed or deleted since it was read; nothing was
+         * written. {@link #current} holds the book as it is now.
+         */
+        public static final int STATUS_CONFLICT = 3;
+
+        public final int status;
+
+        /** The URI of the inserted row, or null for other commands and on failure. */
+        public final Uri uri;
+
+        /** The number of rows inserted, updated or deleted. */
+        public final int count;
+
+        /** Why the command failed, or null if it succeeded. */
+        public final String message;
+
+        /** The current row of a conflicting book, or null if it was deleted or there was no conflict. */
+        public final ContentValues current;
+
+        /** The quantity a sale left the book with, or -1 for other commands and on failure. */
+        public final int quantity;
+
+        /**
+         * The version a cover change left the book at, if the book was still at the version the
+         * change was queued with; otherwise, and for other commands, -1.
+         */
+        public final long version;
+
+        Result(int status, Uri uri, int count, String message) {
+            this(status, uri, count, message, null);
+        }
+
+        Result(int status, Uri uri, int count, String message, ContentValues current) {
+            this(status, uri, count, message, current, -1);
+        }
+
+        Result(int status, Uri uri, int count, String message, ContentValues current, int quantity) {
+            this(status, uri, count, message, current, quantity, -1);
+        }
+
+        Result(int status, Uri uri, int count, String message, ContentValues current, int quantity,
+               long version) {
+            this.status = status;
+            this.uri = uri;
+            this.count = count;
+            this.message = message;
+            this.current = current;
+            this.quantity = quantity;
+            this.version = version;
+        }
+
+        public boolean isOk() {
+            return status == STATUS_OK;
+        }
+    }
+
+    private static final String LOG_TAG = CommandQueue.class.getSimpleName();
+
+    /** Shared by every queue, so commands run in order whichever activity queued them. */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, LOG_TAG);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Most sales written in one transaction. */
+    static final int MAX_SALE_BATCH = 50;
+
+    /** Times a batch of sales is written before its sales fail. */
+    static final int MAX_SALE_ATTEMPTS = 3;
+
+    /** Guards {@link #sOpenSales}, and orders submitting against closing it. */
+    private static final Object sLock = new Object();
+
+    /** The queued sales that have not started, which the next sale joins; guarded by sLock. */
+    private static SaleBatch sOpenSales;
+
+    /** Commands and batches of sales queued or running. */
+    private static final AtomicInteger sPending = new AtomicInteger();
+
+    private final ContentResolver mResolver;
+
+    public CommandQueue(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Insert a row into the table of the given URI.
+     */
+    public Future<Result> insert(final Uri uri, final ContentValues values, Callback callback) {
+        return submit(uri, callback, new Callable<Result>() {
+            @Override
+            public Result call() {
+                Uri newUri = mResolver.insert(uri, values);
+                if (newUri == null || ContentUris.parseId(newUri) == -1) {
+                    return new Result(Result.STATUS_FAILED, null, 0, "Failed to insert row for " + uri);
+                }
+                return new Result(Result.STATUS_OK, newUri, 1, null);
+            }
+        });
+    }
+
+    /**
+     * Update the rows of the given URI that match the selection.
+     */
+    public Future<Result> update(final Uri uri, final ContentValues values, final String selection,
+                                 final String[] selectionArgs, Callback callback) {
+        return submit(uri, callback, new Callable<Result>() {
+            @Override
+            public Result call() {
+                int count = mResolver.update(uri, values, selection, selectionArgs);
+                return new Result(Result.STATUS_OK, null, count, null);
+            }
+        });
+    }
+
+    /**
+     * Update the given book only if its {@link BookEntry#COLUMN_VERSION} is still
+     * {@code version}; otherwise the result is a {@link Result#STATUS_CONFLICT}.
+     */
+    public Future<Result> updateIfVersion(final Uri bookUri, final ContentValues values,
+                                          final long version, Callback callback) {
+        return submit(bookUri, callback, new Callable<Result>() {
+            @Override
+            public Result call() {
+                Bundle extras = new Bundle();
+                extras.putParcelable(BookEntry.EXTRA_VALUES, values);
+                extras.putLong(BookEntry.EXTRA_VERSION, version);
+                Bundle result = mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_UPDATE_IF_VERSION,
+                        String.valueOf(ContentUris.parseId(bookUri)), extras);
+                if (result.getBoolean(BookEntry.EXTRA_CONFLICT)) {
+                    return new Result(Result.STATUS_CONFLICT, null, 0,
+                            "The book changed since it was read",
+                            (ContentValues) result.getParcelable(BookEntry.EXTRA_CURRENT_ROW));
+                }
+                return new Result(Result.STATUS_OK, null, 1, null);
+            }
+        });
+    }
+
+    /**
+     * Set the given book's cover to a copy of the image at {@code source}, or remove it if the
+     * source is null. {@link Result#count} is 0 if the book does not exist. The cover bumps the
+     * book's version; if the book was still at {@code version}, {@link Result#version} is the new
+     * one, so an editor of the book can save its edits over its own cover change.
+     */
+    public Future<Result> setCover(final Uri bookUri, final Uri source, final long version,
+                                   Callback callback) {
+        return submit(bookUri, callback, new Callable<Result>() {
+            @Override
+            public Result call() {
+                Bundle extras = new Bundle();
+                extras.putParcelable(BookEntry.EXTRA_SOURCE, source);
+                extras.putLong(BookEntry.EXTRA_VERSION, version);
+                Bundle result = mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SET_COVER,
+                        String.valueOf(ContentUris.parseId(bookUri)), extras);
+                if (!result.containsKey(BookEntry.EXTRA_COVER)) {
+                    return new Result(Result.STATUS_OK, null, 0, null);
+                }
+                boolean changed = result.getBoolean(BookEntry.EXTRA_CONFLICT, true);
+                return new Result(Result.STATUS_OK, null, 1, null, null, -1,
+                        changed ? -1 : result.getLong(BookEntry.EXTRA_VERSION));
+            }
+        });
+    }
+
+    /**
+     * Sell one copy of the given book. It is written with the sales queued next to it, in one
+     * {@link BookEntry#METHOD_SELL_BATCH}. {@link Result#count} is 1 if a copy was sold, or 0 if
+     * the book was out of stock or no longer exists, and {@link Result#quantity} is the quantity
+     * left.
+     */
+    public void sell(long bookId, Callback callback) {
+        synchronized (sLock) {
+            if (sOpenSales == null || sOpenSales.isFull()) {
+                sOpenSales = new SaleBatch(mResolver);
+                sPending.incrementAndGet();
+                sExecutor.execute(sOpenSales);
+            }
+            sOpenSales.add(bookId, callback);
+        }
+    }
+
+    /**
+     * Close the open batch of sales, so it is written as soon as the queue gets to it, however
+     * many sales follow, and return whether any command is still queued or running. Call it when
+     * the app goes to the background, where the process may be killed with writes still queued;
+     * if it returns true, keep the process alive with a component that calls {@link #flush}.
+     */
+    public static boolean closeSales() {
+        synchronized (sLock) {
+            sOpenSales = null;
+        }
+        return sPending.get() != 0;
+    }
+
+    /**
+     * Wait up to the given time for every command queued so far to run. Blocks, so call it off
+     * the main thread, and never from a callback.
+     *
+     * @return whether they all ran in time
+     */
+    public boolean flush(long timeoutMillis) {
+        Future<?> flushed;
+        synchronized (sLock) {
+            flushed = sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        try {
+            flushed.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete the rows of the given URI that match the selection.
+     */
+    public Future<Result> delete(final Uri uri, final String selection, final String[] selectionArgs,
+                                 Callback callback) {
+        return submit(uri, callback, new Callable<Result>() {
+            @Override
+            public Result call() {
+                int count = mResolver.delete(uri, selection, selectionArgs);
+                return new Result(Result.STATUS_OK, null, count, null);
+            }
+        });
+    }
+
+    private static Future<Result> submit(final Uri uri, final Callback callback,
+                                         final Callable<Result> command) {
+        synchronized (sLock) {
+            // Sales queued from now on run after this command.
+            sOpenSales = null;
+            sPending.incrementAndGet();
+            return sExecutor.submit(newTask(uri, callback, command));
+        }
+    }
+
+    private static Callable<Result> newTask(final Uri uri, final Callback callback,
+                                            final Callable<Result> command) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                try {
+                    return execute(uri, callback, command);
+                } finally {
+                    sPending.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private static Result execute(Uri uri, final Callback callback, Callable<Result> command) {
+        Result result;
+        try {
+            result = command.call();
+        } catch (IllegalArgumentException e) {
+            result = new Result(Result.STATUS_INVALID, null, 0, e.getMessage());
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Command on " + uri + " failed", e);
+            result = new Result(Result.STATUS_FAILED, null, 0, e.getMessage());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Command on " + uri + " failed", e);
+            result = new Result(Result.STATUS_FAILED, null, 0, String.valueOf(e));
+        }
+
+        if (callback != null) {
+            final Result delivered = result;
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCommandComplete(delivered);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Sales queued one after another, written in one transaction when the queue gets to them.
+     */
+    private static final class SaleBatch implements Runnable {
+        private final ContentResolver mResolver;
+        private final long[] mIds = new long[MAX_SALE_BATCH];
+        private final List<Callback> mCallbacks = new ArrayList<>(MAX_SALE_BATCH);
+
+        SaleBatch(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        boolean isFull() {
+            return mCallbacks.size() == MAX_SALE_BATCH;
+        }
+
+        void add(long bookId, Callback callback) {
+            mIds[mCallbacks.size()] = bookId;
+            mCallbacks.add(callback);
+        }
+
+        @Override
+        public void run() {
+            try {
+                write();
+            } finally {
+                sPending.decrementAndGet();
+            }
+        }
+
+        private void write() {
+            final long[] ids;
+            final Callback[] callbacks;
+            synchronized (sLock) {
+                if (sOpenSales == this) {
+                    sOpenSales = null;
+                }
+                ids = Arrays.copyOf(mIds, mCallbacks.size());
+                callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+            }
+
+            Bundle extras = new Bundle();
+            extras.putLongArray(BookEntry.EXTRA_IDS, ids);
+            Bundle written = null;
+            String message = null;
+            for (int attempt = 1; written == null && attempt <= MAX_SALE_ATTEMPTS; attempt++) {
+                try {
+                    written = mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL_BATCH,
+                            null, extras);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Attempt " + attempt + " to write " + ids.length + " sales failed", e);
+                    message = String.valueOf(e);
+                }
+            }
+
+            final Result[] results = new Result[ids.length];
+            int[] quantities = written == null ? null : written.getIntArray(BookEntry.EXTRA_QUANTITY);
+            boolean[] sold = written == null ? null : written.getBooleanArray(BookEntry.EXTRA_SOLD);
+            for (int i = 0; i < ids.length; i++) {
+                results[i] = written == null
+                        ? new Result(Result.STATUS_FAILED, null, 0, message)
+                        : new Result(Result.STATUS_OK, null, sold[i] ? 1 : 0, null, null, quantities[i]);
+            }
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < callbacks.length; i++) {
+                        if (callbacks[i] != null) {
+                            callbacks[i].onCommandComplete(results[i]);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
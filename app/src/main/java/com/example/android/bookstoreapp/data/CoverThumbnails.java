@@ -0,0 +1,269 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.bookstoreapp.R;
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Square thumbnails of book covers for the catalog list, keyed by {@link BookEntry#COLUMN_COVER}.
+ * <p>
+ * Thumbnails are kept in a memory LRU, sized in bytes, in front of a disk cache of the same
+ * thumbnails already downsampled, so a cover file is only decoded in full the first time it is
+ * shown. Loads run on background threads and are delivered on the main thread; a row cancels
+ * its load when it is rebound or recycled, so a fling does not decode covers nobody sees.
+ * <p>
+ * Thumbnails are RGB_565 and a few kilobytes each, and a memory hit allocates nothing, so
+ * scrolling through cached covers does not churn the heap.
+ */
+public final class CoverThumbnails {
+
+    /**
+     * Receives a loaded thumbnail on the main thread.
+     */
+    public interface Target {
+        void onThumbnailLoaded(String cover, Bitmap thumbnail);
+    }
+
+    private static final String LOG_TAG = CoverThumbnails.class.getSimpleName();
+
+    private static final String DISK_CACHE_DIRECTORY = "cover_thumbnails";
+
+    /** Size of the disk cache; the least recently used thumbnails are deleted beyond it. */
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Share of the heap the memory cache may use. */
+    private static final int MEMORY_CACHE_DIVISOR = 16;
+
+    private static final int DECODE_THREADS = 2;
+
+    private static CoverThumbnails sInstance;
+
+    /**
+     * Return the thumbnails of the process, so the memory cache outlives any one activity.
+     */
+    public static synchronized CoverThumbnails get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CoverThumbnails(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mResolver;
+    private final File mDiskCacheDir;
+
+    /** Width and height of a thumbnail, in pixels. */
+    private final int mSize;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, LOG_TAG);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Bytes in the disk cache, or -1 until first counted; guarded by this. */
+    private long mDiskCacheBytes = -1;
+
+    private CoverThumbnails(Context context) {
+        mResolver = context.getContentResolver();
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_size);
+        int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVISOR);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String cover, Bitmap thumbnail) {
+                return thumbnail.getRowBytes() * thumbnail.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Return the thumbnail of the given cover if it is in memory, or null.
+     */
+    public Bitmap getCached(String cover) {
+        return mMemoryCache.get(cover);
+    }
+
+    /**
+     * Load the thumbnail of the given book's cover in the background and hand it to the target
+     * on the main thread, unless the returned Future is cancelled first. A cover that cannot be
+     * read is delivered as null.
+     */
+    public Future<?> load(final long bookId, final String cover, final Target target) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap thumbnail = mMemoryCache.get(cover);
+                if (thumbnail == null) {
+                    try {
+                        thumbnail = loadThumbnail(bookId, cover);
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to load the cover of book " + bookId + ": " + e.getMessage());
+                    }
+                    if (thumbnail != null) {
+                        mMemoryCache.put(cover, thumbnail);
+                    }
+                }
+
+                final Bitmap loaded = thumbnail;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onThumbnailLoaded(cover, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read the thumbnail from the disk cache, or decode it from the cover and add it there.
+     */
+    private Bitmap loadThumbnail(long bookId, String cover) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        File cached = new File(mDiskCacheDir, cover + "-" + mSize);
+        if (cached.isFile()) {
+            Bitmap thumbnail = BitmapFactory.decodeFile(cached.getPath(), options);
+            if (thumbnail != null) {
+                cached.setLastModified(System.currentTimeMillis());
+                return thumbnail;
+            }
+        }
+
+        // Read the bounds first, then decode at the largest power-of-two reduction that still
+        // covers the thumbnail, so a large cover never lands in memory at full size.
+        options.inJustDecodeBounds = true;
+        decode(bookId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= mSize) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap decoded = decode(bookId, options);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(decoded, mSize, mSize,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+
+        writeToDiskCache(cached, thumbnail);
+        return thumbnail;
+    }
+
+    private Bitmap decode(long bookId, BitmapFactory.Options options) throws IOException {
+        ParcelFileDescriptor file = mResolver.openFileDescriptor(BookEntry.buildCoverUri(bookId), "r");
+        if (file == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeFileDescriptor(file.getFileDescriptor(), null, options);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Write a thumbnail to the disk cache, then trim the cache if it grew past its size. A failed
+     * write only costs a decode next time.
+     */
+    private void writeToDiskCache(File cached, Bitmap thumbnail) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            return;
+        }
+        File temp = new File(cached.getPath() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(cached)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            Log.w(LOG_TAG, "Failed to cache a thumbnail: " + e.getMessage());
+            return;
+        }
+        trimDiskCache(cached.length());
+    }
+
+    private synchronized void trimDiskCache(long added) {
+        File[] files = null;
+        if (mDiskCacheBytes < 0) {
+            files = mDiskCacheDir.listFiles();
+            mDiskCacheBytes = 0;
+            for (File file : files == null ? new File[0] : files) {
+                mDiskCacheBytes += file.length();
+            }
+        } else {
+            mDiskCacheBytes += added;
+        }
+        if (mDiskCacheBytes <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+
+        // Down to three quarters, so the next few thumbnails do not each trim again.
+        if (files == null) {
+            files = mDiskCacheDir.listFiles();
+        }
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return lastModified[a] < lastModified[b] ? -1 : lastModified[a] == lastModified[b] ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < order.length && mDiskCacheBytes > MAX_DISK_CACHE_BYTES * 3 / 4; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                mDiskCacheBytes -= length;
+            }
+        }
+    }
+}
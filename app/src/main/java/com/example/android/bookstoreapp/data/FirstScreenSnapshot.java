@@ -0,0 +1,154 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of the first catalog page as they were last shown, kept in a small binary file so the
+ * catalog can show them at launch, before the database is open. They are only a placeholder:
+ * the screen replaces them with the live page as soon as it loads.
+ * <p>
+ * The file holds a header of {@link #MAGIC}, {@link #FORMAT_VERSION} and the row count, then the
+ * ID, name, price, quantity and cover name of each row. A file that is missing, from another format or cut
+ * short reads as no snapshot.
+ */
+public final class FirstScreenSnapshot {
+
+    private static final String LOG_TAG = FirstScreenSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "first_screen.snapshot";
+
+    private static final int MAGIC = 0x42534653;
+    private static final int FORMAT_VERSION = 2;
+
+    /** More rows than any first page; a larger count means the file is corrupt. */
+    private static final int MAX_ROWS = 1000;
+
+    private FirstScreenSnapshot() {
+    }
+
+    /**
+     * Read the snapshot, or return null if there is none. It is file I/O, so read it off the main
+     * thread; being small, it is read long before the database's first page.
+     */
+    public static List<Book> read(Context context) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file(context))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ROWS) {
+                return null;
+            }
+            List<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                String name = readNullableUtf(in);
+                int price = in.readInt();
+                int quantity = in.readInt();
+                books.add(new Book(id, name, price, quantity, readNullableUtf(in)));
+            }
+            return books;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Ignoring unreadable snapshot: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Replace the snapshot with the given rows. The new file is written beside the old one and
+     * renamed over it, so a reader never sees half of it; writers take turns.
+     */
+    public static synchronized void write(Context context, List<Book> books) throws IOException {
+        File file = file(context);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(books.size());
+            for (Book book : books) {
+                out.writeLong(book.id);
+                writeNullableUtf(out, book.name);
+                out.writeInt(book.price);
+                out.writeInt(book.quantity);
+                writeNullableUtf(out, book.cover);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Write the snapshot off the main thread, in the order of the calls, logging any failure; a
+     * lost snapshot only costs the next launch its placeholder.
+     */
+    public static void writeInBackground(Context context, List<Book> books) {
+        final Context appContext = context.getApplicationContext();
+        final List<Book> rows = new ArrayList<>(books);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(appContext, rows);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to write the first screen snapshot", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the snapshot, so the next launch waits for the live catalog.
+     */
+    public static void clear(Context context) {
+        file(context).delete();
+    }
+
+    private static String readNullableUtf(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUtf(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static File file(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+}
@@ -0,0 +1,563 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.StoreEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SyncEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synchronizes the books of every store with a REST endpoint: pushes the changes queued in the
+ * {@link SyncEntry} outbox, then pulls the changes made on the server since the last pull.
+ * <p>
+ * Pushes are {@code POST {endpoint}/changes} requests of up to {@link #BATCH_SIZE} changes,
+ * gzip-compressed JSON:
+ * <pre>{"device": ..., "store": ..., "changes": [{"seq": 12, "_id": 3, "deleted": false,
+ * "Product_Name": ..., "Price": ..., "Quantity": ..., "Supplier_Name": ...,
+ * "Supplier_Phone_Number": ..., "version": ...}, ...]}</pre>
+ * Each has an {@code Idempotency-Key} naming the device, the store and the range of outbox
+ * sequence numbers it holds, so a retry of a request the server already committed is recognized.
+ * The changes are acknowledged, and leave the outbox, once the server answered 2xx. A batch the
+ * server rejects for its content, with one of {@link #REJECTED_STATUSES}, is split in halves
+ * pushed on their own, down to the single changes it rejects; those are marked with
+ * {@link SyncEntry#METHOD_REJECT} and left out of later pushes, so they hold up neither the
+ * changes after them nor the pull.
+ * <p>
+ * Pulls are {@code GET {endpoint}/changes?store=...&since=...} requests, answered with
+ * {@code {"cursor": ..., "more": ..., "changes": [...]}}, each change keyed by the same names.
+ * Each page is applied with its cursor in one transaction by {@link SyncEntry#METHOD_APPLY_CHANGES},
+ * skipping the books changed locally since the push, whose changes the next push sends.
+ * <p>
+ * A request failing with an I/O error, 429 or 5xx is retried with exponential backoff and jitter,
+ * honoring a Retry-After header. Once a request fails for good, with another status or after its
+ * attempts, the sync of its store stops, leaving its outbox as it is, and the other stores are
+ * still synced. Syncing runs on the calling thread, which must not be the
+ * main thread.
+ */
+public class InventorySync {
+
+    /**
+     * The totals of one sync.
+     */
+    public static final class Stats {
+        /** Changes pushed to the server and acknowledged. */
+        public int pushed;
+        /** Changes the server rejected for good, left in the outbox out of later pushes. */
+        public int rejected;
+        /** Changes pulled from the server and applied. */
+        public int pulled;
+        /** Pulled changes skipped for books with local changes not pushed yet. */
+        public int skipped;
+        /** Pulled changes skipped as malformed, see {@link SyncEntry#EXTRA_MALFORMED}. */
+        public int malformed;
+        /** HTTP requests sent, retries included. */
+        public int requests;
+        public int retries;
+        /** Bytes of the JSON bodies, pushed and pulled, before compression. */
+        public long rawBytes;
+        /** Bytes of the bodies as sent and received. */
+        public long wireBytes;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return "pushed=" + pushed + " rejected=" + rejected + " pulled=" + pulled
+                    + " skipped=" + skipped + " malformed=" + malformed
+                    + " requests=" + requests
+                    + " retries=" + retries + " rawBytes=" + rawBytes + " wireBytes=" + wireBytes
+                    + " elapsedMillis=" + elapsedMillis;
+        }
+    }
+
+    /** Changes per request, and so per acknowledgement or applied transaction. */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Statuses that reject the content of a push, rather than the endpoint or the credentials:
+     * bad request, conflict, payload too large and unprocessable entity.
+     */
+    static final int[] REJECTED_STATUSES = {400, 409, 413, 422};
+
+    /** Attempts of a request before the sync fails. */
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final String LOG_TAG = InventorySync.class.getSimpleName();
+
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private static final String JSON_DEVICE = "device";
+    private static final String JSON_STORE = "store";
+    private static final String JSON_CHANGES = "changes";
+    private static final String JSON_SEQ = "seq";
+    private static final String JSON_CURSOR = "cursor";
+    private static final String JSON_MORE = "more";
+
+    /** Outbox columns pushed; the book columns are null once it is deleted. */
+    private static final String[] PUSH_COLUMNS = {
+            SyncEntry._ID,
+            SyncEntry.COLUMN_BOOK_ID,
+            SyncEntry.COLUMN_DELETED,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_PHONE,
+            BookEntry.COLUMN_VERSION};
+
+    private final ContentResolver mResolver;
+    private final String mEndpoint;
+    private final String mDeviceId;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param endpoint the base URL of the REST endpoint, without a trailing slash
+     * @param deviceId a stable ID of this device, part of every idempotency key
+     */
+    public InventorySync(ContentResolver resolver, String endpoint, String deviceId) {
+        this(resolver, endpoint, deviceId, 1000, 5 * 60 * 1000);
+    }
+
+    InventorySync(ContentResolver resolver, String endpoint, String deviceId,
+                  long initialBackoffMillis, long maxBackoffMillis) {
+        mResolver = resolver;
+        mEndpoint = endpoint;
+        mDeviceId = deviceId;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Push then pull the changes of every store.
+     *
+     * @throws IOException the first failure, once every store was synced or failed; the changes
+     *                     synced before a failure are kept
+     */
+    public Stats sync() throws IOException {
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        IOException failure = null;
+        for (String store : stores()) {
+            try {
+                push(store, stats);
+                pull(store, stats);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Sync of store " + store + " failed", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                // The provider failed, e.g. with its disk full: fail this store, not the process.
+                Log.w(LOG_TAG, "Sync of store " + store + " failed in the provider", e);
+                if (failure == null) {
+                    failure = new IOException("Sync of store " + store + " failed", e);
+                }
+            }
+        }
+        stats.elapsedMillis = (System.nanoTime() - start) / 1000000;
+        if (failure != null) {
+            throw failure;
+        }
+        return stats;
+    }
+
+    private List<String> stores() {
+        List<String> stores = new ArrayList<>();
+        Cursor cursor = mResolver.query(StoreEntry.CONTENT_URI,
+                new String[]{StoreEntry.COLUMN_STORE}, null, null, null);
+        if (cursor == null) {
+            return stores;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                stores.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return stores;
+    }
+
+    private void push(String store, Stats stats) throws IOException {
+        Uri outbox = StoreEntry.buildStoreUri(store, SyncEntry.CONTENT_URI).buildUpon()
+                .appendQueryParameter(BookEntry.QUERY_PARAMETER_LIMIT, String.valueOf(BATCH_SIZE))
+                .build();
+        URL url = new URL(mEndpoint + "/" + JSON_CHANGES);
+        // Each batch leaves every change it holds acknowledged or rejected.
+        while (pushBatch(store, outbox, url, null, stats)) {
+        }
+    }
+
+    /**
+     * Push the first batch of the changes still to push, or of those between the given sequence
+     * numbers. If the server rejects it for good, push each half of it on its own, down to the
+     * single changes it rejects, which are marked rejected.
+     *
+     * @param range the first and last sequence numbers to push, or null for any
+     * @return whether there were changes to push
+     */
+    private boolean pushBatch(String store, Uri outbox, URL url, long[] range, Stats stats)
+            throws IOException {
+        String selection = SyncEntry.COLUMN_REJECTED + " = 0";
+        String[] selectionArgs = null;
+        if (range != null) {
+            selection += " AND " + SyncEntry._ID + " BETWEEN ? AND ?";
+            selectionArgs = new String[]{String.valueOf(range[0]), String.valueOf(range[1])};
+        }
+        Cursor cursor = mResolver.query(outbox, PUSH_COLUMNS, selection, selectionArgs, null);
+        if (cursor == null) {
+            return false;
+        }
+        long[] seqs;
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try {
+            if (cursor.getCount() == 0) {
+                return false;
+            }
+            seqs = new long[cursor.getCount()];
+            writeChanges(store, cursor, seqs, json);
+        } finally {
+            cursor.close();
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(json.size() / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(body);
+        json.writeTo(gzip);
+        gzip.close();
+        stats.rawBytes += json.size();
+
+        Bundle extras = new Bundle();
+        extras.putString(StoreEntry.EXTRA_STORE, store);
+        extras.putLongArray(BookEntry.EXTRA_IDS, seqs);
+        String idempotencyKey = mDeviceId + "-" + store + "-" + seqs[0] + "-" + seqs[seqs.length - 1];
+        try {
+            HttpURLConnection connection = execute("POST", url, body.toByteArray(), idempotencyKey, stats);
+            connection.disconnect();
+        } catch (RejectedException e) {
+            if (seqs.length == 1) {
+                Log.w(LOG_TAG, "Change " + seqs[0] + " of store " + store + " rejected", e);
+                extras.putInt(SyncEntry.EXTRA_STATUS, e.code);
+                mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_REJECT, null, extras);
+                stats.rejected++;
+            } else {
+                int half = seqs.length / 2;
+                pushBatch(store, outbox, url, new long[]{seqs[0], seqs[half - 1]}, stats);
+                pushBatch(store, outbox, url, new long[]{seqs[half], seqs[seqs.length - 1]}, stats);
+            }
+            return true;
+        }
+        mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_ACKNOWLEDGE, null, extras);
+        stats.pushed += seqs.length;
+        return true;
+    }
+
+    /**
+     * Write the outbox rows of the cursor as the JSON of a push, and their sequence numbers into
+     * {@code seqs}.
+     */
+    private void writeChanges(String store, Cursor cursor, long[] seqs, OutputStream out)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.beginObject();
+        writer.name(JSON_DEVICE).value(mDeviceId);
+        writer.name(JSON_STORE).value(store);
+        writer.name(JSON_CHANGES).beginArray();
+        for (int row = 0; cursor.moveToNext(); row++) {
+            seqs[row] = cursor.getLong(0);
+            // A book deleted while its insert was queued has no columns left either.
+            boolean deleted = cursor.getInt(2) != 0 || cursor.isNull(3);
+            writer.beginObject();
+            writer.name(JSON_SEQ).value(seqs[row]);
+            writer.name(BookEntry._ID).value(cursor.getLong(1));
+            writer.name(SyncEntry.COLUMN_DELETED).value(deleted);
+            if (!deleted) {
+                writer.name(BookEntry.COLUMN_PRODUCT_NAME).value(cursor.getString(3));
+                writer.name(BookEntry.COLUMN_PRICE).value(cursor.getLong(4));
+                writer.name(BookEntry.COLUMN_QUANTITY).value(cursor.getLong(5));
+                writer.name(BookEntry.COLUMN_SUPPLIER_NAME).value(cursor.getString(6));
+                writer.name(BookEntry.COLUMN_SUPPLIER_PHONE).value(cursor.getString(7));
+                writer.name(BookEntry.COLUMN_VERSION).value(cursor.getLong(8));
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+    }
+
+    private void pull(String store, Stats stats) throws IOException {
+        Bundle extras = new Bundle();
+        extras.putString(StoreEntry.EXTRA_STORE, store);
+        long since = mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_GET_CURSOR, null, extras)
+                .getLong(SyncEntry.EXTRA_CURSOR);
+        while (true) {
+            URL url = new URL(mEndpoint + "/" + JSON_CHANGES + "?" + JSON_STORE + "="
+                    + URLEncoder.encode(store, "UTF-8") + "&since=" + since
+                    + "&" + BookEntry.QUERY_PARAMETER_LIMIT + "=" + BATCH_SIZE);
+            HttpURLConnection connection = execute("GET", url, null, null, stats);
+            Bundle page = new Bundle();
+            try {
+                readChanges(connection, page, stats);
+            } finally {
+                connection.disconnect();
+            }
+
+            Parcelable[] changes = page.getParcelableArray(SyncEntry.EXTRA_CHANGES);
+            long cursor = page.getLong(SyncEntry.EXTRA_CURSOR, since);
+            if (changes.length != 0 || cursor != since) {
+                page.putString(StoreEntry.EXTRA_STORE, store);
+                page.putLong(SyncEntry.EXTRA_CURSOR, cursor);
+                Bundle result = mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_APPLY_CHANGES,
+                        null, page);
+                int skipped = result.getInt(SyncEntry.EXTRA_SKIPPED);
+                int malformed = result.getInt(SyncEntry.EXTRA_MALFORMED);
+                stats.pulled += changes.length - skipped - malformed;
+                stats.skipped += skipped;
+                stats.malformed += malformed;
+            }
+            if (!page.getBoolean(JSON_MORE) || cursor == since) {
+                return;
+            }
+            since = cursor;
+        }
+    }
+
+    /**
+     * Read a page of pulled changes into the given bundle: the changes in
+     * {@link SyncEntry#EXTRA_CHANGES}, the cursor after them in {@link SyncEntry#EXTRA_CURSOR},
+     * and whether more follow.
+     */
+    private static void readChanges(HttpURLConnection connection, Bundle page, Stats stats)
+            throws IOException {
+        CountingInputStream wire = new CountingInputStream(connection.getInputStream());
+        CountingInputStream raw = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                ? new CountingInputStream(new GZIPInputStream(wire)) : wire;
+        List<ContentValues> changes = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(raw, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (JSON_CURSOR.equals(name)) {
+                    page.putLong(SyncEntry.EXTRA_CURSOR, reader.nextLong());
+                } else if (JSON_MORE.equals(name)) {
+                    page.putBoolean(JSON_MORE, reader.nextBoolean());
+                } else if (JSON_CHANGES.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        changes.add(readChange(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        stats.rawBytes += raw.count;
+        stats.wireBytes += wire.count;
+        page.putParcelableArray(SyncEntry.EXTRA_CHANGES, changes.toArray(new ContentValues[changes.size()]));
+    }
+
+    private static ContentValues readChange(JsonReader reader) throws IOException {
+        ContentValues change = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                change.putNull(name);
+            } else if (token == JsonToken.BOOLEAN) {
+                change.put(name, reader.nextBoolean() ? 1 : 0);
+            } else if (token == JsonToken.NUMBER) {
+                change.put(name, reader.nextLong());
+            } else if (token == JsonToken.STRING) {
+                change.put(name, reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return change;
+    }
+
+    /**
+     * Send a request, retrying it with backoff on an I/O error, 429 or 5xx, and return its
+     * connection once answered 2xx, for the caller to read and disconnect.
+     *
+     * @param body the gzip-compressed body, or null for none
+     * @param idempotencyKey the key sent with every attempt, or null for none
+     * @throws RejectedException if the status is one of {@link #REJECTED_STATUSES}
+     * @throws IOException if the status is another error, or once the attempts are used up
+     */
+    private HttpURLConnection execute(String method, URL url, byte[] body, String idempotencyKey,
+                                      Stats stats) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            IOException failure;
+            long retryAfterMillis = -1;
+            stats.requests++;
+            int code;
+            try {
+                code = send(connection, method, body, idempotencyKey);
+                if (body != null) {
+                    stats.wireBytes += body.length;
+                }
+                failure = new IOException(method + " " + url + " returned " + code);
+            } catch (IOException e) {
+                code = -1;
+                failure = e;
+            }
+            if (code >= 200 && code < 300) {
+                return connection;
+            }
+            if (code != -1) {
+                retryAfterMillis = parseRetryAfter(connection.getHeaderField("Retry-After"));
+                if (code != 429 && code < 500) {
+                    connection.disconnect();
+                    for (int rejected : REJECTED_STATUSES) {
+                        if (code == rejected) {
+                            throw new RejectedException(failure.getMessage(), code);
+                        }
+                    }
+                    throw failure;
+                }
+            }
+            connection.disconnect();
+            if (attempt == MAX_ATTEMPTS) {
+                throw failure;
+            }
+            stats.retries++;
+            sleep(retryAfterMillis >= 0 ? Math.min(retryAfterMillis, mMaxBackoffMillis)
+                    : backoffMillis(attempt));
+        }
+    }
+
+    private static int send(HttpURLConnection connection, String method, byte[] body,
+                            String idempotencyKey) throws IOException {
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestMethod(method);
+        // Decompressed by readChanges, so the wire bytes can be counted.
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (idempotencyKey != null) {
+            connection.setRequestProperty("Idempotency-Key", idempotencyKey);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+        return connection.getResponseCode();
+    }
+
+    /**
+     * Return the delay before the given retry: exponential up to the maximum, with full jitter
+     * on its upper half, so devices failing together do not retry together.
+     */
+    private long backoffMillis(int attempt) {
+        long delay = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << Math.min(attempt - 1, 20));
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2));
+    }
+
+    /**
+     * Return the delay of a Retry-After header in seconds, or -1 if it is absent or an HTTP date.
+     */
+    private static long parseRetryAfter(String header) {
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    /**
+     * A request whose content the server rejected, answered with one of
+     * {@link #REJECTED_STATUSES}.
+     */
+    static final class RejectedException extends IOException {
+        final int code;
+
+        RejectedException(String message, int code) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
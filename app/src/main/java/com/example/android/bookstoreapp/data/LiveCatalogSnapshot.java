@@ -0,0 +1,175 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+/**
+ * Keeps a {@link CatalogSnapshot} of the catalog current on a background thread. It is built once
+ * by {@link #start}, then patched from the provider's change notifications: only the named rows
+ * are queried again, and a notification that names no rows rebuilds it.
+ * <p>
+ * {@link #get} returns the latest snapshot, which never changes, without blocking, from any
+ * thread.
+ */
+public class LiveCatalogSnapshot {
+
+    /**
+     * Receives each new snapshot on the snapshot's thread.
+     */
+    public interface Listener {
+        void onSnapshotChanged(CatalogSnapshot snapshot);
+    }
+
+    private static final String LOG_TAG = LiveCatalogSnapshot.class.getSimpleName();
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    /** The thread the snapshot is kept on, or null if the caller gave its own looper. */
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+
+    /** The latest snapshot, or null until the first is built. Written on mHandler's thread only. */
+    private volatile CatalogSnapshot mSnapshot;
+
+    public LiveCatalogSnapshot(ContentResolver resolver, Listener listener) {
+        this(resolver, listener, newThread());
+    }
+
+    /**
+     * Keep the snapshot on the thread of the given looper, which the caller owns.
+     */
+    LiveCatalogSnapshot(ContentResolver resolver, Listener listener, Looper looper) {
+        this(resolver, listener, null, looper);
+    }
+
+    private LiveCatalogSnapshot(ContentResolver resolver, Listener listener, HandlerThread thread) {
+        this(resolver, listener, thread, thread.getLooper());
+    }
+
+    private LiveCatalogSnapshot(ContentResolver resolver, Listener listener, HandlerThread thread,
+                                Looper looper) {
+        mResolver = resolver;
+        mListener = listener;
+        mThread = thread;
+        mHandler = new Handler(looper);
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                applyChange(uri);
+            }
+        };
+    }
+
+    /**
+     * Start following the catalog and build the first snapshot in the background.
+     */
+    public void start() {
+        mResolver.registerContentObserver(BookEntry.CONTENT_URI, true, mObserver);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                rebuild();
+            }
+        });
+    }
+
+    /**
+     * Stop following the catalog. The last snapshot stays readable.
+     */
+    public void stop() {
+        mResolver.unregisterContentObserver(mObserver);
+        if (mThread != null) {
+            mThread.quit();
+        }
+    }
+
+    /**
+     * Return the latest snapshot, or null if the first one is not built yet.
+     */
+    public CatalogSnapshot get() {
+        return mSnapshot;
+    }
+
+    private static HandlerThread newThread() {
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread;
+    }
+
+    private void applyChange(Uri uri) {
+        CatalogSnapshot snapshot = mSnapshot;
+        String operation = BookEntry.getChangeOperation(uri);
+        long[] ids = BookEntry.getChangeIds(uri);
+        if (snapshot == null || operation == null || ids == null) {
+            rebuild();
+            return;
+        }
+
+        try {
+            if (BookEntry.OPERATION_DELETE.equals(operation)) {
+                publish(snapshot.withChanges(null, ids));
+                return;
+            }
+            Cursor changed = mResolver.query(BookEntry.CONTENT_URI, CatalogSnapshot.PROJECTION,
+                    inIds(ids.length), toArgs(ids), null);
+            if (changed == null) {
+                return;
+            }
+            try {
+                // A named row the query no longer finds was deleted since; drop it too.
+                publish(snapshot.withChanges(changed, ids));
+            } finally {
+                changed.close();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to apply " + uri + ", rebuilding the snapshot", e);
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        try {
+            publish(CatalogSnapshot.load(mResolver));
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to build the catalog snapshot", e);
+        }
+    }
+
+    private void publish(CatalogSnapshot snapshot) {
+        mSnapshot = snapshot;
+        if (mListener != null) {
+            mListener.onSnapshotChanged(snapshot);
+        }
+    }
+
+    private static String inIds(int count) {
+        StringBuilder selection = new StringBuilder(BookEntry._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    private static String[] toArgs(long[] ids) {
+        String[] args = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            args[i] = String.valueOf(ids[i]);
+        }
+        return args;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.bookstoreapp.data;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the provider's calls, per URI match code and operation.
+ * <p>
+ * Recording is lock-free and does not allocate: every counter is a slot of a preallocated
+ * {@link AtomicLongArray}. Latencies go into power-of-two microsecond buckets, so percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+class ProviderMetrics {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_CALL = 5;
+
+    private static final String[] OPERATION_NAMES =
+            {"query", "insert", "bulk_insert", "update", "delete", "call"};
+    private static final int OPERATIONS = OPERATION_NAMES.length;
+
+    /** Bucket i counts latencies below 2^i microseconds; the last one also counts everything above. */
+    static final int BUCKETS = 24;
+
+    private final int[] mMatchCodes;
+    private final String[] mUriNames;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLongArray mErrors;
+    private final AtomicLongArray mRows;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mMaxNanos;
+    private final AtomicLongArray mHistograms;
+
+    /**
+     * @param matchCodes the URI match codes to keep metrics for; any other code, including
+     *                   {@link android.content.UriMatcher#NO_MATCH}, is counted as "unknown"
+     * @param uriNames   the name reported for each match code
+     */
+    ProviderMetrics(int[] matchCodes, String[] uriNames) {
+        mMatchCodes = matchCodes.clone();
+        mUriNames = new String[uriNames.length + 1];
+        System.arraycopy(uriNames, 0, mUriNames, 0, uriNames.length);
+        mUriNames[uriNames.length] = "unknown";
+
+        int entries = mUriNames.length * OPERATIONS;
+        mCounts = new AtomicLongArray(entries);
+        mErrors = new AtomicLongArray(entries);
+        mRows = new AtomicLongArray(entries);
+        mTotalNanos = new AtomicLongArray(entries);
+        mMaxNanos = new AtomicLongArray(entries);
+        mHistograms = new AtomicLongArray(entries * BUCKETS);
+    }
+
+    /**
+     * Record a call that completed, started at {@code startNanos} of {@link System#nanoTime}.
+     */
+    void record(int matchCode, int operation, long rows, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        int entry = entry(matchCode, operation);
+        mCounts.incrementAndGet(entry);
+        mRows.addAndGet(entry, rows);
+        mTotalNanos.addAndGet(entry, nanos);
+        mHistograms.incrementAndGet(entry * BUCKETS + bucket(nanos / 1000));
+
+        long max = mMaxNanos.get(entry);
+        while (nanos > max && !mMaxNanos.compareAndSet(entry, max, nanos)) {
+            max = mMaxNanos.get(entry);
+        }
+    }
+
+    /**
+     * Add rows to a call recorded before, for rows only known after it returned.
+     */
+    void recordRows(int matchCode, int operation, long rows) {
+        mRows.addAndGet(entry(matchCode, operation), rows);
+    }
+
+    /**
+     * Record a call that threw.
+     */
+    void recordError(int matchCode, int operation) {
+        mErrors.incrementAndGet(entry(matchCode, operation));
+    }
+
+    /**
+     * Clear every counter. Calls recorded while resetting may be partly kept.
+     */
+    void reset() {
+        clear(mCounts);
+        clear(mErrors);
+        clear(mRows);
+        clear(mTotalNanos);
+        clear(mMaxNanos);
+        clear(mHistograms);
+    }
+
+    /**
+     * Return the counters of every URI and operation that saw a call, each as a Bundle under a
+     * "uri/operation" key. See {@link BookStoreContract.BookEntry#METHOD_METRICS} for the keys.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            bounds[i] = upperBoundMicros(i);
+        }
+        snapshot.putLongArray("bucket_upper_bounds_us", bounds);
+
+        for (int entry = 0; entry < mCounts.length(); entry++) {
+            long count = mCounts.get(entry);
+            long errors = mErrors.get(entry);
+            if (count == 0 && errors == 0) {
+                continue;
+            }
+
+            long[] histogram = histogram(entry);
+            Bundle metrics = new Bundle();
+            metrics.putLong("count", count);
+            metrics.putLong("errors", errors);
+            metrics.putLong("rows", mRows.get(entry));
+            metrics.putLong("total_us", mTotalNanos.get(entry) / 1000);
+            metrics.putLong("max_us", mMaxNanos.get(entry) / 1000);
+            metrics.putLong("p50_us", percentileMicros(histogram, count, 50));
+            metrics.putLong("p90_us", percentileMicros(histogram, count, 90));
+            metrics.putLong("p99_us", percentileMicros(histogram, count, 99));
+            metrics.putLongArray("histogram", histogram);
+            snapshot.putBundle(name(entry), metrics);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Print one line per URI and operation that saw a call.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("uri/operation count errors rows mean_us p50_us p90_us p99_us max_us");
+        for (int entry = 0; entry < mCounts.length(); entry++) {
+            long count = mCounts.get(entry);
+            long errors = mErrors.get(entry);
+            if (count == 0 && errors == 0) {
+                continue;
+            }
+
+            long[] histogram = histogram(entry);
+            writer.println(name(entry) + " " + count + " " + errors + " " + mRows.get(entry) + " "
+                    + (count == 0 ? 0 : mTotalNanos.get(entry) / 1000 / count) + " "
+                    + percentileMicros(histogram, count, 50) + " "
+                    + percentileMicros(histogram, count, 90) + " "
+                    + percentileMicros(histogram, count, 99) + " "
+                    + mMaxNanos.get(entry) / 1000);
+        }
+    }
+
+    private int entry(int matchCode, int operation) {
+        int slot = mMatchCodes.length;
+        for (int i = 0; i < mMatchCodes.length; i++) {
+            if (mMatchCodes[i] == matchCode) {
+                slot = i;
+                break;
+            }
+        }
+        return slot * OPERATIONS + operation;
+    }
+
+    private String name(int entry) {
+        return mUriNames[entry / OPERATIONS] + "/" + OPERATION_NAMES[entry % OPERATIONS];
+    }
+
+    private long[] histogram(int entry) {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = mHistograms.get(entry * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    private static int bucket(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    private static long percentileMicros(long[] histogram, long count, int percentile) {
+        long rank = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return upperBoundMicros(i);
+            }
+        }
+        return 0;
+    }
+
+    private static void clear(AtomicLongArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            array.set(i, 0);
+        }
+    }
+}
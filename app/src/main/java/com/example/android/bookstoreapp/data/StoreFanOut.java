@@ -0,0 +1,193 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.StoreEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs one query per store in parallel and merges the sorted results, for the
+ * {@link StoreEntry#ALL_STORES} URIs of {@link BookStoreProvider}.
+ * <p>
+ * Each store has its own database file, so the queries do not wait on each other's locks and run
+ * on as many cores as there are. A store's query returns its rows already sorted, with its sort
+ * keys as its last columns; the merge reads the stores' rows in one pass, like the merge step of
+ * a merge sort, and stops at the limit.
+ */
+final class StoreFanOut {
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private StoreFanOut() {
+    }
+
+    /**
+     * Run the given queries in parallel and return their cursors, in the same order, with their
+     * first window already filled. If a query fails, the other cursors are closed and its
+     * exception is thrown.
+     */
+    static Cursor[] queryAll(List<Callable<Cursor>> queries) {
+        List<Future<Cursor>> futures = new ArrayList<>(queries.size());
+        for (final Callable<Cursor> query : queries) {
+            futures.add(executor().submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() throws Exception {
+                    Cursor cursor = query.call();
+                    try {
+                        // A SQLite cursor runs its query when first counted; do it on this thread.
+                        cursor.getCount();
+                    } catch (RuntimeException e) {
+                        cursor.close();
+                        throw e;
+                    }
+                    return cursor;
+                }
+            }));
+        }
+
+        // Wait for every store even after a failure, so no cursor is left open behind it.
+        Cursor[] cursors = new Cursor[futures.size()];
+        RuntimeException failure = null;
+        for (int i = 0; i < cursors.length; i++) {
+            try {
+                cursors[i] = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IllegalStateException("Interrupted while querying the stores", e);
+                break;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                            : new IllegalStateException("Failed to query a store", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            closeAll(cursors);
+            throw failure;
+        }
+        return cursors;
+    }
+
+    /**
+     * Merge the given cursors, each sorted ascending by its last {@code keyColumns} columns, into
+     * one cursor of at most {@code limit} rows in the same order. Rows with equal keys keep the
+     * order of their stores. The result has a {@link StoreEntry#COLUMN_STORE} column, naming each
+     * row's store, followed by the other columns of the first cursor. The given cursors are closed.
+     */
+    static Cursor merge(String[] stores, final Cursor[] cursors, int keyColumns, int limit) {
+        try {
+            String[] columns = cursors[0].getColumnNames();
+            final int valueColumns = columns.length - keyColumns;
+            String[] resultColumns = new String[valueColumns + 1];
+            resultColumns[0] = StoreEntry.COLUMN_STORE;
+            System.arraycopy(columns, 0, resultColumns, 1, valueColumns);
+            MatrixCursor result = new MatrixCursor(resultColumns);
+
+            PriorityQueue<Integer> heads = new PriorityQueue<>(cursors.length,
+                    new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            int order = compareKeys(cursors[a], cursors[b], valueColumns);
+                            return order != 0 ? order : a - b;
+                        }
+                    });
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i].moveToFirst()) {
+                    heads.add(i);
+                }
+            }
+
+            Object[] row = new Object[resultColumns.length];
+            while (result.getCount() < limit && !heads.isEmpty()) {
+                int store = heads.poll();
+                Cursor cursor = cursors[store];
+                row[0] = stores[store];
+                for (int column = 0; column < valueColumns; column++) {
+                    row[column + 1] = value(cursor, column);
+                }
+                result.addRow(row);
+                if (cursor.moveToNext()) {
+                    heads.add(store);
+                }
+            }
+            return result;
+        } finally {
+            closeAll(cursors);
+        }
+    }
+
+    /**
+     * Compare the sort keys of the current rows of two cursors, the columns from {@code first}
+     * on. Integers compare as numbers, anything else as text; null sorts first, as in SQLite.
+     */
+    private static int compareKeys(Cursor a, Cursor b, int first) {
+        for (int column = first; column < a.getColumnCount(); column++) {
+            int order;
+            if (a.isNull(column) || b.isNull(column)) {
+                order = (a.isNull(column) ? 0 : 1) - (b.isNull(column) ? 0 : 1);
+            } else if (a.getType(column) == Cursor.FIELD_TYPE_INTEGER
+                    && b.getType(column) == Cursor.FIELD_TYPE_INTEGER) {
+                long x = a.getLong(column);
+                long y = b.getLong(column);
+                order = x < y ? -1 : x == y ? 0 : 1;
+            } else {
+                order = a.getString(column).compareTo(b.getString(column));
+            }
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    private static Object value(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    private static void closeAll(Cursor[] cursors) {
+        for (Cursor cursor : cursors) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, StoreFanOut.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of BookRowCache: projections of cached rows, and the generation guard that
+ * keeps a row read before a write from being cached after it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class BookRowCacheTest {
+
+    @Test
+    public void rowReadBeforeAnInvalidation_isNotCached() {
+        BookRowCache cache = new BookRowCache(10);
+        long generation = cache.generation();
+        Cursor stale = row(1, 3, 7);
+
+        // A write committed and invalidated the row while the read was in flight.
+        cache.invalidate(new long[]{1});
+        cache.putAll(stale, generation);
+
+        assertNull(cache.get(1, null));
+        assertEquals(0, cache.size());
+
+        cache.putAll(row(1, 2, 7), cache.generation());
+        assertEquals(2, quantity(cache.get(1, new String[]{BookEntry.COLUMN_QUANTITY})));
+    }
+
+    @Test
+    public void supplierInvalidation_dropsEveryRowOfThatSupplier_andStartsAGeneration() {
+        BookRowCache cache = new BookRowCache(10);
+        cache.putAll(row(1, 3, 7), cache.generation());
+        cache.putAll(row(2, 4, 7), cache.generation());
+        cache.putAll(row(3, 5, 8), cache.generation());
+        long generation = cache.generation();
+
+        cache.invalidateSupplier(7);
+
+        assertNull(cache.get(1, null));
+        assertNull(cache.get(2, null));
+        assertEquals(5, quantity(cache.get(3, new String[]{BookEntry.COLUMN_QUANTITY})));
+        cache.putAll(row(1, 3, 7), generation);
+        assertNull(cache.get(1, null));
+    }
+
+    @Test
+    public void covers_onlyProjectionsOfCachedColumns() {
+        assertTrue(BookRowCache.covers(null));
+        assertTrue(BookRowCache.covers(new String[]{BookEntry._ID, BookEntry.COLUMN_SUPPLIER_PHONE}));
+        assertFalse(BookRowCache.covers(new String[]{BookEntry._ID, "COUNT(*)"}));
+    }
+
+    /**
+     * Return a cursor over one row with the cached columns.
+     */
+    private static Cursor row(long id, int quantity, long supplierId) {
+        MatrixCursor cursor = new MatrixCursor(BookRowCache.COLUMNS);
+        cursor.addRow(new Object[]{id, "Book " + id, 10L, (long) quantity, supplierId, "Supplier",
+                "555-0100", 1L, null});
+        return cursor;
+    }
+
+    private static int quantity(Cursor cursor) {
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SearchEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SettingsEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SummaryEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of the schema migrations: an install at version 1 is upgraded to the latest
+ * version through BookStoreDbHelper, the same path a real upgrade takes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class BookStoreMigrationsTest {
+
+    private Context mContext;
+    private File mDatabaseFile;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDatabaseFile = mContext.getDatabasePath(BookStoreDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsRows() {
+        createVersion1Database(3);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        assertEquals(BookStoreDbHelper.DATABASE_VERSION, db.getVersion());
+
+        Cursor cursor = db.query(BookEntry.TABLE_NAME, null, null, null, null, null, BookEntry._ID);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Book 0", cursor.getString(cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_NAME)));
+        } finally {
+            cursor.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_indexesExistingRowsForSearch() {
+        createVersion1Database(3);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT " + SearchEntry.COLUMN_DOCID + " FROM "
+                + SearchEntry.TABLE_NAME + " WHERE " + SearchEntry.TABLE_NAME + " MATCH 'book*'", null);
+        try {
+            assertEquals(3, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_createsIndexes() {
+        createVersion1Database(0);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        List<String> indexes = querySchema(db, "index");
+        assertTrue(indexes.contains("books_supplier_id"));
+        assertTrue(indexes.contains("books_quantity"));
+        assertTrue(indexes.contains("books_product_name"));
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_movesSuppliersToTheirOwnTable() {
+        createVersion1Database(4);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME));
+
+        Cursor cursor = db.query(BookEntry.VIEW_NAME, null, null, null, null, null, BookEntry._ID);
+        try {
+            assertEquals(4, cursor.getCount());
+            cursor.moveToPosition(3);
+            assertEquals("Supplier 1", cursor.getString(cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_NAME)));
+            assertEquals("555-0001", cursor.getString(cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_PHONE)));
+        } finally {
+            cursor.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsOnePhonePerSupplierName() {
+        createVersion1Database(2);
+        SQLiteDatabase v1 = SQLiteDatabase.openDatabase(mDatabaseFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book 2");
+        values.put(BookEntry.COLUMN_PRICE, 12);
+        values.put(BookEntry.COLUMN_QUANTITY, 2);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier 0");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0009");
+        v1.insert(BookEntry.TABLE_NAME, null, values);
+        v1.close();
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME));
+        assertEquals("555-0009", DatabaseUtils.stringForQuery(db, "SELECT "
+                + SupplierEntry.COLUMN_SUPPLIER_PHONE + " FROM " + SupplierEntry.TABLE_NAME + " WHERE "
+                + SupplierEntry.COLUMN_SUPPLIER_NAME + " = 'Supplier 0'", null));
+        db.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1_backfillsSummaries() {
+        createVersion1Database(4);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getReadableDatabase();
+        // Books 0..3 cost 10..13 and hold 0..3 copies; suppliers alternate.
+        Cursor cursor = db.query(SummaryEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(4, cursor.getLong(cursor.getColumnIndex(SummaryEntry.COLUMN_BOOK_COUNT)));
+            assertEquals(6, cursor.getLong(cursor.getColumnIndex(SummaryEntry.COLUMN_UNITS)));
+            assertEquals(11 + 2 * 12 + 3 * 13,
+                    cursor.getLong(cursor.getColumnIndex(SummaryEntry.COLUMN_STOCK_VALUE)));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, SummaryEntry.SUPPLIER_TABLE_NAME));
+        db.close();
+    }
+
+    @Test
+    public void summaries_followWritesToBooks() {
+        createVersion1Database(4);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_QUANTITY + " = "
+                + BookEntry.COLUMN_QUANTITY + " + 1");
+        db.delete(BookEntry.TABLE_NAME, BookEntry.COLUMN_PRODUCT_NAME + " = ?", new String[]{"Book 0"});
+
+        Cursor cursor = db.rawQuery("SELECT SUM(" + SummaryEntry.COLUMN_BOOK_COUNT + "), SUM("
+                + SummaryEntry.COLUMN_UNITS + "), SUM(" + SummaryEntry.COLUMN_STOCK_VALUE + ") FROM "
+                + SummaryEntry.SUPPLIER_TABLE_NAME, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getLong(0));
+            assertEquals(2 + 3 + 4, cursor.getLong(1));
+            assertEquals(2 * 11 + 3 * 12 + 4 * 13, cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void lowStockGeneration_changesOnlyWhenABookCrossesTheThreshold() {
+        createVersion1Database(4);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        long start = lowStockGeneration(db);
+
+        // Book 3 goes from 3 to 2 copies: still below the default threshold of 5.
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_QUANTITY
+                + " = 2 WHERE " + BookEntry.COLUMN_PRODUCT_NAME + " = 'Book 3'");
+        assertEquals(start, lowStockGeneration(db));
+
+        // Restocked above the threshold: it leaves the list.
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_QUANTITY
+                + " = 20 WHERE " + BookEntry.COLUMN_PRODUCT_NAME + " = 'Book 3'");
+        assertEquals(start + 1, lowStockGeneration(db));
+        db.close();
+    }
+
+    @Test
+    public void version_incrementsOnEveryUpdate() {
+        createVersion1Database(2);
+
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        assertEquals(1, version(db, "Book 1"));
+
+        // An update that leaves the version alone is bumped by the trigger.
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_PRICE
+                + " = 99 WHERE " + BookEntry.COLUMN_PRODUCT_NAME + " = 'Book 1'");
+        assertEquals(2, version(db, "Book 1"));
+
+        // An update that bumps the version itself is not bumped twice.
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_QUANTITY + " = "
+                + BookEntry.COLUMN_QUANTITY + " - 1, " + BookEntry.COLUMN_VERSION + " = "
+                + BookEntry.COLUMN_VERSION + " + 1 WHERE " + BookEntry.COLUMN_PRODUCT_NAME + " = 'Book 1'");
+        assertEquals(3, version(db, "Book 1"));
+        assertEquals(1, version(db, "Book 0"));
+        db.close();
+    }
+
+    @Test
+    public void upgradedSchema_matchesFreshSchema() {
+        SQLiteDatabase fresh = new BookStoreDbHelper(mContext).getReadableDatabase();
+        List<String> freshSchema = querySchema(fresh, null);
+        fresh.close();
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+
+        createVersion1Database(0);
+        SQLiteDatabase upgraded = new BookStoreDbHelper(mContext).getReadableDatabase();
+        List<String> upgradedSchema = querySchema(upgraded, null);
+        upgraded.close();
+
+        assertEquals(freshSchema, upgradedSchema);
+    }
+
+    /**
+     * Create the database file as version 1 of the app left it, holding the given number of books.
+     */
+    private void createVersion1Database(int rows) {
+        mDatabaseFile.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        BookStoreMigrations.createVersion1(db);
+        for (int i = 0; i < rows; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+            values.put(BookEntry.COLUMN_PRICE, 10 + i);
+            values.put(BookEntry.COLUMN_QUANTITY, i);
+            values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + (i % 2));
+            values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-000" + (i % 2));
+            db.insert(BookEntry.TABLE_NAME, null, values);
+        }
+        db.setVersion(1);
+        db.close();
+    }
+
+    private static long version(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + BookEntry.COLUMN_VERSION + " FROM "
+                + BookEntry.VIEW_NAME + " WHERE " + BookEntry.COLUMN_PRODUCT_NAME + " = ?",
+                new String[]{name});
+    }
+
+    private static long lowStockGeneration(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + SettingsEntry.COLUMN_VALUE + " FROM "
+                + SettingsEntry.TABLE_NAME + " WHERE " + SettingsEntry.COLUMN_KEY + " = ?",
+                new String[]{SettingsEntry.KEY_LOW_STOCK_GENERATION});
+    }
+
+    /**
+     * Return the schema objects of the given type (all types if null) as "type name sql" strings,
+     * ordered by name.
+     */
+    private static List<String> querySchema(SQLiteDatabase db, String type) {
+        String selection = "name NOT LIKE 'sqlite_%' AND name NOT LIKE 'android_%'"
+                + (type == null ? "" : " AND type = '" + type + "'");
+        Cursor cursor = db.query("sqlite_master", new String[]{"type", "name", "sql"}, selection,
+                null, null, null, "name");
+        List<String> schema = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(type == null
+                        ? cursor.getString(0) + " " + cursor.getString(1) + " " + cursor.getString(2)
+                        : cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+}
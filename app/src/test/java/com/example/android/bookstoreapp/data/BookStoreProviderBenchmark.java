@@ -0,0 +1,318 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.ExportEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local JVM benchmark of BookStoreProvider and BookStoreDbHelper at several catalog sizes. Every
+ * operation goes through the ContentResolver, as the app's own calls do, except the upgrade of a
+ * version 1 database to the latest schema, which goes through BookStoreDbHelper as on a real
+ * upgrade.
+ * <p>
+ * It is skipped unless the {@code bookstore.benchmark} system property is true:
+ * <pre>./gradlew testDebugUnitTest --tests '*BookStoreProviderBenchmark' -Dbookstore.benchmark=true</pre>
+ * {@code bookstore.benchmark.sizes} overrides the catalog sizes, as a comma-separated list.
+ * Results are written as JSON to {@code bookstore.benchmark.output}, by default
+ * {@code build/benchmark/provider-benchmark.json} under the app module.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class BookStoreProviderBenchmark {
+
+    private static final String DEFAULT_SIZES = "1000,100000,1000000";
+    private static final String DEFAULT_OUTPUT = "build/benchmark/provider-benchmark.json";
+
+    /** Rows per bulkInsert call while loading a catalog. */
+    private static final int LOAD_CHUNK = 10000;
+
+    /** Number of calls timed for each single-row operation. */
+    private static final int SINGLE_OPERATIONS = 1000;
+
+    private static final int SUPPLIERS = 100;
+
+    /** Largest catalog file imported. */
+    private static final int MAX_IMPORT_ROWS = 100000;
+
+    /** Slowest import allowed of a file of at least one chunk. */
+    private static final double MIN_IMPORT_ROWS_PER_SECOND = 10000;
+
+    /** Largest version 1 database upgraded to the latest schema. */
+    private static final int MAX_MIGRATION_ROWS = 100000;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private final Random mRandom = new Random(42);
+
+    @Before
+    public void setUp() {
+        assumeTrue("Set -Dbookstore.benchmark=true to run", Boolean.getBoolean("bookstore.benchmark"));
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        if (mContext != null) {
+            mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        }
+    }
+
+    @Test
+    public void benchmarkCatalogSizes() throws IOException, JSONException {
+        JSONArray results = new JSONArray();
+        for (String size : System.getProperty("bookstore.benchmark.sizes", DEFAULT_SIZES).split(",")) {
+            mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+            benchmarkMigration(Integer.parseInt(size.trim()), results);
+            mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+            // A new provider per size, so no rows or statements carry over.
+            Robolectric.setupContentProvider(BookStoreProvider.class);
+            benchmark(Integer.parseInt(size.trim()), results);
+        }
+
+        File output = new File(System.getProperty("bookstore.benchmark.output", DEFAULT_OUTPUT));
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        try {
+            writer.write(results.toString(2));
+        } finally {
+            writer.close();
+        }
+        System.out.println("Benchmark results written to " + output.getAbsolutePath());
+    }
+
+    private void benchmark(int rows, JSONArray results) throws IOException, JSONException {
+        // Bulk insert: load the whole catalog.
+        long start = System.nanoTime();
+        for (int loaded = 0; loaded < rows; loaded += LOAD_CHUNK) {
+            ContentValues[] chunk = new ContentValues[Math.min(LOAD_CHUNK, rows - loaded)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = book(loaded + i);
+            }
+            assertEquals(chunk.length, mResolver.bulkInsert(BookEntry.CONTENT_URI, chunk));
+        }
+        results.put(result(rows, "bulk_insert", rows, System.nanoTime() - start));
+
+        // Insert: one row per call.
+        long[] ids = new long[SINGLE_OPERATIONS];
+        start = System.nanoTime();
+        for (int i = 0; i < SINGLE_OPERATIONS; i++) {
+            Uri uri = mResolver.insert(BookEntry.CONTENT_URI, book(rows + i));
+            ids[i] = ContentUris.parseId(uri);
+        }
+        results.put(result(rows, "insert", SINGLE_OPERATIONS, System.nanoTime() - start));
+        int total = rows + SINGLE_OPERATIONS;
+
+        // List query, reading every row of the cursor as the catalog does.
+        start = System.nanoTime();
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, Book.PROJECTION, null, null, null);
+        int scanned;
+        try {
+            scanned = Book.fromCursor(cursor).size();
+        } finally {
+            cursor.close();
+        }
+        assertEquals(total, scanned);
+        results.put(result(rows, "list_query_full_scan", scanned, System.nanoTime() - start));
+
+        // Item query: random books, as opened from the list.
+        start = System.nanoTime();
+        for (int i = 0; i < SINGLE_OPERATIONS; i++) {
+            long id = 1 + mRandom.nextInt(total);
+            cursor = mResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                    null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+        }
+        results.put(result(rows, "item_query", SINGLE_OPERATIONS, System.nanoTime() - start));
+
+        // Sale: one copy of a random book per call.
+        start = System.nanoTime();
+        for (int i = 0; i < SINGLE_OPERATIONS; i++) {
+            long id = 1 + mRandom.nextInt(total);
+            assertNotNull(mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL,
+                    String.valueOf(id), null));
+        }
+        results.put(result(rows, "sale_update", SINGLE_OPERATIONS, System.nanoTime() - start));
+
+        // Columnar snapshot: build it in one pass, then filter, sort and total it in memory.
+        start = System.nanoTime();
+        CatalogSnapshot snapshot = CatalogSnapshot.load(mResolver);
+        results.put(result(rows, "snapshot_build", total, System.nanoTime() - start));
+        assertEquals(total, snapshot.size());
+
+        start = System.nanoTime();
+        int[] lowStock = snapshot.filter(CatalogSnapshot.quantityBelow(5), true);
+        CatalogSnapshot.Totals totals = snapshot.totals(lowStock, true);
+        snapshot.sort(lowStock, CatalogSnapshot.SORT_BY_PRICE, true);
+        results.put(result(rows, "snapshot_filter_sort_totals", total, System.nanoTime() - start));
+        assertEquals(lowStock.length, totals.bookCount);
+
+        // CSV export: stream the whole catalog through a pipe, timing the first byte and the end.
+        start = System.nanoTime();
+        InputStream export = mResolver.openInputStream(ExportEntry.CONTENT_URI);
+        assertNotNull(export);
+        int lines = 0;
+        try {
+            byte[] buffer = new byte[8192];
+            int read = export.read(buffer);
+            results.put(result(rows, "csv_export_first_byte", 1, System.nanoTime() - start));
+            while (read != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                read = export.read(buffer);
+            }
+        } finally {
+            export.close();
+        }
+        // The header line, then one line per book.
+        assertEquals(total + 1, lines);
+        results.put(result(rows, "csv_export", total, System.nanoTime() - start));
+
+        // Delete all.
+        start = System.nanoTime();
+        assertEquals(total, mResolver.delete(BookEntry.CONTENT_URI, null, null));
+        results.put(result(rows, "delete_all", total, System.nanoTime() - start));
+
+        // CSV import: stream a catalog file through CatalogImporter, a chunk per transaction.
+        int importRows = Math.min(rows, MAX_IMPORT_ROWS);
+        File csv = writeCsv(importRows);
+        try {
+            start = System.nanoTime();
+            CatalogImporter.Result imported = new CatalogImporter(mResolver)
+                    .importFrom("benchmark-" + rows, new FileInputStream(csv), null);
+            long nanos = System.nanoTime() - start;
+            results.put(result(rows, "csv_import", importRows, nanos));
+            assertEquals(importRows, imported.rowsImported);
+            assertEquals(0, imported.rowsFailed);
+            if (importRows >= CatalogImporter.CHUNK_SIZE) {
+                double rowsPerSecond = importRows * 1e9 / nanos;
+                assertTrue("Imported " + Math.round(rowsPerSecond) + " rows/s",
+                        rowsPerSecond >= MIN_IMPORT_ROWS_PER_SECOND);
+            }
+        } finally {
+            csv.delete();
+        }
+    }
+
+    /**
+     * Time the upgrade of a version 1 database of up to {@link #MAX_MIGRATION_ROWS} books to the
+     * latest schema: every migration in one transaction, as BookStoreDbHelper runs them.
+     */
+    private void benchmarkMigration(int rows, JSONArray results) throws JSONException {
+        int migrationRows = Math.min(rows, MAX_MIGRATION_ROWS);
+        File file = mContext.getDatabasePath(BookStoreDbHelper.DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            BookStoreMigrations.createVersion1(db);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < migrationRows; i++) {
+                    db.insert(BookEntry.TABLE_NAME, null, book(i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+
+        long start = System.nanoTime();
+        BookStoreDbHelper helper = new BookStoreDbHelper(mContext);
+        try {
+            SQLiteDatabase upgraded = helper.getWritableDatabase();
+            results.put(result(rows, "migrate_v1_to_v" + BookStoreDbHelper.DATABASE_VERSION,
+                    migrationRows, System.nanoTime() - start));
+            assertEquals(migrationRows, DatabaseUtils.queryNumEntries(upgraded, BookEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private File writeCsv(int rows) throws IOException {
+        File csv = File.createTempFile("catalog", ".csv");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"));
+        try {
+            writer.write(BookEntry.COLUMN_PRODUCT_NAME + "," + BookEntry.COLUMN_PRICE + ","
+                    + BookEntry.COLUMN_QUANTITY + "," + BookEntry.COLUMN_SUPPLIER_NAME + ","
+                    + BookEntry.COLUMN_SUPPLIER_PHONE + "\n");
+            for (int i = 0; i < rows; i++) {
+                ContentValues book = book(i);
+                writer.write("\"" + book.getAsString(BookEntry.COLUMN_PRODUCT_NAME) + ", vol. 1\","
+                        + book.getAsString(BookEntry.COLUMN_PRICE) + ","
+                        + book.getAsString(BookEntry.COLUMN_QUANTITY) + ","
+                        + book.getAsString(BookEntry.COLUMN_SUPPLIER_NAME) + ","
+                        + book.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    private ContentValues book(int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_PRICE, 5 + mRandom.nextInt(50));
+        values.put(BookEntry.COLUMN_QUANTITY, mRandom.nextInt(20));
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + (i % SUPPLIERS));
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-" + (i % SUPPLIERS));
+        return values;
+    }
+
+    private static JSONObject result(int catalogRows, String operation, int count, long nanos)
+            throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("catalog_rows", catalogRows);
+        result.put("operation", operation);
+        result.put("count", count);
+        result.put("total_ms", nanos / 1000000.0);
+        result.put("mean_us", count == 0 ? 0 : nanos / 1000.0 / count);
+        result.put("ops_per_s", nanos == 0 ? 0 : count * 1e9 / nanos);
+        System.out.println(result);
+        return result;
+    }
+}
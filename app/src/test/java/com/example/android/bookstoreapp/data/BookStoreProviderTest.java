@@ -0,0 +1,812 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.MovementEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of BookStoreProvider through a ContentResolver, as the app uses it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class BookStoreProviderTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private BookStoreProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        mProvider = Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void pageRange_staysAdjacentToTheNextPage_afterADelete() {
+        List<Long> ids = insertBooks(6);
+        List<Long> firstPage = queryIds(BookEntry.buildPageUri(-1, 3));
+        assertEquals(ids.subList(0, 3), firstPage);
+
+        mResolver.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(1)), null, null);
+
+        // Counted by rows, the first page would now take the first row of the next page; by
+        // range, it still ends where the next page starts.
+        assertEquals(ids.get(3), queryIds(BookEntry.buildPageUri(-1, 3)).get(2));
+        List<Long> reloaded = queryIds(BookEntry.buildPageRangeUri(-1, firstPage.get(2)));
+        assertEquals(2, reloaded.size());
+        assertEquals(firstPage.get(2), reloaded.get(1));
+        assertEquals(ids.subList(3, 6), queryIds(BookEntry.buildPageUri(firstPage.get(2), 3)));
+    }
+
+    @Test
+    public void supplierBooks_areUnderTheSupplierUri() {
+        long id = insertBooks(1).get(0);
+        ContentValues values = book("Emma", 8, 2);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Other");
+        mResolver.insert(BookEntry.CONTENT_URI, values);
+        long supplierId = supplierIdOf(id);
+
+        Uri uri = SupplierEntry.buildBooksUri(supplierId);
+        assertEquals(Arrays.asList(BookStoreContract.PATH_SUPPLIERS, String.valueOf(supplierId),
+                BookStoreContract.PATH_BOOKS), uri.getPathSegments());
+        assertEquals(Arrays.asList(id), queryIds(uri));
+    }
+
+    @Test
+    public void phoneUpdateById_changesOnlyThatBooksSupplier() {
+        long id = insertBooks(1).get(0);
+        ContentValues other = book("Emma", 8, 2);
+        other.put(BookEntry.COLUMN_SUPPLIER_NAME, "Other");
+        long otherId = ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, other));
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0199");
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                values, null, null));
+
+        assertEquals("555-0199", supplierPhoneOf(id));
+        assertEquals("555-0100", supplierPhoneOf(otherId));
+    }
+
+    @Test
+    public void shutdown_closesTheStatements_andTheNextWriteReopensThem() {
+        long id = insertBooks(1).get(0);
+        mProvider.shutdown();
+
+        ContentValues values = book("Emma", 8, 2);
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                values, null, null));
+        assertEquals(id + 1, (long) insertBooks(1).get(0));
+    }
+
+    @Test
+    public void metrics_recordCallsPerMethod_andQueryRowsOnceCounted() {
+        long id = insertBooks(3).get(0);
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_RESET_METRICS, null, null);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookEntry.EXTRA_IDS, new long[]{id, id});
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL_BATCH, null, extras);
+        Cursor uncounted = mResolver.query(BookEntry.CONTENT_URI, null, null, null, null);
+        uncounted.close();
+        Cursor counted = mResolver.query(BookEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(3, counted.getCount());
+        assertEquals(3, counted.getCount());
+        counted.close();
+
+        Bundle metrics = mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_METRICS, null, null);
+        Bundle sells = metrics.getBundle(BookEntry.METHOD_SELL_BATCH + "/call");
+        assertEquals(1, sells.getLong("count"));
+        assertEquals(2, sells.getLong("rows"));
+        assertNull(metrics.getBundle("books/call"));
+        Bundle queries = metrics.getBundle("books/query");
+        assertEquals(2, queries.getLong("count"));
+        assertEquals(3, queries.getLong("rows"));
+    }
+
+    @Test
+    public void updateIfVersion_updatesTheBook_whenItsVersionIsUnchanged() {
+        long id = insertBooks(1).get(0);
+        long version = readLong(id, BookEntry.COLUMN_VERSION);
+
+        Bundle result = updateIfVersion(id, book("Emma", 8, 4), version);
+
+        assertFalse(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        assertNull(result.getParcelable(BookEntry.EXTRA_CURRENT_ROW));
+        assertEquals(4, readLong(id, BookEntry.COLUMN_QUANTITY));
+        assertEquals(version + 1, readLong(id, BookEntry.COLUMN_VERSION));
+    }
+
+    @Test
+    public void updateIfVersion_returnsTheCurrentRow_whenTheBookChangedSince() {
+        long id = insertBooks(2).get(1);
+        long version = readLong(id, BookEntry.COLUMN_VERSION);
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookEntry.EXTRA_IDS, new long[]{id});
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL_BATCH, null, extras);
+
+        Bundle result = updateIfVersion(id, book("Emma", 8, 4), version);
+
+        assertTrue(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        ContentValues current = result.getParcelable(BookEntry.EXTRA_CURRENT_ROW);
+        assertEquals("Book 1", current.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+        assertEquals(0, (int) current.getAsInteger(BookEntry.COLUMN_QUANTITY));
+        assertEquals(version + 1, (long) current.getAsLong(BookEntry.COLUMN_VERSION));
+        assertEquals(0, readLong(id, BookEntry.COLUMN_QUANTITY));
+
+        // Saving over the current version goes through.
+        result = updateIfVersion(id, book("Emma", 8, 4), version + 1);
+        assertFalse(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        assertEquals(4, readLong(id, BookEntry.COLUMN_QUANTITY));
+    }
+
+    @Test
+    public void updateIfVersion_ofADeletedBook_isAConflictWithoutARow() {
+        long id = insertBooks(1).get(0);
+        long version = readLong(id, BookEntry.COLUMN_VERSION);
+        mResolver.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id), null, null);
+
+        Bundle result = updateIfVersion(id, book("Emma", 8, 4), version);
+
+        assertTrue(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        assertNull(result.getParcelable(BookEntry.EXTRA_CURRENT_ROW));
+    }
+
+    @Test
+    public void salesRestocksAndEdits_areRecordedInTheLedger() {
+        long start = System.currentTimeMillis();
+        long id = insertBooks(4).get(3);
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookEntry.EXTRA_IDS, new long[]{id});
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL_BATCH, null, extras);
+        extras = new Bundle();
+        extras.putInt(BookEntry.EXTRA_QUANTITY, 5);
+        mResolver.call(MovementEntry.CONTENT_URI, MovementEntry.METHOD_RESTOCK, String.valueOf(id), extras);
+        Uri bookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 10);
+        mResolver.update(bookUri, values, null, null);
+        // Setting the quantity it already has is not a movement.
+        mResolver.update(bookUri, values, null, null);
+        long end = System.currentTimeMillis() + 1;
+
+        // Newest first.
+        assertEquals(Arrays.asList(
+                MovementEntry.KIND_ADJUSTMENT + " 3 10",
+                MovementEntry.KIND_RESTOCK + " 5 7",
+                MovementEntry.KIND_SALE + " -1 2"),
+                movements(MovementEntry.buildHistoryUri(id, start, end)));
+        assertTrue(movements(MovementEntry.buildHistoryUri(id, end, end + DAY_MILLIS)).isEmpty());
+        assertTrue(movements(MovementEntry.buildHistoryUri(id + 1, start, end)).isEmpty());
+    }
+
+    @Test
+    public void updatesBySelection_recordAnAdjustmentPerChangedBook() {
+        List<Long> ids = insertBooks(3);
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 1);
+        assertEquals(3, mResolver.update(BookEntry.CONTENT_URI, values, null, null));
+
+        // Book 1 already had one copy.
+        assertEquals(Arrays.asList(MovementEntry.KIND_ADJUSTMENT + " 1 1"),
+                movements(MovementEntry.buildHistoryUri(ids.get(0), 0, Long.MAX_VALUE)));
+        assertTrue(movements(MovementEntry.buildHistoryUri(ids.get(1), 0, Long.MAX_VALUE)).isEmpty());
+        assertEquals(Arrays.asList(MovementEntry.KIND_ADJUSTMENT + " -1 1"),
+                movements(MovementEntry.buildHistoryUri(ids.get(2), 0, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void compaction_foldsOldMovementsIntoDays_andAddsToFoldedDays() {
+        long id = insertBooks(1).get(0);
+        long today = System.currentTimeMillis() / DAY_MILLIS;
+        long oldDay = today - 10;
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        insertMovement(db, id, MovementEntry.KIND_SALE, -1, oldDay * DAY_MILLIS + 1000);
+        insertMovement(db, id, MovementEntry.KIND_SALE, -2, oldDay * DAY_MILLIS + 2000);
+        insertMovement(db, id, MovementEntry.KIND_RESTOCK, 4, oldDay * DAY_MILLIS + 3000);
+        insertMovement(db, id, MovementEntry.KIND_SALE, -1, (oldDay + 1) * DAY_MILLIS);
+        insertMovement(db, id, MovementEntry.KIND_SALE, -1, today * DAY_MILLIS);
+        db.close();
+
+        assertEquals(4, compact(1));
+
+        assertEquals(Arrays.asList(MovementEntry.KIND_SALE + " -1 0"),
+                movements(MovementEntry.buildHistoryUri(id, 0, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList(
+                (oldDay + 1) + " " + MovementEntry.KIND_SALE + " -1 1",
+                oldDay + " " + MovementEntry.KIND_RESTOCK + " 4 1",
+                oldDay + " " + MovementEntry.KIND_SALE + " -3 2"),
+                days(MovementEntry.DAILY_URI));
+
+        // Only the days starting in the range.
+        Uri range = MovementEntry.DAILY_URI.buildUpon()
+                .appendQueryParameter(MovementEntry.QUERY_PARAMETER_FROM, String.valueOf(oldDay * DAY_MILLIS + 1))
+                .appendQueryParameter(MovementEntry.QUERY_PARAMETER_TO, String.valueOf(today * DAY_MILLIS))
+                .build();
+        assertEquals(Arrays.asList((oldDay + 1) + " " + MovementEntry.KIND_SALE + " -1 1"), days(range));
+
+        // A movement of a day folded before is added to it.
+        db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        insertMovement(db, id, MovementEntry.KIND_SALE, -4, oldDay * DAY_MILLIS + 4000);
+        db.close();
+        assertEquals(1, compact(1));
+        assertEquals(oldDay + " " + MovementEntry.KIND_SALE + " -7 3", days(MovementEntry.DAILY_URI).get(2));
+        assertEquals(0, compact(1));
+    }
+
+    @Test
+    public void cover_isCopiedAndServedWithItsType_andReplacingItDeletesTheOldFile() throws IOException {
+        long id = insertBooks(1).get(0);
+        Uri coverUri = BookEntry.buildCoverUri(id);
+        byte[] png = image(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3, 4});
+        Bundle result = setCover(id, source("cover.png", png), -1);
+
+        String name = result.getString(BookEntry.EXTRA_COVER);
+        assertNotNull(name);
+        assertFalse(result.containsKey(BookEntry.EXTRA_CONFLICT));
+        assertEquals(BookEntry.COVER_TYPE_PNG, mProvider.getType(coverUri));
+        assertArrayEquals(png, readCover(coverUri));
+
+        byte[] jpeg = image(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0});
+        String newName = setCover(id, source("cover.jpg", jpeg), -1).getString(BookEntry.EXTRA_COVER);
+        assertNotEquals(name, newName);
+        assertEquals(BookEntry.COVER_TYPE_JPEG, mProvider.getType(coverUri));
+        assertArrayEquals(jpeg, readCover(coverUri));
+        assertEquals(Arrays.asList(newName), Arrays.asList(coversDir().list()));
+
+        // Removed: no type, nothing to open, no file.
+        assertNull(setCover(id, null, -1).getString(BookEntry.EXTRA_COVER));
+        assertNull(mProvider.getType(coverUri));
+        try {
+            mProvider.openFile(coverUri, "r");
+            fail("Expected no cover");
+        } catch (FileNotFoundException expected) {
+        }
+        assertEquals(0, coversDir().list().length);
+    }
+
+    @Test
+    public void cover_thatIsNotAnImage_isRejected_andLeavesNoFile() {
+        long id = insertBooks(1).get(0);
+        try {
+            setCover(id, source("notes.txt", "Not an image".getBytes()), -1);
+            fail("Expected the cover to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, coversDir().list().length);
+        assertNull(mProvider.getType(BookEntry.buildCoverUri(id)));
+    }
+
+    @Test
+    public void cover_reportsTheNewVersion_andWhetherTheBookChangedSinceTheGivenOne() {
+        long id = insertBooks(1).get(0);
+        byte[] gif = image(new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+        long version = readLong(id, BookEntry.COLUMN_VERSION);
+
+        Bundle result = setCover(id, source("a.gif", gif), version);
+        assertFalse(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        long coverVersion = result.getLong(BookEntry.EXTRA_VERSION);
+        assertTrue(coverVersion > version);
+        assertEquals(coverVersion, readLong(id, BookEntry.COLUMN_VERSION));
+        // An editor moved to the cover's version saves without a conflict.
+        Bundle update = updateIfVersion(id, book("Dune", 12, 3), coverVersion);
+        assertFalse(update.getBoolean(BookEntry.EXTRA_CONFLICT));
+
+        // Changed since the editor read it: the cover is set, but the change is reported.
+        result = setCover(id, source("b.gif", gif), coverVersion);
+        assertTrue(result.getBoolean(BookEntry.EXTRA_CONFLICT));
+        assertEquals(BookEntry.COVER_TYPE_GIF, mProvider.getType(BookEntry.buildCoverUri(id)));
+
+        assertFalse(setCover(id + 1, source("c.gif", gif), -1).containsKey(BookEntry.EXTRA_COVER));
+    }
+
+    @Test
+    public void rowCache_servesABookOpenedFromItsPage_andRereadsOnlyTheRowsEachWriteChanged() {
+        List<Long> ids = insertBooks(4);
+        // The list reads a page, which fills the cache.
+        assertEquals(ids, queryIds(BookEntry.buildPageUri(-1, 10)));
+        int[] start = cacheStats();
+
+        // Opening a book of the page skips SQLite.
+        assertEquals(1, readLong(ids.get(1), BookEntry.COLUMN_QUANTITY));
+        assertCacheCounts(start, 1, 0);
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 7);
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(1)), values, null, null);
+        assertEquals(7, readLong(ids.get(1), BookEntry.COLUMN_QUANTITY));
+        assertEquals(2, readLong(ids.get(2), BookEntry.COLUMN_QUANTITY));
+        assertCacheCounts(start, 2, 1);
+
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL, String.valueOf(ids.get(2)), null);
+        assertEquals(1, readLong(ids.get(2), BookEntry.COLUMN_QUANTITY));
+        assertEquals(3, readLong(ids.get(3), BookEntry.COLUMN_QUANTITY));
+        assertCacheCounts(start, 3, 2);
+
+        mResolver.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(3)), null, null);
+        assertTrue(queryIds(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(3))).isEmpty());
+        assertEquals(7, readLong(ids.get(1), BookEntry.COLUMN_QUANTITY));
+        assertCacheCounts(start, 4, 3);
+
+        // A phone change of one book is a change of every book of its supplier.
+        values = new ContentValues();
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0199");
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(0)), values, null, null);
+        assertEquals("555-0199", supplierPhoneOf(ids.get(1)));
+        assertEquals("555-0199", supplierPhoneOf(ids.get(2)));
+        assertCacheCounts(start, 4, 5);
+    }
+
+    @Test
+    public void changeUri_carriesTheOperationAndTheIds() {
+        Uri one = BookEntry.buildChangeUri(BookEntry.OPERATION_DELETE, new long[]{7});
+        assertEquals(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 7).getPath(), one.getPath());
+        assertEquals(BookEntry.OPERATION_DELETE, BookEntry.getChangeOperation(one));
+        assertArrayEquals(new long[]{7}, BookEntry.getChangeIds(one));
+
+        Uri many = BookEntry.buildChangeUri(BookEntry.OPERATION_UPDATE, new long[]{3, 1, 2});
+        assertEquals(BookEntry.CONTENT_URI.getPath(), many.getPath());
+        assertEquals(BookEntry.OPERATION_UPDATE, BookEntry.getChangeOperation(many));
+        assertArrayEquals(new long[]{3, 1, 2}, BookEntry.getChangeIds(many));
+
+        // A plain URI says nothing of the rows: observers reload.
+        assertNull(BookEntry.getChangeOperation(BookEntry.CONTENT_URI));
+        assertNull(BookEntry.getChangeIds(BookEntry.CONTENT_URI));
+        assertNull(BookEntry.getChangeIds(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 7)));
+        assertNull(BookEntry.getChangeOperation(null));
+    }
+
+    @Test
+    public void writes_notifyTheirOperationAndTheIdsTheyChanged() {
+        RecordingObserver observer = observeBooks();
+
+        long dune = ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, book("Dune", 10, 2)));
+        assertEquals(Arrays.asList("insert " + dune), changes(observer));
+
+        assertEquals(2, mResolver.bulkInsert(BookEntry.CONTENT_URI,
+                new ContentValues[]{book("Emma", 8, 3), book("Walden", 7, 1)}));
+        List<Long> ids = queryIds(BookEntry.CONTENT_URI);
+        long emma = ids.get(1);
+        long walden = ids.get(2);
+        assertEquals(Arrays.asList("insert " + emma + "," + walden), changes(observer));
+
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookEntry.COLUMN_QUANTITY, 5);
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, dune), quantity, null, null);
+        assertEquals(Arrays.asList("update " + dune), changes(observer));
+
+        mResolver.update(BookEntry.CONTENT_URI, quantity, BookEntry._ID + " > ?",
+                new String[]{String.valueOf(dune)});
+        assertEquals(Arrays.asList("update " + emma + "," + walden), changes(observer));
+
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL, String.valueOf(dune), null);
+        assertEquals(Arrays.asList("update " + dune), changes(observer));
+
+        // Each book sold once is listed once.
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookEntry.EXTRA_IDS, new long[]{walden, emma, walden});
+        mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SELL_BATCH, null, extras);
+        assertEquals(Arrays.asList("update " + walden + "," + emma), changes(observer));
+
+        mResolver.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, dune), null, null);
+        assertEquals(Arrays.asList("delete " + dune), changes(observer));
+
+        mResolver.delete(BookEntry.CONTENT_URI, BookEntry._ID + " > ?", new String[]{"0"});
+        assertEquals(Arrays.asList("delete " + emma + "," + walden), changes(observer));
+    }
+
+    @Test
+    public void writesOfMoreRowsThanANotificationLists_notifyTheCollection() {
+        RecordingObserver observer = observeBooks();
+        ContentValues[] books = new ContentValues[BookStoreProvider.MAX_NOTIFY_IDS + 1];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = book("Book " + i, 10, 1);
+        }
+
+        assertEquals(books.length, mResolver.bulkInsert(BookEntry.CONTENT_URI, books));
+        assertEquals(Arrays.asList(BookEntry.CONTENT_URI), observer.uris);
+        observer.uris.clear();
+
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookEntry.COLUMN_QUANTITY, 5);
+        String all = BookEntry._ID + " > ?";
+        String[] zero = {"0"};
+        assertEquals(books.length, mResolver.update(BookEntry.CONTENT_URI, quantity, all, zero));
+        assertEquals(Arrays.asList(BookEntry.CONTENT_URI), observer.uris);
+        observer.uris.clear();
+
+        assertEquals(books.length, mResolver.delete(BookEntry.CONTENT_URI, all, zero));
+        assertEquals(Arrays.asList(BookEntry.CONTENT_URI), observer.uris);
+    }
+
+    @Test
+    public void bulkInsert_skipsInvalidRows_andNotifiesTheInsertedOnesOnce() {
+        ContentValues noPrice = book("No price", 10, 1);
+        noPrice.remove(BookEntry.COLUMN_PRICE);
+        ContentValues newSupplierWithoutPhone = book("No phone", 10, 1);
+        newSupplierWithoutPhone.put(BookEntry.COLUMN_SUPPLIER_NAME, "Unknown supplier");
+        newSupplierWithoutPhone.remove(BookEntry.COLUMN_SUPPLIER_PHONE);
+        RecordingObserver observer = observeBooks();
+
+        int inserted = mResolver.bulkInsert(BookEntry.CONTENT_URI, new ContentValues[]{
+                book("Dune", 10, 2), noPrice, book("Emma", 8, 3), newSupplierWithoutPhone,
+                book("Walden", 7, 1)});
+
+        assertEquals(3, inserted);
+        assertEquals(Arrays.asList("Dune", "Emma", "Walden"), names());
+        assertEquals(1, observer.uris.size());
+        Uri change = observer.uris.get(0);
+        assertEquals(BookEntry.OPERATION_INSERT, BookEntry.getChangeOperation(change));
+        assertEquals(queryIds(BookEntry.CONTENT_URI), asList(BookEntry.getChangeIds(change)));
+    }
+
+    @Test
+    public void batch_reportsPerOperationResults_andNotifiesOnce() throws Exception {
+        List<Long> ids = insertBooks(2);
+        ContentValues noName = book(null, 10, 1);
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookEntry.COLUMN_QUANTITY, 9);
+        RecordingObserver observer = observeBooks();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                .withValues(book("Emma", 8, 2)).build());
+        operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                .withValues(noName).build());
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(0))).withValues(quantity).build());
+        operations.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(1))).build());
+        // Expects a count the update does not reach, so it fails alone.
+        operations.add(ContentProviderOperation.newUpdate(BookEntry.CONTENT_URI)
+                .withValues(quantity).withExpectedCount(5).build());
+        ContentProviderResult[] results = mResolver.applyBatch(BookStoreContract.CONTENT_AUTHORITY,
+                operations);
+
+        assertEquals(5, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(0, (int) results[1].count);
+        assertEquals(1, (int) results[2].count);
+        assertEquals(1, (int) results[3].count);
+        assertEquals(0, (int) results[4].count);
+        assertEquals(Arrays.asList("Book 0", "Emma"), names());
+        assertEquals(9, readLong(ids.get(0), BookEntry.COLUMN_QUANTITY));
+        assertEquals(2, readLong(ContentUris.parseId(results[0].uri), BookEntry.COLUMN_QUANTITY));
+        // One reload for the whole batch.
+        assertEquals(Arrays.asList(BookEntry.CONTENT_URI), observer.uris);
+    }
+
+    @Test
+    public void batch_rollsBackOnlyTheFailedOperations() throws Exception {
+        long dune = insertBooks(1).get(0);
+        ContentValues noPrice = book("No price", 10, 1);
+        noPrice.remove(BookEntry.COLUMN_PRICE);
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookEntry.COLUMN_QUANTITY, 9);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                .withValues(book("Emma", 8, 2)).build());
+        operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                .withValues(noPrice).build());
+        // An SQL error inside the update's own writes.
+        operations.add(ContentProviderOperation.newUpdate(BookEntry.CONTENT_URI)
+                .withValues(quantity).withSelection("no_such_column = 1", null).build());
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, dune)).withValues(quantity).build());
+        ContentProviderResult[] results = mResolver.applyBatch(BookStoreContract.CONTENT_AUTHORITY,
+                operations);
+
+        assertNotNull(results[0].uri);
+        assertNull(results[1].uri);
+        assertEquals(0, (int) results[1].count);
+        assertEquals(0, (int) results[2].count);
+        assertEquals(1, (int) results[3].count);
+        assertEquals(Arrays.asList("Book 0", "Emma"), names());
+        assertEquals(9, readLong(dune, BookEntry.COLUMN_QUANTITY));
+        assertEquals(2, readLong(ContentUris.parseId(results[0].uri), BookEntry.COLUMN_QUANTITY));
+        assertEquals(Arrays.asList(MovementEntry.KIND_ADJUSTMENT + " 9 9"),
+                movements(MovementEntry.buildHistoryUri(dune, 0, Long.MAX_VALUE)));
+    }
+
+    private Bundle setCover(long id, Uri source, long version) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(BookEntry.EXTRA_SOURCE, source);
+        if (version >= 0) {
+            extras.putLong(BookEntry.EXTRA_VERSION, version);
+        }
+        return mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_SET_COVER, String.valueOf(id),
+                extras);
+    }
+
+    /**
+     * Return a URI the content resolver reads the given bytes from, once.
+     */
+    private Uri source(String name, byte[] content) {
+        Uri uri = Uri.parse("content://com.example.test/" + name);
+        Shadows.shadowOf(mResolver).registerInputStream(uri, new ByteArrayInputStream(content));
+        return uri;
+    }
+
+    /**
+     * Return the given image header followed by enough data to span several reads.
+     */
+    private static byte[] image(byte[] header) {
+        byte[] image = new byte[20000];
+        System.arraycopy(header, 0, image, 0, header.length);
+        for (int i = header.length; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        return image;
+    }
+
+    private byte[] readCover(Uri coverUri) throws IOException {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(mProvider.openFile(coverUri, "r"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private File coversDir() {
+        return new File(mContext.getFilesDir(), "covers");
+    }
+
+    private int compact(int retentionDays) {
+        Bundle result = mResolver.call(MovementEntry.CONTENT_URI, MovementEntry.METHOD_COMPACT,
+                String.valueOf(retentionDays), null);
+        return result.getInt(MovementEntry.EXTRA_MOVEMENTS_FOLDED);
+    }
+
+    private static void insertMovement(SQLiteDatabase db, long bookId, String kind, int delta,
+                                       long createdAt) {
+        ContentValues values = new ContentValues();
+        values.put(MovementEntry.COLUMN_BOOK_ID, bookId);
+        values.put(MovementEntry.COLUMN_KIND, kind);
+        values.put(MovementEntry.COLUMN_DELTA, delta);
+        values.put(MovementEntry.COLUMN_QUANTITY_AFTER, 0);
+        values.put(MovementEntry.COLUMN_CREATED_AT, createdAt);
+        db.insertOrThrow(MovementEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Return each movement of the URI as "kind delta quantity_after".
+     */
+    private List<String> movements(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[]{MovementEntry.COLUMN_KIND,
+                MovementEntry.COLUMN_DELTA, MovementEntry.COLUMN_QUANTITY_AFTER}, null, null, null);
+        List<String> movements = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                movements.add(cursor.getString(0) + " " + cursor.getLong(1) + " " + cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return movements;
+    }
+
+    /**
+     * Return each folded day of the URI as "day kind delta movements", newest first, then by kind.
+     */
+    private List<String> days(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[]{MovementEntry.COLUMN_DAY,
+                        MovementEntry.COLUMN_KIND, MovementEntry.COLUMN_DELTA, MovementEntry.COLUMN_MOVEMENTS},
+                null, null, MovementEntry.COLUMN_DAY + " DESC, " + MovementEntry.COLUMN_KIND);
+        List<String> days = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                days.add(cursor.getLong(0) + " " + cursor.getString(1) + " " + cursor.getLong(2) + " "
+                        + cursor.getLong(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return days;
+    }
+
+    private Bundle updateIfVersion(long id, ContentValues values, long version) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(BookEntry.EXTRA_VALUES, values);
+        extras.putLong(BookEntry.EXTRA_VERSION, version);
+        return mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_UPDATE_IF_VERSION,
+                String.valueOf(id), extras);
+    }
+
+    private long readLong(long bookId, String column) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId),
+                new String[]{column}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long supplierIdOf(long bookId) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId),
+                new String[]{BookEntry.COLUMN_SUPPLIER_ID}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String supplierPhoneOf(long bookId) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId),
+                new String[]{BookEntry.COLUMN_SUPPLIER_PHONE}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Long> insertBooks(int count) {
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Uri uri = mResolver.insert(BookEntry.CONTENT_URI, book("Book " + i, 10, i));
+            assertNotNull(uri);
+            ids.add(ContentUris.parseId(uri));
+        }
+        return ids;
+    }
+
+    /**
+     * Return the row cache's hits and misses.
+     */
+    private int[] cacheStats() {
+        Bundle stats = mResolver.call(BookEntry.CONTENT_URI, BookEntry.METHOD_CACHE_STATS, null, null);
+        return new int[]{stats.getInt(BookEntry.EXTRA_CACHE_HITS),
+                stats.getInt(BookEntry.EXTRA_CACHE_MISSES)};
+    }
+
+    private void assertCacheCounts(int[] start, int hits, int misses) {
+        int[] stats = cacheStats();
+        assertEquals("hits", hits, stats[0] - start[0]);
+        assertEquals("misses", misses, stats[1] - start[1]);
+    }
+
+    /**
+     * Register an observer of every book URI, as the list screen does.
+     */
+    private RecordingObserver observeBooks() {
+        RecordingObserver observer = new RecordingObserver();
+        mResolver.registerContentObserver(BookEntry.CONTENT_URI, true, observer);
+        return observer;
+    }
+
+    /**
+     * Return each notification the observer received as "operation id,id,...", or the URI of a
+     * notification that lists no rows, and forget them.
+     */
+    private static List<String> changes(RecordingObserver observer) {
+        List<String> changes = new ArrayList<>();
+        for (Uri uri : observer.uris) {
+            long[] ids = BookEntry.getChangeIds(uri);
+            if (ids == null) {
+                changes.add(uri.toString());
+                continue;
+            }
+            StringBuilder change = new StringBuilder(BookEntry.getChangeOperation(uri)).append(' ');
+            for (int i = 0; i < ids.length; i++) {
+                change.append(i == 0 ? "" : ",").append(ids[i]);
+            }
+            changes.add(change.toString());
+        }
+        observer.uris.clear();
+        return changes;
+    }
+
+    private static List<Long> asList(long[] values) {
+        List<Long> list = new ArrayList<>(values.length);
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private List<String> names() {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_PRODUCT_NAME}, null, null, BookEntry._ID);
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private List<Long> queryIds(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[]{BookEntry._ID}, null, null, null);
+        List<Long> ids = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static class RecordingObserver extends ContentObserver {
+        final List<Uri> uris = new ArrayList<>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            uris.add(uri);
+        }
+    }
+
+    static ContentValues book(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, price);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0100");
+        return values;
+    }
+}
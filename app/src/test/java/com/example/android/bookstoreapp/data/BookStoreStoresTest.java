@@ -0,0 +1,188 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.LowStockEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SearchEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.StoreEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SummaryEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of the stores of BookStoreProvider: routing by the store segment of the URIs,
+ * and the queries of every store.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class BookStoreStoresTest {
+
+    private static final String[] STORES = {StoreEntry.DEFAULT_STORE, "north", "south"};
+
+    private Context mContext;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        deleteDatabases();
+        Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabases();
+    }
+
+    @Test
+    public void storesKeepTheirOwnBooks() {
+        Uri north = StoreEntry.buildStoreUri("north", BookEntry.CONTENT_URI);
+        Uri book = mResolver.insert(north, book("Dune", 10, 3));
+        assertEquals("north", StoreEntry.getStore(book));
+
+        assertEquals(1, count(north));
+        assertEquals(0, count(BookEntry.CONTENT_URI));
+        assertEquals(1, count(book));
+
+        Cursor stores = mResolver.query(StoreEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(2, stores.getCount());
+            stores.moveToFirst();
+            assertEquals(StoreEntry.DEFAULT_STORE, stores.getString(0));
+            stores.moveToNext();
+            assertEquals("north", stores.getString(0));
+        } finally {
+            stores.close();
+        }
+    }
+
+    @Test
+    public void lowStockOfEveryStore_isMergedByQuantity() {
+        insert(StoreEntry.DEFAULT_STORE, book("Emma", 8, 2));
+        insert("north", book("Dune", 10, 0));
+        insert("north", book("Ulysses", 12, 4));
+        insert("south", book("Walden", 7, 1));
+        insert("south", book("Persuasion", 9, 30));
+
+        Cursor cursor = mResolver.query(
+                StoreEntry.buildStoreUri(StoreEntry.ALL_STORES, LowStockEntry.CONTENT_URI),
+                new String[]{BookEntry.COLUMN_PRODUCT_NAME, BookEntry.COLUMN_QUANTITY}, null, null, null);
+        try {
+            assertArrayEquals(new String[]{StoreEntry.COLUMN_STORE, BookEntry.COLUMN_PRODUCT_NAME,
+                    BookEntry.COLUMN_QUANTITY}, cursor.getColumnNames());
+            assertRows(cursor, "north", "Dune", "south", "Walden", StoreEntry.DEFAULT_STORE, "Emma",
+                    "north", "Ulysses");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void searchOfEveryStore_keepsTheRankOrder() {
+        insert(StoreEntry.DEFAULT_STORE, book("The Dune Encyclopedia", 8, 2));
+        insert("north", book("Dune", 10, 0));
+        insert("south", book("Dune Messiah", 7, 1));
+
+        Cursor cursor = mResolver.query(StoreEntry.buildStoreUri(StoreEntry.ALL_STORES,
+                SearchEntry.buildSearchUri("dune", 2)),
+                new String[]{BookEntry.COLUMN_PRODUCT_NAME}, null, null, null);
+        try {
+            assertRows(cursor, "north", "Dune", "south", "Dune Messiah");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void summaryOfEveryStore_isTheSum() {
+        insert(StoreEntry.DEFAULT_STORE, book("Emma", 8, 2));
+        insert("north", book("Dune", 10, 3));
+        insert("south", book("Walden", 7, 1));
+
+        Cursor cursor = mResolver.query(
+                StoreEntry.buildStoreUri(StoreEntry.ALL_STORES, SummaryEntry.CONTENT_URI),
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getLong(cursor.getColumnIndexOrThrow(SummaryEntry.COLUMN_BOOK_COUNT)));
+            assertEquals(6, cursor.getLong(cursor.getColumnIndexOrThrow(SummaryEntry.COLUMN_UNITS)));
+            assertEquals(8 * 2 + 10 * 3 + 7,
+                    cursor.getLong(cursor.getColumnIndexOrThrow(SummaryEntry.COLUMN_STOCK_VALUE)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = OperationApplicationException.class)
+    public void batchAcrossStores_isRejected() throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                .withValues(book("Emma", 8, 2)).build());
+        operations.add(ContentProviderOperation.newInsert(
+                StoreEntry.buildStoreUri("north", BookEntry.CONTENT_URI))
+                .withValues(book("Dune", 10, 3)).build());
+        mResolver.applyBatch(BookStoreContract.CONTENT_AUTHORITY, operations);
+    }
+
+    private void insert(String store, ContentValues values) {
+        assertNotNull(mResolver.insert(StoreEntry.buildStoreUri(store, BookEntry.CONTENT_URI), values));
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Assert that the cursor holds exactly the given rows, as pairs of store and book name.
+     */
+    private static void assertRows(Cursor cursor, String... storesAndNames) {
+        assertEquals(storesAndNames.length / 2, cursor.getCount());
+        int store = cursor.getColumnIndexOrThrow(StoreEntry.COLUMN_STORE);
+        int name = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_PRODUCT_NAME);
+        for (int i = 0; cursor.moveToNext(); i += 2) {
+            assertEquals(storesAndNames[i], cursor.getString(store));
+            assertEquals(storesAndNames[i + 1], cursor.getString(name));
+        }
+    }
+
+    private void deleteDatabases() {
+        for (String store : STORES) {
+            mContext.deleteDatabase(BookStoreDbHelper.databaseNameOf(store));
+        }
+    }
+
+    private static ContentValues book(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, price);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0100");
+        return values;
+    }
+}
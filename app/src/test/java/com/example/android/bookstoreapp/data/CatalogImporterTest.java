@@ -0,0 +1,207 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of CatalogImporter through the provider: CSV quoting, per-line errors,
+ * validation, and resuming an interrupted import.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CatalogImporterTest {
+
+    private static final String HEADER = BookEntry.COLUMN_PRODUCT_NAME + "," + BookEntry.COLUMN_PRICE
+            + "," + BookEntry.COLUMN_QUANTITY + "," + BookEntry.COLUMN_SUPPLIER_NAME + ","
+            + BookEntry.COLUMN_SUPPLIER_PHONE + "\n";
+
+    private Context mContext;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void csv_quotedFields_keepCommasQuotesAndLineBreaks() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importFrom("quoting", stream(
+                HEADER
+                        + "\"Dune, Part \"\"One\"\"\",10,2,Supplier,555-0100\n"
+                        + "\"Two\nLines\",5,1,Supplier,555-0100\r\n"
+                        + "Emma,8,3,\"Supplier\",555-0100\n"
+                        + "Short,1\n"), listener);
+
+        assertEquals(3, result.rowsImported);
+        assertEquals(1, result.rowsFailed);
+        assertEquals(Arrays.asList("Dune, Part \"One\"", "Two\nLines", "Emma"), names());
+        // The second row spans lines 3 and 4, so the short row is on line 6.
+        assertEquals(Arrays.asList(6), listener.errorLines);
+    }
+
+    @Test
+    public void invalidRows_areReportedWithTheirLine_andTheOthersImported() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importFrom("errors", stream(
+                HEADER
+                        + "Dune,10,2,Supplier,555-0100\n"
+                        + "No price,,2,Supplier,555-0100\n"
+                        + "Too,many,fields,in,this,row\n"
+                        + "\n"
+                        + "No phone,10,2,Supplier,\n"
+                        + "Emma,8,3,Supplier,555-0100\n"), listener);
+
+        assertEquals(2, result.rowsImported);
+        assertEquals(3, result.rowsFailed);
+        assertEquals(Arrays.asList("Dune", "Emma"), names());
+        assertEquals(Arrays.asList(4, 3, 6), listener.errorLines);
+        assertEquals("Inventory requires a price", listener.errorMessages.get(1));
+        assertEquals("Supplier requires a phone number", listener.errorMessages.get(2));
+    }
+
+    @Test
+    public void json_rowsAreValidatedLikeCsvRows() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importFrom("json", stream("[\n"
+                + "{\"" + BookEntry.COLUMN_PRODUCT_NAME + "\": \"Dune\", \"" + BookEntry.COLUMN_PRICE
+                + "\": 10, \"" + BookEntry.COLUMN_QUANTITY + "\": 2, \"" + BookEntry.COLUMN_SUPPLIER_NAME
+                + "\": \"Supplier\", \"" + BookEntry.COLUMN_SUPPLIER_PHONE + "\": \"555-0100\"},\n"
+                + "42,\n"
+                + "{\"" + BookEntry.COLUMN_PRODUCT_NAME + "\": \"No quantity\", \""
+                + BookEntry.COLUMN_PRICE + "\": 10}\n"
+                + "]"), listener);
+
+        assertEquals(1, result.rowsImported);
+        assertEquals(2, result.rowsFailed);
+        assertEquals(Arrays.asList(2, 3), listener.errorLines);
+        assertEquals("Inventory requires a quantity", listener.errorMessages.get(1));
+    }
+
+    @Test
+    public void interruptedImport_resumesAfterTheLastCommittedChunk() throws IOException {
+        int rows = CatalogImporter.CHUNK_SIZE + 10;
+        String csv = catalog(rows);
+
+        RecordingListener crashing = new RecordingListener() {
+            @Override
+            public void onProgress(int nextLine, int rowsImported, int rowsFailed) {
+                throw new IllegalStateException("Killed after the first chunk");
+            }
+        };
+        try {
+            new CatalogImporter(mResolver).importFrom("resume", stream(csv), crashing);
+            fail("Expected the import to be interrupted");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(CatalogImporter.CHUNK_SIZE, count());
+
+        RecordingListener listener = new RecordingListener();
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importFrom("resume",
+                stream(csv), listener);
+
+        assertEquals(rows, result.rowsImported);
+        assertEquals(0, result.rowsFailed);
+        assertEquals(rows, count());
+        assertEquals(Arrays.asList(rows + 2), listener.progressLines);
+
+        // A completed import is not imported again.
+        result = new CatalogImporter(mResolver).importFrom("resume", stream(csv), null);
+        assertEquals(rows, result.rowsImported);
+        assertEquals(rows, count());
+    }
+
+    @Test
+    public void importId_changesWithTheContent() throws IOException {
+        String source = "content://catalogs/books.csv";
+        String id = CatalogImporter.importId(source, stream(catalog(3)));
+
+        assertEquals(id, CatalogImporter.importId(source, stream(catalog(3))));
+        assertTrue(id.startsWith(source));
+        assertNotEquals(id, CatalogImporter.importId(source, stream(catalog(4))));
+        assertNotEquals(id, CatalogImporter.importId(source, stream(catalog(3).replace("Book 1", "Book 7"))));
+    }
+
+    private static String catalog(int rows) {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 0; i < rows; i++) {
+            csv.append("Book ").append(i).append(",10,").append(i % 7).append(",Supplier,555-0100\n");
+        }
+        return csv.toString();
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private List<String> names() {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_PRODUCT_NAME}, null, null, BookEntry._ID);
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private int count() {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null,
+                null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class RecordingListener implements CatalogImporter.Listener {
+        final List<Integer> progressLines = new ArrayList<>();
+        final List<Integer> errorLines = new ArrayList<>();
+        final List<String> errorMessages = new ArrayList<>();
+
+        @Override
+        public void onProgress(int nextLine, int rowsImported, int rowsFailed) {
+            progressLines.add(nextLine);
+        }
+
+        @Override
+        public void onLineError(int line, String message) {
+            errorLines.add(line);
+            errorMessages.add(message);
+        }
+    }
+}
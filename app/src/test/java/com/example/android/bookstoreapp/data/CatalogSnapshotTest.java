@@ -0,0 +1,117 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of CatalogSnapshot: building it from a cursor, patching it with changes, and
+ * filtering, sorting and totals in memory.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CatalogSnapshotTest {
+
+    @Test
+    public void fromCursor_readsEveryRowAndSharesEqualNames() {
+        CatalogSnapshot snapshot = CatalogSnapshot.fromCursor(rows(
+                1, "Dune", 10, 3,
+                2, "Emma", 8, 0,
+                3, "Dune", 12, 5));
+
+        assertEquals(3, snapshot.size());
+        assertEquals(2, snapshot.id(1));
+        assertEquals(12, snapshot.price(2));
+        assertEquals(5, snapshot.quantity(2));
+        assertSame(snapshot.name(0), snapshot.name(2));
+        assertEquals(1, snapshot.indexOf(2));
+        assertTrue(snapshot.indexOf(4) < 0);
+    }
+
+    @Test
+    public void withChanges_appliesUpsertsAndDeletesInIdOrder() {
+        CatalogSnapshot snapshot = CatalogSnapshot.fromCursor(rows(
+                1, "Dune", 10, 3,
+                2, "Emma", 8, 0,
+                3, "Ulysses", 12, 5));
+
+        CatalogSnapshot changed = snapshot.withChanges(rows(
+                5, "Walden", 7, 2,
+                2, "Emma", 8, 9), new long[]{3});
+
+        assertEquals(3, changed.size());
+        assertArrayEquals(new int[]{1, 2, 5}, ids(changed));
+        assertEquals(9, changed.quantity(changed.indexOf(2)));
+        assertEquals("Walden", changed.name(changed.indexOf(5)));
+        // The original is unchanged.
+        assertEquals(0, snapshot.quantity(snapshot.indexOf(2)));
+        assertEquals("Ulysses", snapshot.name(snapshot.indexOf(3)));
+    }
+
+    @Test
+    public void filterSortAndTotals() {
+        CatalogSnapshot snapshot = CatalogSnapshot.fromCursor(rows(
+                1, "dune", 10, 3,
+                2, "Emma", 8, 0,
+                3, "Anna Karenina", 12, 5,
+                4, "Persuasion", 9, 1));
+
+        int[] lowStock = snapshot.filter(CatalogSnapshot.quantityBelow(2));
+        assertArrayEquals(new int[]{1, 3}, lowStock);
+        assertArrayEquals(new int[]{0, 2, 3}, snapshot.filter(CatalogSnapshot.nameContains("N")));
+        assertArrayEquals(new int[]{0, 1, 3}, snapshot.filter(CatalogSnapshot.priceBetween(8, 10)));
+
+        assertArrayEquals(new int[]{2, 0, 1, 3},
+                snapshot.sort(null, CatalogSnapshot.SORT_BY_NAME, false));
+        assertArrayEquals(new int[]{2, 0, 3, 1},
+                snapshot.sort(null, CatalogSnapshot.SORT_BY_PRICE, true));
+        assertArrayEquals(new int[]{1, 3}, snapshot.sort(lowStock, CatalogSnapshot.SORT_BY_QUANTITY, false));
+
+        CatalogSnapshot.Totals totals = snapshot.totals(null);
+        assertEquals(4, totals.bookCount);
+        assertEquals(9, totals.units);
+        assertEquals(10 * 3 + 12 * 5 + 9, totals.stockValue);
+    }
+
+    @Test
+    public void parallelScans_matchSequentialOnes() {
+        MatrixCursor cursor = new MatrixCursor(CatalogSnapshot.PROJECTION);
+        int books = CatalogSnapshot.PARALLEL_THRESHOLD * 2 + 7;
+        for (int i = 1; i <= books; i++) {
+            cursor.addRow(new Object[]{i, "Book " + (i % 1000), i % 50, i % 20});
+        }
+        CatalogSnapshot snapshot = CatalogSnapshot.fromCursor(cursor);
+
+        CatalogSnapshot.RowFilter filter = CatalogSnapshot.quantityBelow(3);
+        assertArrayEquals(snapshot.filter(filter, false), snapshot.filter(filter, true));
+        CatalogSnapshot.Totals sequential = snapshot.totals(null, false);
+        CatalogSnapshot.Totals parallel = snapshot.totals(null, true);
+        assertEquals(sequential.bookCount, parallel.bookCount);
+        assertEquals(sequential.units, parallel.units);
+        assertEquals(sequential.stockValue, parallel.stockValue);
+    }
+
+    /**
+     * Return a cursor of the snapshot's columns, four values per row.
+     */
+    private static MatrixCursor rows(Object... values) {
+        MatrixCursor cursor = new MatrixCursor(CatalogSnapshot.PROJECTION);
+        for (int i = 0; i < values.length; i += 4) {
+            cursor.addRow(new Object[]{values[i], values[i + 1], values[i + 2], values[i + 3]});
+        }
+        return cursor;
+    }
+
+    private static int[] ids(CatalogSnapshot snapshot) {
+        int[] ids = new int[snapshot.size()];
+        for (int row = 0; row < ids.length; row++) {
+            ids[row] = snapshot.id(row);
+        }
+        return ids;
+    }
+}
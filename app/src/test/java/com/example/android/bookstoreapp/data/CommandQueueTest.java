@@ -0,0 +1,209 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of CommandQueue against the provider: results, callbacks on the main thread,
+ * and the order of sales against the other commands.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CommandQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private CommandQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+        mQueue = new CommandQueue(mResolver);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(mQueue.flush(TIMEOUT_MILLIS));
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void insert_returnsTheNewRow_andCallsBackOnTheMainThread() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        CommandQueue.Result result = mQueue.insert(BookEntry.CONTENT_URI,
+                BookStoreProviderTest.book("Dune", 10, 2), callback).get();
+
+        assertTrue(result.isOk());
+        assertEquals(1, result.count);
+        assertEquals(2, quantity(result.uri));
+
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(1, callback.results.size());
+        assertSame(result, callback.results.get(0));
+    }
+
+    @Test
+    public void invalidValues_areReported_notThrown() throws Exception {
+        CommandQueue.Result result = mQueue.insert(BookEntry.CONTENT_URI,
+                BookStoreProviderTest.book(null, 10, 2), null).get();
+
+        assertEquals(CommandQueue.Result.STATUS_INVALID, result.status);
+        assertEquals("Inventory requires a name", result.message);
+    }
+
+    @Test
+    public void sales_reportWhetherACopyWasSold_andTheQuantityLeft() throws Exception {
+        Uri book = insert("Dune", 2);
+        RecordingCallback callback = new RecordingCallback();
+        long id = ContentUris.parseId(book);
+        mQueue.sell(id, callback);
+        mQueue.sell(id, callback);
+        mQueue.sell(id, callback);
+
+        // Once flushed, the sales are in the database, whether or not the callbacks ran.
+        assertTrue(mQueue.flush(TIMEOUT_MILLIS));
+        assertEquals(0, quantity(book));
+
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(3, callback.results.size());
+        int[] counts = {1, 1, 0};
+        int[] quantities = {1, 0, 0};
+        for (int i = 0; i < 3; i++) {
+            assertTrue(callback.results.get(i).isOk());
+            assertEquals(counts[i], callback.results.get(i).count);
+            assertEquals(quantities[i], callback.results.get(i).quantity);
+        }
+    }
+
+    @Test
+    public void sales_runInOrderWithTheOtherCommands() throws Exception {
+        Uri book = insert("Dune", 5);
+        long id = ContentUris.parseId(book);
+        RecordingCallback sales = new RecordingCallback();
+        mQueue.sell(id, sales);
+        CommandQueue.Result deleted = mQueue.delete(book, null, null, null).get();
+        mQueue.sell(id, sales);
+        assertTrue(mQueue.flush(TIMEOUT_MILLIS));
+        Robolectric.flushForegroundThreadScheduler();
+
+        assertEquals(1, deleted.count);
+        assertEquals(2, sales.results.size());
+        // The sale queued before the delete sold a copy; the one queued after found no book.
+        assertEquals(1, sales.results.get(0).count);
+        assertEquals(4, sales.results.get(0).quantity);
+        assertEquals(0, sales.results.get(1).count);
+    }
+
+    @Test
+    public void closeSales_leavesTheQueuedSalesToBeWritten_andReportsWhetherAnyAreLeft()
+            throws Exception {
+        Uri book = insert("Dune", 5);
+        long id = ContentUris.parseId(book);
+        mQueue.sell(id, null);
+        mQueue.sell(id, null);
+        CommandQueue.closeSales();
+        mQueue.sell(id, null);
+
+        assertTrue(mQueue.flush(TIMEOUT_MILLIS));
+        assertEquals(2, quantity(book));
+        // Every command queued before the flush has finished.
+        assertFalse(CommandQueue.closeSales());
+    }
+
+    @Test
+    public void updateIfVersion_reportsAConflictWithTheCurrentRow() throws Exception {
+        Uri book = insert("Dune", 5);
+        long version = version(book);
+        mQueue.sell(ContentUris.parseId(book), null);
+
+        CommandQueue.Result result = mQueue.updateIfVersion(book,
+                BookStoreProviderTest.book("Dune", 12, 5), version, null).get();
+
+        assertEquals(CommandQueue.Result.STATUS_CONFLICT, result.status);
+        assertEquals(4, (int) result.current.getAsInteger(BookEntry.COLUMN_QUANTITY));
+        assertEquals(4, quantity(book));
+    }
+
+    @Test
+    public void setCover_reportsTheNewVersion_onlyIfTheBookWasAtTheGivenOne() throws Exception {
+        Uri book = insert("Dune", 5);
+        long version = version(book);
+
+        CommandQueue.Result result = mQueue.setCover(book, png("a.png"), version, null).get();
+        assertEquals(1, result.count);
+        assertEquals(version(book), result.version);
+        assertTrue(result.version > version);
+
+        // The version the editor last read is stale once another write bumped it.
+        result = mQueue.setCover(book, png("b.png"), version, null).get();
+        assertEquals(1, result.count);
+        assertEquals(-1, result.version);
+    }
+
+    private Uri png(String name) {
+        Uri uri = Uri.parse("content://com.example.test/" + name);
+        Shadows.shadowOf(mResolver).registerInputStream(uri, new ByteArrayInputStream(
+                new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}));
+        return uri;
+    }
+
+    private Uri insert(String name, int quantity) {
+        Uri uri = mResolver.insert(BookEntry.CONTENT_URI, BookStoreProviderTest.book(name, 10, quantity));
+        assertNotNull(uri);
+        return uri;
+    }
+
+    private int quantity(Uri book) {
+        Cursor cursor = mResolver.query(book, new String[]{BookEntry.COLUMN_QUANTITY}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long version(Uri book) {
+        Cursor cursor = mResolver.query(book, new String[]{BookEntry.COLUMN_VERSION}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class RecordingCallback implements CommandQueue.Callback {
+        final List<CommandQueue.Result> results = new ArrayList<>();
+
+        @Override
+        public void onCommandComplete(CommandQueue.Result result) {
+            results.add(result);
+        }
+    }
+}
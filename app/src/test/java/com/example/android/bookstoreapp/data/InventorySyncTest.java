@@ -0,0 +1,439 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.StoreEntry;
+import com.example.android.bookstoreapp.data.BookStoreContract.SyncEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSink;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * End-to-end local JVM tests of InventorySync against a mock HTTP server: batching, compression,
+ * retries with their idempotency keys, rejected changes, and applying server changes without
+ * pushing them back.
+ * <p>
+ * {@link #throughput} times a large push, and is skipped unless the {@code bookstore.benchmark}
+ * system property is true, as in {@link BookStoreProviderBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class InventorySyncTest {
+
+    private static final String EMPTY_PULL = "{\"cursor\": 0, \"more\": false, \"changes\": []}";
+
+    /** Slowest push allowed by {@link #throughput}. */
+    private static final double MIN_PUSHED_BOOKS_PER_SECOND = 2000;
+
+    /** Smallest compression of the pushed JSON allowed by {@link #throughput}. */
+    private static final double MIN_COMPRESSION_RATIO = 3;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(BookStoreDbHelper.databaseNameOf("north"));
+    }
+
+    @Test
+    public void changes_arePushedInCompressedBatchesAndAcknowledged() throws Exception {
+        int books = InventorySync.BATCH_SIZE * 2 + 20;
+        insertBooks(books);
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(books, stats.pushed);
+        int[] batchSizes = {InventorySync.BATCH_SIZE, InventorySync.BATCH_SIZE, 20};
+        for (int batchSize : batchSizes) {
+            RecordedRequest request = mServer.takeRequest();
+            assertEquals("POST", request.getMethod());
+            assertEquals("/sync/changes", request.getPath());
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            assertNotNull(request.getHeader("Idempotency-Key"));
+            JSONArray changes = pushedChanges(request);
+            assertEquals(batchSize, changes.length());
+            assertTrue(changes.getJSONObject(0).has(BookEntry.COLUMN_PRODUCT_NAME));
+        }
+        assertEquals("GET", mServer.takeRequest().getMethod());
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void failedPush_isRetriedWithTheSameIdempotencyKey() throws Exception {
+        insertBooks(3);
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(2, stats.retries);
+        String key = mServer.takeRequest().getHeader("Idempotency-Key");
+        assertEquals(key, mServer.takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(key, mServer.takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void rejectedChanges_areIsolated_andLeftOutUntilTheBookChangesAgain() throws Exception {
+        List<Long> ids = insertBooks(3);
+        // The server rejects the batch and the half holding the first change, and takes the rest.
+        mServer.enqueue(new MockResponse().setResponseCode(400));
+        mServer.enqueue(new MockResponse().setResponseCode(400));
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(2, stats.pushed);
+        assertEquals(1, stats.rejected);
+        assertEquals(0, stats.retries);
+        assertEquals(3, pushedChanges(mServer.takeRequest()).length());
+        JSONArray rejected = pushedChanges(mServer.takeRequest());
+        assertEquals(1, rejected.length());
+        assertEquals((long) ids.get(0), rejected.getJSONObject(0).getLong(BookEntry._ID));
+        assertEquals(2, pushedChanges(mServer.takeRequest()).length());
+        assertEquals("GET", mServer.takeRequest().getMethod());
+        assertEquals(400, rejectedStatus(ids.get(0)));
+
+        // Left out of the next push, until a new change of the book replaces it.
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+        assertEquals(0, newSync().sync().pushed);
+        assertEquals("GET", mServer.takeRequest().getMethod());
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 9);
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(0)), values, null, null);
+        assertEquals(0, rejectedStatus(ids.get(0)));
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+        assertEquals(1, newSync().sync().pushed);
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void pushToAMissingEndpoint_failsTheStore_andLeavesEveryChangeQueued() throws Exception {
+        List<Long> ids = insertBooks(3);
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+
+        try {
+            newSync().sync();
+            fail("Expected the sync to fail");
+        } catch (IOException expected) {
+        }
+
+        // Not a rejection of the changes: no halves were pushed and none was marked.
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(3, count(SyncEntry.CONTENT_URI));
+        for (long id : ids) {
+            assertEquals(0, rejectedStatus(id));
+        }
+    }
+
+    @Test
+    public void failedStore_doesNotStopTheOthers() throws Exception {
+        insertBooks(2);
+        Uri north = StoreEntry.buildStoreUri("north", BookEntry.CONTENT_URI);
+        assertNotNull(mResolver.insert(north, book("Dune", 10, 3)));
+        // The default store is synced first; its pull is rejected.
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+
+        try {
+            newSync().sync();
+            fail("Expected the sync to report the failed store");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(4, mServer.getRequestCount());
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+        assertEquals(0, count(StoreEntry.buildStoreUri("north", SyncEntry.CONTENT_URI)));
+    }
+
+    @Test
+    public void serverChanges_areAppliedWithoutBeingPushedBack() throws Exception {
+        List<Long> ids = insertBooks(2);
+        acknowledgeAll();
+        mServer.enqueue(new MockResponse().setBody(gzip("{\"cursor\": 42, \"more\": false, \"changes\": ["
+                + change(ids.get(0), "Dune", 10, 7) + ", "
+                + change(99, "Walden", 7, 1) + ", "
+                + "{\"_id\": " + ids.get(1) + ", \"deleted\": true}]}"))
+                .setHeader("Content-Encoding", "gzip"));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(3, stats.pulled);
+        RecordedRequest request = mServer.takeRequest();
+        assertEquals("/sync/changes?store=default&since=0&limit=" + InventorySync.BATCH_SIZE,
+                request.getPath());
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+        assertEquals(7, quantity(ids.get(0)));
+        assertEquals(1, quantity(99));
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(1))));
+        Bundle cursor = mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_GET_CURSOR, null, null);
+        assertEquals(42, cursor.getLong(SyncEntry.EXTRA_CURSOR));
+
+        // A local change after it is queued as usual.
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 8);
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 99), values, null, null);
+        assertEquals(1, count(SyncEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void malformedServerChanges_areSkipped_andTheCursorMovesPastThem() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("{\"cursor\": 42, \"more\": false, \"changes\": ["
+                + "{\"deleted\": false, \"" + BookEntry.COLUMN_PRODUCT_NAME + "\": \"No ID\"}, "
+                + change(97, "No phone", 7, 1).replace(", \"" + BookEntry.COLUMN_SUPPLIER_PHONE
+                        + "\": \"555-0100\"", "") + ", "
+                + change(98, "Bad price", 7, 1).replace("\"" + BookEntry.COLUMN_PRICE + "\": 7",
+                        "\"" + BookEntry.COLUMN_PRICE + "\": \"seven\"") + ", "
+                + change(99, "Walden", 7, 1) + "]}"));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(3, stats.malformed);
+        assertEquals(1, stats.pulled);
+        assertEquals(1, quantity(99));
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 97)));
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 98)));
+        Bundle cursor = mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_GET_CURSOR, null, null);
+        assertEquals(42, cursor.getLong(SyncEntry.EXTRA_CURSOR));
+    }
+
+    @Test
+    public void serverChanges_ofBooksChangedLocallySincePushing_areSkipped_andTheLocalChangePushed()
+            throws Exception {
+        List<Long> ids = insertBooks(2);
+        acknowledgeAll();
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 8);
+        mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids.get(0)), values, null, null);
+        // The server changed both books meanwhile, and deleted the first one.
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody("{\"cursor\": 7, \"more\": false, \"changes\": []}"));
+
+        Bundle result = applyChanges(7, deletion(ids.get(0)), bookChange(ids.get(1), "Emma", 9, 4));
+
+        assertEquals(1, result.getInt(SyncEntry.EXTRA_APPLIED));
+        assertEquals(1, result.getInt(SyncEntry.EXTRA_SKIPPED));
+        assertEquals(8, quantity(ids.get(0)));
+        assertEquals(4, quantity(ids.get(1)));
+        assertEquals(1, count(SyncEntry.CONTENT_URI));
+
+        // The local change is still pushed, for the server to resolve.
+        InventorySync.Stats stats = newSync().sync();
+        assertEquals(1, stats.pushed);
+        JSONObject pushed = pushedChanges(mServer.takeRequest()).getJSONObject(0);
+        assertEquals((long) ids.get(0), pushed.getLong(BookEntry._ID));
+        assertEquals(8, pushed.getInt(BookEntry.COLUMN_QUANTITY));
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        assumeTrue("Set -Dbookstore.benchmark=true to run", Boolean.getBoolean("bookstore.benchmark"));
+        int books = Integer.getInteger("bookstore.benchmark.syncBooks", 10000);
+        insertBooks(books);
+        int batches = (books + InventorySync.BATCH_SIZE - 1) / InventorySync.BATCH_SIZE;
+        for (int i = 0; i < batches; i++) {
+            mServer.enqueue(new MockResponse());
+        }
+        mServer.enqueue(new MockResponse().setBody(EMPTY_PULL));
+
+        InventorySync.Stats stats = newSync().sync();
+
+        assertEquals(books, stats.pushed);
+        assertEquals(batches + 1, stats.requests);
+        double booksPerSecond = books * 1000.0 / Math.max(1, stats.elapsedMillis);
+        double compression = (double) stats.rawBytes / stats.wireBytes;
+        System.out.println(String.format("sync of %d books: %s; %.0f books/s, %.1f bytes/book on the"
+                        + " wire, %.1fx compression", books, stats, booksPerSecond,
+                (double) stats.wireBytes / books, compression));
+        assertTrue("Pushed " + Math.round(booksPerSecond) + " books/s",
+                booksPerSecond >= MIN_PUSHED_BOOKS_PER_SECOND);
+        assertTrue("Compressed " + compression + "x", compression >= MIN_COMPRESSION_RATIO);
+    }
+
+    private InventorySync newSync() {
+        return new InventorySync(mResolver, mServer.url("/sync").toString(), "device", 1, 10);
+    }
+
+    private List<Long> insertBooks(int count) {
+        List<Long> ids = new ArrayList<>(count);
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = book("Book " + i, 10 + i % 20, i % 7);
+        }
+        assertEquals(count, mResolver.bulkInsert(BookEntry.CONTENT_URI, values));
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null,
+                BookEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private void acknowledgeAll() {
+        Cursor cursor = mResolver.query(SyncEntry.CONTENT_URI, new String[]{SyncEntry._ID}, null, null, null);
+        long[] seqs;
+        try {
+            seqs = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                seqs[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookEntry.EXTRA_IDS, seqs);
+        mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_ACKNOWLEDGE, null, extras);
+        assertEquals(0, count(SyncEntry.CONTENT_URI));
+    }
+
+    private Bundle applyChanges(long cursor, ContentValues... changes) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(SyncEntry.EXTRA_CHANGES, changes);
+        extras.putLong(SyncEntry.EXTRA_CURSOR, cursor);
+        return mResolver.call(SyncEntry.CONTENT_URI, SyncEntry.METHOD_APPLY_CHANGES, null, extras);
+    }
+
+    private static ContentValues deletion(long id) {
+        ContentValues change = new ContentValues();
+        change.put(BookEntry._ID, id);
+        change.put(SyncEntry.COLUMN_DELETED, 1);
+        return change;
+    }
+
+    private static ContentValues bookChange(long id, String name, int price, int quantity) {
+        ContentValues change = book(name, price, quantity);
+        change.put(BookEntry._ID, id);
+        change.put(SyncEntry.COLUMN_DELETED, 0);
+        return change;
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int rejectedStatus(long id) {
+        Cursor cursor = mResolver.query(SyncEntry.CONTENT_URI, new String[]{SyncEntry.COLUMN_REJECTED},
+                SyncEntry.COLUMN_BOOK_ID + " = ?", new String[]{String.valueOf(id)}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int quantity(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_QUANTITY}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static JSONArray pushedChanges(RecordedRequest request) throws IOException, JSONException {
+        InputStream in = new GZIPInputStream(request.getBody().inputStream());
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            json.write(buffer, 0, read);
+        }
+        JSONObject body = new JSONObject(json.toString("UTF-8"));
+        assertEquals(StoreEntry.DEFAULT_STORE, body.getString("store"));
+        return body.getJSONArray("changes");
+    }
+
+    private static Buffer gzip(String json) throws IOException {
+        Buffer buffer = new Buffer();
+        GzipSink sink = new GzipSink(buffer);
+        Buffer source = new Buffer().writeUtf8(json);
+        sink.write(source, source.size());
+        sink.close();
+        return buffer;
+    }
+
+    private static String change(long id, String name, int price, int quantity) {
+        return "{\"_id\": " + id + ", \"deleted\": false, \"" + BookEntry.COLUMN_PRODUCT_NAME + "\": \""
+                + name + "\", \"" + BookEntry.COLUMN_PRICE + "\": " + price + ", \""
+                + BookEntry.COLUMN_QUANTITY + "\": " + quantity + ", \"" + BookEntry.COLUMN_SUPPLIER_NAME
+                + "\": \"Supplier\", \"" + BookEntry.COLUMN_SUPPLIER_PHONE + "\": \"555-0100\"}";
+    }
+
+    private static ContentValues book(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, price);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "555-0100");
+        return values;
+    }
+}
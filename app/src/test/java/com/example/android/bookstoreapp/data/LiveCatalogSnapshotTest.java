@@ -0,0 +1,152 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Looper;
+
+import com.example.android.bookstoreapp.data.BookStoreContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local JVM tests of LiveCatalogSnapshot against the provider: the first snapshot, then each
+ * insert, update and delete the provider notifies, applied to the next snapshot.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class LiveCatalogSnapshotTest {
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private LiveCatalogSnapshot mLive;
+    private final List<CatalogSnapshot> mPublished = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+        Robolectric.setupContentProvider(BookStoreProvider.class);
+        mResolver = mContext.getContentResolver();
+        // On the main looper, so the test runs the snapshot's work by flushing it.
+        mLive = new LiveCatalogSnapshot(mResolver, new LiveCatalogSnapshot.Listener() {
+            @Override
+            public void onSnapshotChanged(CatalogSnapshot snapshot) {
+                mPublished.add(snapshot);
+            }
+        }, Looper.getMainLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mLive.stop();
+        mContext.deleteDatabase(BookStoreDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void start_buildsTheFirstSnapshot() {
+        insert("Dune", 10, 2);
+        insert("Emma", 8, 0);
+        assertNull(mLive.get());
+
+        mLive.start();
+        Robolectric.flushForegroundThreadScheduler();
+
+        assertEquals(Arrays.asList("Dune 10 2", "Emma 8 0"), rows(mLive.get()));
+        assertEquals(1, mPublished.size());
+        assertSame(mLive.get(), mPublished.get(0));
+    }
+
+    @Test
+    public void notifiedChanges_areAppliedToANewSnapshot() {
+        Uri dune = insert("Dune", 10, 2);
+        mLive.start();
+        Robolectric.flushForegroundThreadScheduler();
+        CatalogSnapshot first = mLive.get();
+
+        Uri emma = insert("Emma", 8, 0);
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(Arrays.asList("Dune 10 2", "Emma 8 0"), rows(mLive.get()));
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 7);
+        assertEquals(1, mResolver.update(dune, values, null, null));
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(Arrays.asList("Dune 10 7", "Emma 8 0"), rows(mLive.get()));
+
+        assertEquals(1, mResolver.delete(emma, null, null));
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(Arrays.asList("Dune 10 7"), rows(mLive.get()));
+
+        // Each change published a new snapshot and left the earlier ones as they were.
+        assertEquals(4, mPublished.size());
+        assertEquals(Arrays.asList("Dune 10 2"), rows(first));
+        assertEquals(1, mLive.get().totals(null).bookCount);
+        assertEquals(70, mLive.get().totals(null).stockValue);
+    }
+
+    @Test
+    public void notificationNamingNoRows_rebuildsTheSnapshot() {
+        insert("Dune", 10, 2);
+        mLive.start();
+        Robolectric.flushForegroundThreadScheduler();
+
+        // Changed behind the provider's back, so only a rebuild finds it.
+        SQLiteDatabase db = new BookStoreDbHelper(mContext).getWritableDatabase();
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_QUANTITY + " = 9");
+        db.close();
+        mResolver.notifyChange(BookEntry.CONTENT_URI, null);
+        Robolectric.flushForegroundThreadScheduler();
+
+        assertEquals(Arrays.asList("Dune 10 9"), rows(mLive.get()));
+        assertEquals(2, mPublished.size());
+    }
+
+    @Test
+    public void stop_leavesTheLastSnapshot_andIgnoresLaterChanges() {
+        insert("Dune", 10, 2);
+        mLive.start();
+        Robolectric.flushForegroundThreadScheduler();
+        mLive.stop();
+
+        insert("Emma", 8, 0);
+        Robolectric.flushForegroundThreadScheduler();
+
+        assertEquals(Arrays.asList("Dune 10 2"), rows(mLive.get()));
+        assertEquals(1, mPublished.size());
+    }
+
+    private Uri insert(String name, int price, int quantity) {
+        Uri uri = mResolver.insert(BookEntry.CONTENT_URI, BookStoreProviderTest.book(name, price, quantity));
+        assertNotNull(uri);
+        assertTrue(ContentUris.parseId(uri) > 0);
+        return uri;
+    }
+
+    /**
+     * Return each row of the snapshot as "name price quantity", in ID order.
+     */
+    private static List<String> rows(CatalogSnapshot snapshot) {
+        List<String> rows = new ArrayList<>(snapshot.size());
+        for (int row = 0; row < snapshot.size(); row++) {
+            rows.add(snapshot.name(row) + " " + snapshot.price(row) + " " + snapshot.quantity(row));
+        }
+        return rows;
+    }
+}